@@ -0,0 +1,181 @@
+/**
+ * Compresses RGBA8 images to BC1 (S3TC DXT1), the block format every desktop
+ * GPU samples directly: each 4x4 block becomes two RGB565 end points and a 2
+ * bit index per pixel choosing one of four colours on the line between them,
+ * 8 bytes in place of 64. Alpha is dropped, which suits the opaque body
+ * textures.
+ *
+ * End points are found along the principal axis of each block's colours (a few
+ * power iterations on their covariance) and pulled in by 1/16 of their
+ * distance, which keeps the two interpolated colours on the bulk of the block.
+ */
+public final class Bc1Encoder {
+    public static final int BLOCK_BYTES = 8;
+    private static final int POWER_ITERATIONS = 4;
+
+    // private constructor prevents instantiation (static only)
+    private Bc1Encoder() {
+    }
+
+    /*
+     * Bytes of an image of the given size once compressed, partial blocks
+     * padded out to whole ones
+     */
+    public static int compressedSize(int width, int height) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * BLOCK_BYTES;
+    }
+
+    /*
+     * Compress the width by height RGBA image at rgba[offset] into dest at
+     * destOffset, blocks in row major order. Returns the offset after the last
+     * block.
+     */
+    public static int encode(byte[] rgba, int offset, int width, int height, byte[] dest, int destOffset) {
+        float[] block = new float[16 * 3];
+        int d = destOffset;
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                // Edge blocks repeat their last row and column
+                for (int p = 0; p < 16; p++) {
+                    int x = Math.min(bx + (p & 3), width - 1);
+                    int y = Math.min(by + (p >> 2), height - 1);
+                    int source = offset + (y * width + x) * 4;
+                    block[p * 3] = rgba[source] & 0xFF;
+                    block[p * 3 + 1] = rgba[source + 1] & 0xFF;
+                    block[p * 3 + 2] = rgba[source + 2] & 0xFF;
+                }
+                encodeBlock(block, dest, d);
+                d += BLOCK_BYTES;
+            }
+        }
+        return d;
+    }
+
+    private static void encodeBlock(float[] block, byte[] dest, int d) {
+        // Mean and covariance of the block's colours
+        float meanR = 0, meanG = 0, meanB = 0;
+        for (int p = 0; p < 16; p++) {
+            meanR += block[p * 3];
+            meanG += block[p * 3 + 1];
+            meanB += block[p * 3 + 2];
+        }
+        meanR /= 16;
+        meanG /= 16;
+        meanB /= 16;
+        float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+        for (int p = 0; p < 16; p++) {
+            float r = block[p * 3] - meanR;
+            float g = block[p * 3 + 1] - meanG;
+            float b = block[p * 3 + 2] - meanB;
+            rr += r * r;
+            rg += r * g;
+            rb += r * b;
+            gg += g * g;
+            gb += g * b;
+            bb += b * b;
+        }
+
+        // Principal axis by power iteration, starting from the widest channel
+        float axisR = rr >= gg && rr >= bb ? 1 : 0;
+        float axisG = axisR == 0 && gg >= bb ? 1 : 0;
+        float axisB = axisR == 0 && axisG == 0 ? 1 : 0;
+        for (int i = 0; i < POWER_ITERATIONS; i++) {
+            float r = rr * axisR + rg * axisG + rb * axisB;
+            float g = rg * axisR + gg * axisG + gb * axisB;
+            float b = rb * axisR + gb * axisG + bb * axisB;
+            float length = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+            if (length == 0) {
+                break;
+            }
+            axisR = r / length;
+            axisG = g / length;
+            axisB = b / length;
+        }
+
+        // End points: the extreme colours along the axis, inset by 1/16
+        float low = Float.POSITIVE_INFINITY;
+        float high = Float.NEGATIVE_INFINITY;
+        int lowPixel = 0;
+        int highPixel = 0;
+        for (int p = 0; p < 16; p++) {
+            float t = block[p * 3] * axisR + block[p * 3 + 1] * axisG + block[p * 3 + 2] * axisB;
+            if (t < low) {
+                low = t;
+                lowPixel = p;
+            }
+            if (t > high) {
+                high = t;
+                highPixel = p;
+            }
+        }
+        float[] max = new float[3];
+        float[] min = new float[3];
+        for (int c = 0; c < 3; c++) {
+            float a = block[highPixel * 3 + c];
+            float b = block[lowPixel * 3 + c];
+            float inset = (a - b) / 16;
+            max[c] = a - inset;
+            min[c] = b + inset;
+        }
+        int color0 = pack565(max);
+        int color1 = pack565(min);
+        if (color0 < color1) {
+            int swap = color0;
+            color0 = color1;
+            color1 = swap;
+        }
+
+        int indices = 0;
+        if (color0 != color1) {
+            // The four colours of the block as the GPU will decode them
+            float[] palette = new float[12];
+            unpack565(color0, palette, 0);
+            unpack565(color1, palette, 3);
+            for (int c = 0; c < 3; c++) {
+                palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+                palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+            }
+            for (int p = 0; p < 16; p++) {
+                int best = 0;
+                float bestDistance = Float.POSITIVE_INFINITY;
+                for (int i = 0; i < 4; i++) {
+                    float dr = block[p * 3] - palette[i * 3];
+                    float dg = block[p * 3 + 1] - palette[i * 3 + 1];
+                    float db = block[p * 3 + 2] - palette[i * 3 + 2];
+                    float distance = dr * dr + dg * dg + db * db;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = i;
+                    }
+                }
+                indices |= best << (2 * p);
+            }
+        }
+
+        // Little endian: colour 0, colour 1, then the indices
+        dest[d] = (byte) color0;
+        dest[d + 1] = (byte) (color0 >> 8);
+        dest[d + 2] = (byte) color1;
+        dest[d + 3] = (byte) (color1 >> 8);
+        dest[d + 4] = (byte) indices;
+        dest[d + 5] = (byte) (indices >> 8);
+        dest[d + 6] = (byte) (indices >> 16);
+        dest[d + 7] = (byte) (indices >> 24);
+    }
+
+    private static int pack565(float[] rgb) {
+        int r = Math.round(Math.max(0, Math.min(255, rgb[0])) * 31 / 255);
+        int g = Math.round(Math.max(0, Math.min(255, rgb[1])) * 63 / 255);
+        int b = Math.round(Math.max(0, Math.min(255, rgb[2])) * 31 / 255);
+        return r << 11 | g << 5 | b;
+    }
+
+    private static void unpack565(int color, float[] dest, int offset) {
+        int r = color >> 11 & 31;
+        int g = color >> 5 & 63;
+        int b = color & 31;
+        dest[offset] = r << 3 | r >> 2;
+        dest[offset + 1] = g << 2 | g >> 4;
+        dest[offset + 2] = b << 3 | b >> 2;
+    }
+}
@@ -0,0 +1,612 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4fc;
+
+/**
+ * Bounding volume hierarchy over the bodies' bounding spheres, for culling
+ * against the view frustum. Each body's sphere is its world position (the
+ * translation of its model matrix) and its radius, the unit sphere mesh being
+ * scaled by the radius.
+ *
+ * The tree is a binary tree of axis aligned boxes in flat arrays, stored depth
+ * first so a node's left child follows it and every child comes after its
+ * parent. It is built by splitting the bodies at the median of the longest
+ * axis, and each frame it is only refit. Leaf boxes are fitted with SLACK
+ * times their longest side to spare on every side, and packing the spheres
+ * flags the leaves that a body has left. Only those leaves are fitted again,
+ * and one backwards pass refits the boxes above them from their two children,
+ * skipping every subtree where nothing was flagged.
+ *
+ * Orbits pull bodies that started close together apart, which grows the
+ * boxes. A subtree whose box has grown by REBUILD_GROWTH in surface area
+ * since it was built is rebuilt on its own, in place: a median split tree's
+ * shape depends only on its number of bodies, so the new subtree fills the
+ * same nodes and the rest of the tree is untouched. Growth is measured
+ * against the box as built with the same slack, so a subtree built flat (all
+ * bodies start at phase 0, on a line) is not rebuilt each time it thickens.
+ * Rebuilds are paid for out of a credit of count / REBUILD_FRAMES bodies per
+ * update, so the whole tree is rebuilt at most once every REBUILD_FRAMES
+ * updates and a subtree that cannot be paid for yet waits for the credit.
+ *
+ * Culling walks the tree with a stack: a box outside the frustum is dropped
+ * with all of its bodies, a box inside it accepts all of its bodies without
+ * further tests, and only bodies in leaves crossing the frustum are tested on
+ * their own. Large trees are packed, built and refit across a ForkJoinPool
+ * with update(matrices, radius, count, pool).
+ */
+public class BodyBvh {
+    public static final int LEAF_SIZE = 8; // Bodies below which a node is not split
+    public static final float REBUILD_GROWTH = 2; // Surface area growth that triggers a rebuild
+    public static final float SLACK = 0.25f; // Margin around leaf boxes, as a fraction of their longest side
+    public static final int REBUILD_FRAMES = 60; // Updates over which rebuilding every body is spread
+    private static final int MIN_CHUNK = 1024;
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private int count;
+    private int[] order = new int[0]; // Body index of each leaf slot, leaves cover contiguous ranges
+    private int[] leafOf = new int[0]; // Leaf node of each body
+    private float[] spheres = new float[0]; // x, y, z, radius of each body, packed from the matrices each update
+    private float[] keys = new float[0]; // Scratch for the build's median split
+
+    // Nodes, the root is node 0 and a node's left child is the next node
+    private int nodeCount;
+    private int[] nodeRight = new int[0]; // Index of the right child, -1 for a leaf
+    private int[] nodeNext = new int[0]; // Index of the first node after the subtree
+    private int[] nodeFirst = new int[0]; // Range of order covered
+    private int[] nodeEnd = new int[0];
+    private float[] minX = new float[0];
+    private float[] minY = new float[0];
+    private float[] minZ = new float[0];
+    private float[] maxX = new float[0];
+    private float[] maxY = new float[0];
+    private float[] maxZ = new float[0];
+    private float[] builtArea = new float[0]; // Surface area with slack when the subtree was built, 0 until fitted
+    private boolean[] stale = new boolean[0]; // Box to be fitted again by the next refit
+    private long rebuildCredit; // Bodies that may still be rebuilt, topped up every update
+    private int[] stack = new int[64];
+
+    private final FrustumIntersection frustum = new FrustumIntersection();
+
+    // Metrics of the last update and cull
+    private int visibleCount;
+    private int culledCount;
+    private int nodesVisited;
+    private int builds;
+    private int rebuilds;
+    private long updateNanos;
+    private long cullNanos;
+
+    /*
+     * Bring the tree up to date with count bodies whose model matrices are in
+     * matrices (BodyStore.MATRIX_FLOATS per body) and whose radii are in radius.
+     * Builds the tree when the number of bodies changed, otherwise rebuilds the
+     * subtrees that had grown too loose by the last update, as far as the credit
+     * goes, and refits the boxes that bodies have left.
+     */
+    public void update(float[] matrices, float[] radius, int count) {
+        update(matrices, radius, count, null);
+    }
+
+    /*
+     * Same as update(matrices, radius, count), split over the pool when there
+     * are enough bodies. Subtrees are independent once their root is placed, so
+     * each half of a large subtree is its own task.
+     */
+    public void update(float[] matrices, float[] radius, int count, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int cutoff = count;
+        if (pool != null && count >= BodyStore.PARALLEL_THRESHOLD && pool.getParallelism() > 1) {
+            cutoff = Math.max(MIN_CHUNK, count / (pool.getParallelism() * CHUNKS_PER_WORKER));
+        }
+        if (this.spheres.length < count * 4) {
+            this.spheres = new float[count * 4];
+        }
+        boolean built = count == this.count && this.nodeCount > 0;
+        run(pool, new TreeTask(built ? TreeTask.PACK_AND_FLAG : TreeTask.PACK, 0, 0, count, cutoff, matrices,
+                radius));
+        if (!built) {
+            build(count, pool, cutoff);
+        } else {
+            this.rebuildCredit = Math.min(count, this.rebuildCredit + count / REBUILD_FRAMES + 1);
+            rebuildLoose(pool, cutoff);
+        }
+        run(pool, new TreeTask(TreeTask.REFIT, 0, 0, count, cutoff, null, null));
+        this.stale[0] = false;
+        this.updateNanos = System.nanoTime() - start;
+    }
+
+    /*
+     * Run a task on the pool, or on this thread when it would not fork anyway
+     */
+    private void run(ForkJoinPool pool, TreeTask task) {
+        if (task.to - task.from <= task.cutoff || pool == null) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /*
+     * Write the index of every body whose bounding sphere intersects the
+     * frustum of projectionView (projection * view) into visible, in tree order,
+     * and return how many there are. visible must hold every body.
+     */
+    public int cull(Matrix4fc projectionView, int[] visible) {
+        long start = System.nanoTime();
+        this.frustum.set(projectionView);
+        int visibleCount = 0;
+        int visited = 0;
+        if (this.count > 0) {
+            int top = 0;
+            this.stack[top++] = 0;
+            while (top > 0) {
+                int node = this.stack[--top];
+                visited++;
+                int result = this.frustum.intersectAab(this.minX[node], this.minY[node], this.minZ[node],
+                        this.maxX[node], this.maxY[node], this.maxZ[node]);
+                if (result == FrustumIntersection.INSIDE) {
+                    // Every body below is visible
+                    for (int slot = this.nodeFirst[node]; slot < this.nodeEnd[node]; slot++) {
+                        visible[visibleCount++] = this.order[slot];
+                    }
+                } else if (result == FrustumIntersection.INTERSECT) {
+                    int right = this.nodeRight[node];
+                    if (right >= 0) {
+                        if (top + 2 > this.stack.length) {
+                            this.stack = Arrays.copyOf(this.stack, this.stack.length * 2);
+                        }
+                        this.stack[top++] = right;
+                        this.stack[top++] = node + 1;
+                    } else {
+                        visibleCount = cullLeaf(node, visible, visibleCount);
+                    }
+                }
+            }
+        }
+        this.visibleCount = visibleCount;
+        this.culledCount = this.count - visibleCount;
+        this.nodesVisited = visited;
+        this.cullNanos = System.nanoTime() - start;
+        return visibleCount;
+    }
+
+    /*
+     * Test the bodies of a leaf that crosses the frustum one by one. Their
+     * spheres are all inside the leaf's box, which may be larger.
+     */
+    private int cullLeaf(int node, int[] visible, int visibleCount) {
+        for (int slot = this.nodeFirst[node]; slot < this.nodeEnd[node]; slot++) {
+            int body = this.order[slot];
+            int s = body * 4;
+            if (this.frustum.testSphere(this.spheres[s], this.spheres[s + 1], this.spheres[s + 2],
+                    this.spheres[s + 3])) {
+                visible[visibleCount++] = body;
+            }
+        }
+        return visibleCount;
+    }
+
+    public int getVisibleCount() {
+        return this.visibleCount;
+    }
+
+    public int getCulledCount() {
+        return this.culledCount;
+    }
+
+    /*
+     * Boxes tested by the last cull
+     */
+    public int getNodesVisited() {
+        return this.nodesVisited;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    /*
+     * Number of full builds so far, the first one included
+     */
+    public int getBuilds() {
+        return this.builds;
+    }
+
+    /*
+     * Number of subtrees rebuilt for having grown too loose so far
+     */
+    public int getRebuilds() {
+        return this.rebuilds;
+    }
+
+    /*
+     * Time taken by the last update and the last cull
+     */
+    public long getUpdateNanos() {
+        return this.updateNanos;
+    }
+
+    public long getCullNanos() {
+        return this.cullNanos;
+    }
+
+    /*
+     * Copy the spheres of bodies from to to out of their model matrices, in
+     * storage order, so the tree's scattered reads cover a quarter of the memory
+     */
+    private void packSpheres(float[] matrices, float[] radius, int from, int to) {
+        for (int body = from; body < to; body++) {
+            int m = body * BodyStore.MATRIX_FLOATS;
+            int s = body * 4;
+            this.spheres[s] = matrices[m + 12];
+            this.spheres[s + 1] = matrices[m + 13];
+            this.spheres[s + 2] = matrices[m + 14];
+            this.spheres[s + 3] = radius[body];
+        }
+    }
+
+    /*
+     * Same as packSpheres, and flag the leaf of every body whose sphere is no
+     * longer inside the leaf's box
+     */
+    private void packAndFlag(float[] matrices, float[] radius, int from, int to) {
+        for (int body = from; body < to; body++) {
+            int m = body * BodyStore.MATRIX_FLOATS;
+            int s = body * 4;
+            float x = matrices[m + 12];
+            float y = matrices[m + 13];
+            float z = matrices[m + 14];
+            float r = radius[body];
+            this.spheres[s] = x;
+            this.spheres[s + 1] = y;
+            this.spheres[s + 2] = z;
+            this.spheres[s + 3] = r;
+            int leaf = this.leafOf[body];
+            if (x - r < this.minX[leaf] || y - r < this.minY[leaf] || z - r < this.minZ[leaf]
+                    || x + r > this.maxX[leaf] || y + r > this.maxY[leaf] || z + r > this.maxZ[leaf]) {
+                this.stale[leaf] = true;
+            }
+        }
+    }
+
+    /*
+     * Fit the stale boxes of the subtree at node to the current spheres. A
+     * subtree is the run of nodes up to nodeNext and children come after their
+     * parents, so one pass from its last node to its first sees both children
+     * of a node before the node.
+     */
+    private void refit(int node) {
+        for (int n = this.nodeNext[node] - 1; n >= node; n--) {
+            if (this.nodeRight[n] < 0) {
+                if (this.stale[n]) {
+                    fitLeaf(n);
+                }
+            } else {
+                refitInner(n);
+            }
+        }
+    }
+
+    /*
+     * Fit an inner node to its children if either was fitted, and pass the flag
+     * up: the children's are cleared and the node's is left for its parent
+     */
+    private void refitInner(int node) {
+        int left = node + 1;
+        int right = this.nodeRight[node];
+        if (this.stale[left] || this.stale[right]) {
+            fitInner(node);
+            this.stale[node] = true;
+            this.stale[left] = false;
+            this.stale[right] = false;
+        }
+    }
+
+    private void fitInner(int node) {
+        int left = node + 1;
+        int right = this.nodeRight[node];
+        this.minX[node] = Math.min(this.minX[left], this.minX[right]);
+        this.minY[node] = Math.min(this.minY[left], this.minY[right]);
+        this.minZ[node] = Math.min(this.minZ[left], this.minZ[right]);
+        this.maxX[node] = Math.max(this.maxX[left], this.maxX[right]);
+        this.maxY[node] = Math.max(this.maxY[left], this.maxY[right]);
+        this.maxZ[node] = Math.max(this.maxZ[left], this.maxZ[right]);
+        if (this.builtArea[node] == 0) { // Newly built
+            float dx = this.maxX[node] - this.minX[node];
+            float dy = this.maxY[node] - this.minY[node];
+            float dz = this.maxZ[node] - this.minZ[node];
+            float margin = 2 * SLACK * Math.max(dx, Math.max(dy, dz));
+            dx += margin;
+            dy += margin;
+            dz += margin;
+            this.builtArea[node] = 2 * (dx * dy + dy * dz + dz * dx);
+        }
+    }
+
+    /*
+     * Rebuild the largest subtrees whose boxes have grown by REBUILD_GROWTH
+     * since they were built, walking down from the root and skipping the
+     * subtrees already rebuilt. A loose subtree with more bodies than the
+     * credit is skipped too, rebuilding inside it would not regroup its bodies.
+     * Leaves have no shape to improve.
+     */
+    private void rebuildLoose(ForkJoinPool pool, int cutoff) {
+        int node = 0;
+        while (node < this.nodeCount) {
+            if (this.nodeRight[node] >= 0 && surfaceArea(node) > this.builtArea[node] * REBUILD_GROWTH) {
+                int size = this.nodeEnd[node] - this.nodeFirst[node];
+                if (size <= this.rebuildCredit) {
+                    run(pool, new TreeTask(TreeTask.SPLIT, node, this.nodeFirst[node], this.nodeEnd[node], cutoff,
+                            null, null));
+                    this.rebuildCredit -= size;
+                    this.rebuilds++;
+                }
+                node = this.nodeNext[node];
+            } else {
+                node++;
+            }
+        }
+    }
+
+    /*
+     * Fit a leaf's box around the spheres of its bodies, with SLACK times its
+     * longest side to spare
+     */
+    private void fitLeaf(int node) {
+        float x0 = Float.POSITIVE_INFINITY;
+        float y0 = Float.POSITIVE_INFINITY;
+        float z0 = Float.POSITIVE_INFINITY;
+        float x1 = Float.NEGATIVE_INFINITY;
+        float y1 = Float.NEGATIVE_INFINITY;
+        float z1 = Float.NEGATIVE_INFINITY;
+        for (int slot = this.nodeFirst[node]; slot < this.nodeEnd[node]; slot++) {
+            int s = this.order[slot] * 4;
+            float x = this.spheres[s];
+            float y = this.spheres[s + 1];
+            float z = this.spheres[s + 2];
+            float r = this.spheres[s + 3];
+            x0 = Math.min(x0, x - r);
+            y0 = Math.min(y0, y - r);
+            z0 = Math.min(z0, z - r);
+            x1 = Math.max(x1, x + r);
+            y1 = Math.max(y1, y + r);
+            z1 = Math.max(z1, z + r);
+        }
+        float margin = SLACK * Math.max(x1 - x0, Math.max(y1 - y0, z1 - z0));
+        this.minX[node] = x0 - margin;
+        this.minY[node] = y0 - margin;
+        this.minZ[node] = z0 - margin;
+        this.maxX[node] = x1 + margin;
+        this.maxY[node] = y1 + margin;
+        this.maxZ[node] = z1 + margin;
+    }
+
+    private float surfaceArea(int node) {
+        float dx = this.maxX[node] - this.minX[node];
+        float dy = this.maxY[node] - this.minY[node];
+        float dz = this.maxZ[node] - this.minZ[node];
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    /*
+     * Build the tree from scratch: split the bodies at the median of the
+     * longest axis of their centres until LEAF_SIZE or fewer are left
+     */
+    private void build(int count, ForkJoinPool pool, int cutoff) {
+        this.count = count;
+        if (this.order.length < count) {
+            this.order = new int[count];
+            this.leafOf = new int[count];
+            this.keys = new float[count];
+        }
+        for (int i = 0; i < count; i++) {
+            this.order[i] = i;
+        }
+        this.nodeCount = nodesFor(count);
+        allocateNodes(this.nodeCount);
+        run(pool, new TreeTask(TreeTask.SPLIT, 0, 0, count, cutoff, null, null));
+        this.rebuildCredit = 0;
+        this.builds++;
+    }
+
+    /*
+     * Number of nodes in the tree over count bodies. Every split halves, so
+     * this is all the shape of the tree depends on.
+     */
+    private static int nodesFor(int count) {
+        if (count <= LEAF_SIZE) {
+            return 1;
+        }
+        int half = count >>> 1;
+        int left = nodesFor(half);
+        return 1 + left + (count - half == half ? left : nodesFor(count - half));
+    }
+
+    /*
+     * Make node the root of a subtree for bodies first to end of order and
+     * return the index of the first node after the subtree
+     */
+    private int split(int node, int first, int end) {
+        int mid = partition(node, first, end);
+        if (mid < 0) {
+            return node + 1;
+        }
+        int right = split(node + 1, first, mid);
+        int next = split(right, mid, end);
+        this.nodeRight[node] = right;
+        this.nodeNext[node] = next;
+        return next;
+    }
+
+    /*
+     * Set up node for bodies first to end of order as a leaf, or reorder them
+     * about the median of their longest axis and return where the second half
+     * starts. Returns -1 for a leaf. Either way the node is left stale.
+     */
+    private int partition(int node, int first, int end) {
+        this.nodeFirst[node] = first;
+        this.nodeEnd[node] = end;
+        this.nodeRight[node] = -1;
+        this.nodeNext[node] = node + 1;
+        this.builtArea[node] = 0;
+        this.stale[node] = true;
+        if (end - first <= LEAF_SIZE) {
+            for (int slot = first; slot < end; slot++) {
+                this.leafOf[this.order[slot]] = node;
+            }
+            return -1;
+        }
+
+        // Longest axis of the centres
+        float x0 = Float.POSITIVE_INFINITY;
+        float y0 = Float.POSITIVE_INFINITY;
+        float z0 = Float.POSITIVE_INFINITY;
+        float x1 = Float.NEGATIVE_INFINITY;
+        float y1 = Float.NEGATIVE_INFINITY;
+        float z1 = Float.NEGATIVE_INFINITY;
+        for (int slot = first; slot < end; slot++) {
+            int s = this.order[slot] * 4;
+            x0 = Math.min(x0, this.spheres[s]);
+            y0 = Math.min(y0, this.spheres[s + 1]);
+            z0 = Math.min(z0, this.spheres[s + 2]);
+            x1 = Math.max(x1, this.spheres[s]);
+            y1 = Math.max(y1, this.spheres[s + 1]);
+            z1 = Math.max(z1, this.spheres[s + 2]);
+        }
+        int axis = x1 - x0 >= y1 - y0 && x1 - x0 >= z1 - z0 ? 0 : y1 - y0 >= z1 - z0 ? 1 : 2;
+        for (int slot = first; slot < end; slot++) {
+            this.keys[slot] = this.spheres[this.order[slot] * 4 + axis];
+        }
+
+        int mid = (first + end) >>> 1;
+        select(first, end - 1, mid);
+        return mid;
+    }
+
+    /*
+     * Partially sort order and keys from lo to hi (inclusive) so the slot k
+     * holds the key it would in sorted order, smaller keys before it and
+     * larger ones after it (Hoare's quickselect)
+     */
+    private void select(int lo, int hi, int k) {
+        while (lo < hi) {
+            float pivot = this.keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (this.keys[i] < pivot) {
+                    i++;
+                }
+                while (this.keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        float key = this.keys[a];
+        this.keys[a] = this.keys[b];
+        this.keys[b] = key;
+        int body = this.order[a];
+        this.order[a] = this.order[b];
+        this.order[b] = body;
+    }
+
+    private void allocateNodes(int capacity) {
+        if (capacity <= this.nodeRight.length) {
+            return;
+        }
+        this.nodeRight = Arrays.copyOf(this.nodeRight, capacity);
+        this.nodeNext = Arrays.copyOf(this.nodeNext, capacity);
+        this.builtArea = Arrays.copyOf(this.builtArea, capacity);
+        this.stale = Arrays.copyOf(this.stale, capacity);
+        this.nodeFirst = Arrays.copyOf(this.nodeFirst, capacity);
+        this.nodeEnd = Arrays.copyOf(this.nodeEnd, capacity);
+        this.minX = Arrays.copyOf(this.minX, capacity);
+        this.minY = Arrays.copyOf(this.minY, capacity);
+        this.minZ = Arrays.copyOf(this.minZ, capacity);
+        this.maxX = Arrays.copyOf(this.maxX, capacity);
+        this.maxY = Arrays.copyOf(this.maxY, capacity);
+        this.maxZ = Arrays.copyOf(this.maxZ, capacity);
+    }
+
+    /*
+     * The passes of an update over a range of bodies or a subtree: PACK copies
+     * the spheres of bodies from to to, PACK_AND_FLAG also flags the leaves
+     * they left, SPLIT builds the subtree at node for bodies from to to of
+     * order, and REFIT fits the stale boxes of the subtree at node. Ranges above
+     * the cutoff are halved, subtrees are split into their two children.
+     */
+    private class TreeTask extends RecursiveAction {
+        static final int PACK = 0;
+        static final int SPLIT = 1;
+        static final int REFIT = 2;
+        static final int PACK_AND_FLAG = 3;
+
+        private final int pass;
+        private final int node;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+        private final float[] matrices;
+        private final float[] radius;
+
+        TreeTask(int pass, int node, int from, int to, int cutoff, float[] matrices, float[] radius) {
+            this.pass = pass;
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.matrices = matrices;
+            this.radius = radius;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.cutoff) {
+                if (this.pass == PACK) {
+                    packSpheres(this.matrices, this.radius, this.from, this.to);
+                } else if (this.pass == PACK_AND_FLAG) {
+                    packAndFlag(this.matrices, this.radius, this.from, this.to);
+                } else if (this.pass == SPLIT) {
+                    split(this.node, this.from, this.to);
+                } else if (this.to > this.from) {
+                    refit(this.node);
+                }
+                return;
+            }
+            if (this.pass == PACK || this.pass == PACK_AND_FLAG) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new TreeTask(this.pass, 0, this.from, mid, this.cutoff, this.matrices, this.radius),
+                        new TreeTask(this.pass, 0, mid, this.to, this.cutoff, this.matrices, this.radius));
+            } else if (this.pass == SPLIT) {
+                // The children's places follow from their sizes, so both can be built at once
+                int mid = partition(this.node, this.from, this.to);
+                int right = this.node + 1 + nodesFor(mid - this.from);
+                nodeRight[this.node] = right;
+                nodeNext[this.node] = right + nodesFor(this.to - mid);
+                invokeAll(new TreeTask(SPLIT, this.node + 1, this.from, mid, this.cutoff, null, null),
+                        new TreeTask(SPLIT, right, mid, this.to, this.cutoff, null, null));
+            } else {
+                int left = this.node + 1;
+                int right = nodeRight[this.node];
+                invokeAll(new TreeTask(REFIT, left, nodeFirst[left], nodeEnd[left], this.cutoff, null, null),
+                        new TreeTask(REFIT, right, nodeFirst[right], nodeEnd[right], this.cutoff, null, null));
+                refitInner(this.node);
+            }
+        }
+    }
+}
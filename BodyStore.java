@@ -0,0 +1,428 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Structure of arrays holding every body of a simulation, one slot per body.
+ * Bodies are stored parent first, so a single forward pass can compose each
+ * body's position with its parent's. The per-frame update works only on these
+ * primitive arrays and allocates nothing. Large stores can be updated across
+ * a ForkJoinPool with update(timeNanos, pool).
+ */
+public class BodyStore {
+    public static final int MATRIX_FLOATS = 16;
+    public static final int NO_PARENT = -1;
+    public static final int ORBITAL_ELEMENT_BYTES = 20; // See writeOrbitalElements
+
+    // Parallel update tuning: below PARALLEL_THRESHOLD bodies the split costs more
+    // than it saves, and no task gets fewer than MIN_CHUNK bodies
+    public static final int PARALLEL_THRESHOLD = 8192;
+    private static final int MIN_CHUNK = 1024;
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final double TWO_PI = Math.PI * 2;
+    private static final double INV_TWO_PI = 1 / TWO_PI;
+
+    private int count;
+    private SinCosTable sinCosTable; // null to evaluate orbits and spins with Math.sin / Math.cos
+    private double[] orbitTurnsPerNano; // Per body reciprocals of the periods, only while a table is set
+    private double[] spinTurnsPerNano;
+
+    // Dirty flags: a body whose stamp equals pass had its local position
+    // change in the current update, and so did every body below it
+    private final int[] changed;
+    private int pass;
+    private boolean updated; // Whether updatedNanos holds the time of a previous update
+    private long updatedNanos;
+
+    // Orbital elements
+    final float[] radius;
+    final float[] rotationPeriod; // Seconds, +Infinity for bodies that do not spin
+    final float[] orbitalRadius;
+    final float[] orbitalPeriod; // Seconds, +Infinity for bodies that do not orbit
+    final int[] parent; // Index of the body orbited, NO_PARENT for the root
+
+    // Per-frame output
+    final float[] localX; // Position relative to the parent
+    final float[] localY;
+    final float[] localZ;
+    final float[] positionX; // World position
+    final float[] positionY;
+    final float[] positionZ;
+    final float[] rotationAngle; // Radians about the y axis
+    final float[] modelMatrices; // Column major, MATRIX_FLOATS per body
+
+    public BodyStore(int capacity) {
+        this.radius = new float[capacity];
+        this.rotationPeriod = new float[capacity];
+        this.orbitalRadius = new float[capacity];
+        this.orbitalPeriod = new float[capacity];
+        this.parent = new int[capacity];
+        this.localX = new float[capacity];
+        this.localY = new float[capacity];
+        this.localZ = new float[capacity];
+        this.positionX = new float[capacity];
+        this.positionY = new float[capacity];
+        this.positionZ = new float[capacity];
+        this.rotationAngle = new float[capacity];
+        this.modelMatrices = new float[capacity * MATRIX_FLOATS];
+        this.changed = new int[capacity];
+    }
+
+    /*
+     * Build a store from a stellar system, in the same order as
+     * StellarSystem.getBodies()
+     */
+    public static BodyStore from(StellarSystem stellarSystem) {
+        BodyStore store = new BodyStore(stellarSystem.getBodyCount());
+        List<CelestialObject> bodies = stellarSystem.getBodies();
+        for (int i = 0; i < bodies.size(); i++) {
+            int parent = stellarSystem.getParent(i);
+            store.add(bodies.get(i), parent == StellarSystem.NO_PARENT ? NO_PARENT : parent);
+        }
+        return store;
+    }
+
+    public int add(CelestialObject body, int parent) {
+        return add(body.radius, body.rotationPeriod, body.distanceFromSun, body.orbitalPeriod, parent);
+    }
+
+    /*
+     * Append a body and return its index. A parent must be added before its
+     * children, and a period of 0 means the body never moves in that respect.
+     */
+    public int add(float radius, float rotationPeriod, float orbitalRadius, float orbitalPeriod, int parent) {
+        if (parent >= this.count) {
+            throw new IllegalArgumentException("Parent " + parent + " has not been added yet");
+        }
+        int i = this.count++;
+        this.radius[i] = radius;
+        this.rotationPeriod[i] = rotationPeriod == 0 ? Float.POSITIVE_INFINITY : rotationPeriod;
+        this.orbitalRadius[i] = orbitalRadius;
+        this.orbitalPeriod[i] = orbitalPeriod == 0 ? Float.POSITIVE_INFINITY : orbitalPeriod;
+        this.parent[i] = parent;
+        if (this.sinCosTable != null) {
+            this.orbitTurnsPerNano[i] = reciprocal(this.orbitalPeriod[i]);
+            this.spinTurnsPerNano[i] = reciprocal(this.rotationPeriod[i]);
+        }
+
+        // Start at the orbit's zero phase
+        this.localX[i] = orbitalRadius;
+        this.positionX[i] = orbitalRadius + (parent != NO_PARENT ? this.positionX[parent] : 0);
+        this.positionY[i] = parent != NO_PARENT ? this.positionY[parent] : 0;
+        this.positionZ[i] = parent != NO_PARENT ? this.positionZ[parent] : 0;
+        writeModelMatrix(i);
+        this.changed[i] = this.pass + 1; // Placed again by the next update, whatever its time
+        this.updated = false;
+        return i;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public float[] getModelMatrices() {
+        return this.modelMatrices;
+    }
+
+    /*
+     * Evaluate orbits and spins by table lookup instead of Math.sin / Math.cos,
+     * or exactly again with null. Positions are then off by at most
+     * table.maxError() times the orbital radius.
+     */
+    public void setSinCosTable(SinCosTable table) {
+        this.sinCosTable = table;
+        this.orbitTurnsPerNano = table != null ? reciprocals(this.orbitalPeriod) : null;
+        this.spinTurnsPerNano = table != null ? reciprocals(this.rotationPeriod) : null;
+    }
+
+    /*
+     * reciprocal(period) for every body, sized to the capacity so bodies added
+     * later get theirs in add
+     */
+    private double[] reciprocals(float[] periods) {
+        double[] reciprocals = new double[periods.length];
+        for (int i = 0; i < this.count; i++) {
+            reciprocals[i] = reciprocal(periods[i]);
+        }
+        return reciprocals;
+    }
+
+    /*
+     * 1 / (period * 1e9), 0 for a body that never moves
+     */
+    private static double reciprocal(float period) {
+        return period == 0 || Float.isInfinite(period) ? 0 : 1 / (period * 1e9);
+    }
+
+    public SinCosTable getSinCosTable() {
+        return this.sinCosTable;
+    }
+
+    /*
+     * The fixed orbit of every body for evaluation on the GPU, one record of
+     * stride bytes per body starting at dest's position: radius,
+     * rotationPeriod, orbitalRadius, orbitalPeriod as floats and the parent as
+     * an int (ORBITAL_ELEMENT_BYTES in all, native order expected). Periods of
+     * bodies that never move are written as 0. Leaves dest's position after
+     * the last record.
+     */
+    public void writeOrbitalElements(ByteBuffer dest, int stride) {
+        int start = dest.position();
+        for (int i = 0; i < this.count; i++) {
+            int o = start + i * stride;
+            dest.putFloat(o, this.radius[i]);
+            dest.putFloat(o + 4, Float.isInfinite(this.rotationPeriod[i]) ? 0 : this.rotationPeriod[i]);
+            dest.putFloat(o + 8, this.orbitalRadius[i]);
+            dest.putFloat(o + 12, Float.isInfinite(this.orbitalPeriod[i]) ? 0 : this.orbitalPeriod[i]);
+            dest.putInt(o + 16, this.parent[i]);
+        }
+        dest.position(start + this.count * stride);
+    }
+
+    /*
+     * Move every body to where it is timeNanos nanoseconds after the start.
+     * Orbits and spins are parametrized on time, and each body's orbit is
+     * centred on its parent's position.
+     *
+     * Only what changed is recomputed. A body that does not orbit keeps its
+     * local position, and unless an ancestor moved its world position is
+     * skipped too; a body that does not spin keeps its angle. Updating to the
+     * time of the previous update, as a paused clock does, touches nothing.
+     */
+    public void update(long timeNanos) {
+        boolean timeChanged = beginUpdate(timeNanos);
+        if (timeChanged) {
+            updateLocal(timeNanos, 0, this.count);
+        }
+
+        // Parents come first, so their world positions and flags are final when a child is reached
+        int pass = this.pass;
+        for (int i = 0; i < this.count; i++) {
+            int p = this.parent[i];
+            boolean moved = this.changed[i] == pass || p != NO_PARENT && this.changed[p] == pass;
+            if (moved) {
+                this.changed[i] = pass;
+                if (p != NO_PARENT) {
+                    this.positionX[i] = this.localX[i] + this.positionX[p];
+                    this.positionY[i] = this.localY[i] + this.positionY[p];
+                    this.positionZ[i] = this.localZ[i] + this.positionZ[p];
+                } else {
+                    this.positionX[i] = this.localX[i];
+                    this.positionY[i] = this.localY[i];
+                    this.positionZ[i] = this.localZ[i];
+                }
+            }
+            if (moved || timeChanged && spins(i)) {
+                writeModelMatrix(i);
+            }
+        }
+    }
+
+    /*
+     * Start a new pass of the dirty flags and tell whether the time differs
+     * from the last update's
+     */
+    private boolean beginUpdate(long timeNanos) {
+        boolean timeChanged = !this.updated || timeNanos != this.updatedNanos;
+        this.updated = true;
+        this.updatedNanos = timeNanos;
+        this.pass++;
+        return timeChanged;
+    }
+
+    private boolean spins(int i) {
+        return !Float.isInfinite(this.rotationPeriod[i]);
+    }
+
+    private boolean orbits(int i) {
+        return !Float.isInfinite(this.orbitalPeriod[i]);
+    }
+
+    /*
+     * Same as update(timeNanos), split over the pool. The local pass runs over all
+     * bodies first; the world pass then sums each body's ancestor chain, so its
+     * chunks do not depend on each other. Returns once every body is updated.
+     */
+    public void update(long timeNanos, ForkJoinPool pool) {
+        if (this.count < PARALLEL_THRESHOLD || pool.getParallelism() < 2) {
+            update(timeNanos);
+            return;
+        }
+        if (!beginUpdate(timeNanos)) {
+            return;
+        }
+        int cutoff = Math.max(MIN_CHUNK, this.count / (pool.getParallelism() * CHUNKS_PER_WORKER));
+        pool.invoke(new UpdateTask(timeNanos, false, 0, this.count, cutoff));
+        pool.invoke(new UpdateTask(timeNanos, true, 0, this.count, cutoff));
+    }
+
+    /*
+     * Orbit and spin relative to the parent, independent per body. Bodies that
+     * orbit are flagged as changed in the current pass.
+     */
+    private void updateLocal(long timeNanos, int from, int to) {
+        if (this.sinCosTable != null) {
+            updateLocalFromTable(timeNanos, from, to);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            if (orbits(i)) {
+                double orbit = Ephemeris.angle(timeNanos, this.orbitalPeriod[i]);
+                this.localX[i] = (float) (Math.cos(orbit) * this.orbitalRadius[i]);
+                this.localY[i] = 0;
+                this.localZ[i] = (float) (Math.sin(orbit) * this.orbitalRadius[i]);
+                this.changed[i] = this.pass;
+            }
+            if (spins(i)) {
+                this.rotationAngle[i] = Ephemeris.rotationAngle(timeNanos, this.rotationPeriod[i]);
+            }
+        }
+    }
+
+    /*
+     * updateLocal through the sine table. Phases use the precomputed period
+     * reciprocals and are already in turns, so no angle is formed and nothing is
+     * divided.
+     */
+    private void updateLocalFromTable(long timeNanos, int from, int to) {
+        SinCosTable table = this.sinCosTable;
+        for (int i = from; i < to; i++) {
+            if (this.orbitTurnsPerNano[i] != 0) {
+                double orbit = Ephemeris.phase(timeNanos, this.orbitalPeriod[i] * 1e9, this.orbitTurnsPerNano[i]);
+                this.localX[i] = table.cos(orbit) * this.orbitalRadius[i];
+                this.localY[i] = 0;
+                this.localZ[i] = table.sin(orbit) * this.orbitalRadius[i];
+                this.changed[i] = this.pass;
+            }
+            if (this.spinTurnsPerNano[i] != 0) {
+                double spin = Ephemeris.phase(timeNanos, this.rotationPeriod[i] * 1e9, this.spinTurnsPerNano[i]);
+                this.rotationAngle[i] = (float) (spin * TWO_PI);
+            }
+        }
+    }
+
+    /*
+     * World position from the local positions of the body and its ancestors,
+     * for chunks that cannot wait on each other. Bodies whose chain holds no
+     * changed body keep their position.
+     */
+    private void updateWorld(int from, int to) {
+        int pass = this.pass;
+        for (int i = from; i < to; i++) {
+            float x = this.localX[i];
+            float y = this.localY[i];
+            float z = this.localZ[i];
+            boolean moved = this.changed[i] == pass;
+            for (int p = this.parent[i]; p != NO_PARENT; p = this.parent[p]) {
+                x += this.localX[p];
+                y += this.localY[p];
+                z += this.localZ[p];
+                moved |= this.changed[p] == pass;
+            }
+            if (moved) {
+                this.positionX[i] = x;
+                this.positionY[i] = y;
+                this.positionZ[i] = z;
+            }
+            if (moved || spins(i)) {
+                writeModelMatrix(i);
+            }
+        }
+    }
+
+    /*
+     * Take world positions computed elsewhere, for example by GravitySystem, for
+     * bodies from to to. Spins still follow the rotation periods, and the local
+     * positions are left as they are.
+     */
+    void place(long timeNanos, double[] x, double[] y, double[] z, int from, int to) {
+        for (int i = from; i < to; i++) {
+            this.positionX[i] = (float) x[i];
+            this.positionY[i] = (float) y[i];
+            this.positionZ[i] = (float) z[i];
+            this.rotationAngle[i] = Ephemeris.rotationAngle(timeNanos, this.rotationPeriod[i]);
+            writeModelMatrix(i);
+        }
+    }
+
+    /*
+     * Splits a range of bodies in half until it is below the cutoff
+     */
+    private class UpdateTask extends RecursiveAction {
+        private final long timeNanos;
+        private final boolean world;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+
+        UpdateTask(long timeNanos, boolean world, int from, int to, int cutoff) {
+            this.timeNanos = timeNanos;
+            this.world = world;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.cutoff) {
+                if (this.world) {
+                    updateWorld(this.from, this.to);
+                } else {
+                    updateLocal(this.timeNanos, this.from, this.to);
+                }
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new UpdateTask(this.timeNanos, this.world, this.from, mid, this.cutoff),
+                    new UpdateTask(this.timeNanos, this.world, mid, this.to, this.cutoff));
+        }
+    }
+
+    void writeModelMatrix(int i) {
+        float cos;
+        float sin;
+        if (this.sinCosTable != null) {
+            double turns = this.rotationAngle[i] * INV_TWO_PI;
+            cos = this.sinCosTable.cos(turns);
+            sin = this.sinCosTable.sin(turns);
+        } else {
+            cos = (float) Math.cos(this.rotationAngle[i]);
+            sin = (float) Math.sin(this.rotationAngle[i]);
+        }
+        writeModelMatrix(this.modelMatrices, i * MATRIX_FLOATS, this.radius[i], cos, sin, this.positionX[i],
+                this.positionY[i], this.positionZ[i]);
+    }
+
+    /*
+     * translate * rotateY * scale, written column major to m at offset o
+     */
+    static void writeModelMatrix(float[] m, int o, float radius, float angle, float x, float y, float z) {
+        writeModelMatrix(m, o, radius, (float) Math.cos(angle), (float) Math.sin(angle), x, y, z);
+    }
+
+    /*
+     * Same as writeModelMatrix(m, o, radius, angle, x, y, z) with the angle's
+     * cosine and sine already known
+     */
+    static void writeModelMatrix(float[] m, int o, float radius, float cos, float sin, float x, float y,
+            float z) {
+        m[o] = cos * radius;
+        m[o + 1] = 0;
+        m[o + 2] = -sin * radius;
+        m[o + 3] = 0;
+        m[o + 4] = 0;
+        m[o + 5] = radius;
+        m[o + 6] = 0;
+        m[o + 7] = 0;
+        m[o + 8] = sin * radius;
+        m[o + 9] = 0;
+        m[o + 10] = cos * radius;
+        m[o + 11] = 0;
+        m[o + 12] = x;
+        m[o + 13] = y;
+        m[o + 14] = z;
+        m[o + 15] = 1;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * A class designed generalize and bundle all attributes of all celestial
+ * objects present in the model and produced from the .sol file. The per-frame
+ * transforms live in the simulation's BodyStore.
+ */
+public class CelestialObject {
+    public String texture; // Texture of the object
+    public float radius; // The radius of the object
+    public float rotationPeriod; // Rotation in seconds
+    public float distanceFromSun; // Distance from the center of the sun to the center of the celestial object
+    public float orbitalPeriod; // Orbit time in seconds
+    public float specularShine; // The specular shine of the object (0 being no specular component)
+    public String model; // OBJ drawn in place of the sphere, null for a sphere
+
+    // Constructor for the systems sun
+    CelestialObject(String texture, float radius, float rotationPeriod) {
+        this.texture = texture;
+        this.radius = radius;
+        this.rotationPeriod = rotationPeriod;
+    }
+
+    // Constructor for planets and moons
+    CelestialObject(String texture, float radius, float rotationPeriod,
+            float distanceFromSun, float orbitalPeriod, float specularShine) {
+        this.texture = texture;
+        this.radius = radius;
+        this.rotationPeriod = rotationPeriod;
+        this.distanceFromSun = distanceFromSun;
+        this.orbitalPeriod = -orbitalPeriod; // Negative to go counter counterclockwise when positive
+        this.specularShine = specularShine;
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+
+/**
+ * Headless timing of frustum culling. Moves a stellar system through a number
+ * of frames and each frame refits the BodyBvh and culls it against a camera
+ * looking at the sun from above, as SolarSystem's default view does. Reports
+ * refit and cull times, visible and culled counts, and checks the result
+ * against testing every body's sphere directly.
+ *
+ * Usage: java CullingBenchmark [solFile | bodyCount] [frames]
+ */
+public class CullingBenchmark {
+    private static final int DEFAULT_BODIES = 1_000_000;
+    private static final int DEFAULT_FRAMES = 100;
+    private static final float FRAME_SECONDS = 1 / 60f;
+
+    public static void main(String[] args) throws IOException {
+        StellarSystem stellarSystem;
+        if (args.length > 0 && !args[0].matches("\\d+")) {
+            stellarSystem = SolFile.read(args[0]).stellarSystem;
+        } else {
+            stellarSystem = OrbitBenchmark.generate(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BODIES);
+        }
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_FRAMES;
+
+        Simulation simulation = new Simulation(stellarSystem);
+        BodyStore bodies = simulation.getBodies();
+        int count = bodies.size();
+        Matrix4f projectionView = new Matrix4f().perspective((float) Math.toRadians(60.0f), 1000f / 600f, 0.1f, 1000.0f)
+                .lookAt(0, 300, 300, 0, 0, 0, 0, 1, 0).scale(stellarSystem.sun.radius);
+
+        BodyBvh bvh = new BodyBvh();
+        int[] visible = new int[count];
+        long updateNanos = 0;
+        long cullNanos = 0;
+        long visibleTotal = 0;
+        for (int i = 0; i < 2 * frames; i++) {
+            simulation.advanceTo(i * FRAME_SECONDS);
+            bvh.update(bodies.getModelMatrices(), bodies.radius, count, ForkJoinPool.commonPool());
+            int visibleCount = bvh.cull(projectionView, visible);
+            if (i >= frames) { // The first half warms up
+                updateNanos += bvh.getUpdateNanos();
+                cullNanos += bvh.getCullNanos();
+                visibleTotal += visibleCount;
+            }
+        }
+        System.out.printf("%d bodies, %d nodes, %d subtrees rebuilt: update %.3f ms, cull %.3f ms per frame%n", count,
+                bvh.getNodeCount(), bvh.getRebuilds(), updateNanos / 1e6 / frames, cullNanos / 1e6 / frames);
+        System.out.printf("%d visible, %d culled, %d nodes visited in the last frame (%.0f visible on average)%n",
+                bvh.getVisibleCount(), bvh.getCulledCount(), bvh.getNodesVisited(), (double) visibleTotal / frames);
+
+        // Every body's sphere tested on its own must give the same set
+        FrustumIntersection frustum = new FrustumIntersection(projectionView);
+        float[] matrices = bodies.getModelMatrices();
+        boolean[] expected = new boolean[count];
+        int expectedCount = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int m = i * BodyStore.MATRIX_FLOATS;
+            expected[i] = frustum.testSphere(matrices[m + 12], matrices[m + 13], matrices[m + 14], bodies.radius[i]);
+            expectedCount += expected[i] ? 1 : 0;
+        }
+        long bruteNanos = System.nanoTime() - start;
+        int mismatches = Math.abs(expectedCount - bvh.getVisibleCount());
+        for (int i = 0; i < bvh.getVisibleCount(); i++) {
+            mismatches += expected[visible[i]] ? 0 : 1;
+        }
+        System.out.printf("testing every sphere: %.3f ms, %d mismatches%n", bruteNanos / 1e6, mismatches);
+    }
+}
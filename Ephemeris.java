@@ -0,0 +1,134 @@
+import org.joml.Vector3f;
+
+/**
+ * Closed-form orbit and spin evaluation. Every method is a pure function of its
+ * arguments and writes its result into a caller-supplied destination, so it
+ * can be called from any number of threads at once without locking.
+ *
+ * Orbits are circles in the xz plane and spins are about the y axis. A period
+ * of 0 or infinity means no motion.
+ */
+public final class Ephemeris {
+    private static final double TWO_PI = Math.PI * 2;
+
+    // private constructor prevents instantiation (static only)
+    private Ephemeris() {
+    }
+
+    /*
+     * Fraction of the period completed at the given time, in (-1, 1) with the
+     * sign of time / period
+     */
+    public static float phase(float time, float period) {
+        if (period == 0) {
+            return 0;
+        }
+        return (time % period) / period;
+    }
+
+    /*
+     * Double precision phase for long time spans, see phase(float, float)
+     */
+    public static double phase(double time, double period) {
+        if (period == 0) {
+            return 0;
+        }
+        return (time % period) / period;
+    }
+
+    /*
+     * Phase for a time in nanoseconds, as accurate after centuries of simulated
+     * time as after a second. A float period times 1e9 fits a double exactly,
+     * and the remainder is taken with a fused multiply-add against the time
+     * split into two doubles, so nothing is rounded before the reduction.
+     */
+    public static double phase(long timeNanos, float period) {
+        if (period == 0 || Float.isInfinite(period)) {
+            return 0;
+        }
+        double periodNanos = period * 1e9;
+        double high = (double) timeNanos;
+        double low = (double) (timeNanos - (long) high);
+        double turns = high / periodNanos;
+        turns = turns < 0 ? Math.ceil(turns) : Math.floor(turns);
+        return (Math.fma(-turns, periodNanos, high) + low) / periodNanos;
+    }
+
+    /*
+     * phase(timeNanos, period) for callers that evaluate the same period many
+     * times: periodNanos is period * 1e9 and turnsPerNano its reciprocal, which
+     * replaces both divisions with multiplications. The result may fall just
+     * outside [0, 1) (or (-1, 0]) by a rounding error. A turnsPerNano of 0
+     * means no motion.
+     */
+    public static double phase(long timeNanos, double periodNanos, double turnsPerNano) {
+        if (turnsPerNano == 0) {
+            return 0;
+        }
+        double high = (double) timeNanos;
+        double low = (double) (timeNanos - (long) high);
+        double turns = high * turnsPerNano;
+        turns = turns < 0 ? Math.ceil(turns) : Math.floor(turns);
+        return (Math.fma(-turns, periodNanos, high) + low) * turnsPerNano;
+    }
+
+    /*
+     * Angle in radians swept after time seconds by something with the given
+     * period. Used for both orbits and spins.
+     */
+    public static double angle(float time, float period) {
+        return TWO_PI * phase(time, period);
+    }
+
+    public static double angle(double time, double period) {
+        return TWO_PI * phase(time, period);
+    }
+
+    public static double angle(long timeNanos, float period) {
+        return TWO_PI * phase(timeNanos, period);
+    }
+
+    /*
+     * Position relative to the orbit's centre, written as x, y, z at dest[offset]
+     */
+    public static void orbitalPosition(float time, float period, float radius, float[] dest, int offset) {
+        double angle = angle(time, period);
+        dest[offset] = (float) (Math.cos(angle) * radius);
+        dest[offset + 1] = 0;
+        dest[offset + 2] = (float) (Math.sin(angle) * radius);
+    }
+
+    public static Vector3f orbitalPosition(float time, float period, float radius, Vector3f dest) {
+        double angle = angle(time, period);
+        return dest.set((float) (Math.cos(angle) * radius), 0, (float) (Math.sin(angle) * radius));
+    }
+
+    /*
+     * Spin about the y axis in radians
+     */
+    public static float rotationAngle(float time, float period) {
+        return (float) angle(time, period);
+    }
+
+    public static float rotationAngle(long timeNanos, float period) {
+        return (float) angle(timeNanos, period);
+    }
+
+    /*
+     * World position of a body of the store at an arbitrary time, written as x, y,
+     * z at dest[offset]. Only reads the store's orbital elements, never its
+     * per-frame state, so it is safe to call while the store is being updated.
+     */
+    public static void worldPosition(BodyStore bodies, int body, float time, float[] dest, int offset) {
+        float x = 0;
+        float z = 0;
+        for (int b = body; b != BodyStore.NO_PARENT; b = bodies.parent[b]) {
+            double angle = angle(time, bodies.orbitalPeriod[b]);
+            x += (float) (Math.cos(angle) * bodies.orbitalRadius[b]);
+            z += (float) (Math.sin(angle) * bodies.orbitalRadius[b]);
+        }
+        dest[offset] = x;
+        dest[offset + 1] = 0;
+        dest[offset + 2] = z;
+    }
+}
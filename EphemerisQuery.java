@@ -0,0 +1,161 @@
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Batch position queries over a BodyStore at arbitrary times, for analytics
+ * that need many bodies at many timestamps. Time samples are independent and
+ * are split across a ForkJoinPool; the orbit parametrisation is the one in
+ * Ephemeris, evaluated in double precision so far-off times stay accurate.
+ *
+ * Results are laid out time major: the position of bodyIds[b] at times[t] is
+ * x, y, z at ((t * bodyIds.length) + b) * 3.
+ */
+public class EphemerisQuery {
+    private static final int MIN_CHUNK_WORK = 4096; // Body evaluations per task, at least
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private final BodyStore bodies;
+    private final ForkJoinPool pool;
+
+    public EphemerisQuery(BodyStore bodies) {
+        this(bodies, ForkJoinPool.commonPool());
+    }
+
+    public EphemerisQuery(BodyStore bodies, ForkJoinPool pool) {
+        this.bodies = bodies;
+        this.pool = pool;
+    }
+
+    /*
+     * Positions of the given bodies at each time, in seconds since the start
+     */
+    public void positionsAt(double[] times, int[] bodyIds, float[] dest) {
+        checkSize(times, bodyIds, dest.length);
+        run(times, bodyIds, new Sink() {
+            @Override
+            public void put(int index, double x, double y, double z) {
+                dest[index] = (float) x;
+                dest[index + 1] = (float) y;
+                dest[index + 2] = (float) z;
+            }
+        });
+    }
+
+    /*
+     * Same as the float[] version, written with absolute puts from the buffer's
+     * current position, which is left unchanged
+     */
+    public void positionsAt(double[] times, int[] bodyIds, DoubleBuffer dest) {
+        checkSize(times, bodyIds, dest.remaining());
+        int base = dest.position();
+        run(times, bodyIds, new Sink() {
+            @Override
+            public void put(int index, double x, double y, double z) {
+                dest.put(base + index, x);
+                dest.put(base + index + 1, y);
+                dest.put(base + index + 2, z);
+            }
+        });
+    }
+
+    public void positionsAt(long[] timesMillis, int[] bodyIds, float[] dest) {
+        double[] times = new double[timesMillis.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = timesMillis[i] / 1000.0;
+        }
+        positionsAt(times, bodyIds, dest);
+    }
+
+    private void checkSize(double[] times, int[] bodyIds, int available) {
+        long needed = (long) times.length * bodyIds.length * 3;
+        if (available < needed) {
+            throw new IllegalArgumentException("Destination holds " + available + " values, " + needed + " needed");
+        }
+        for (int body : bodyIds) {
+            if (body < 0 || body >= this.bodies.size()) {
+                throw new IndexOutOfBoundsException("No body " + body);
+            }
+        }
+    }
+
+    private void run(double[] times, int[] bodyIds, Sink sink) {
+        // Flatten each requested body's ancestor chain once for all samples
+        int[] chainStart = new int[bodyIds.length + 1];
+        int length = 0;
+        for (int b = 0; b < bodyIds.length; b++) {
+            chainStart[b] = length;
+            for (int p = bodyIds[b]; p != BodyStore.NO_PARENT; p = this.bodies.parent[p]) {
+                length++;
+            }
+        }
+        chainStart[bodyIds.length] = length;
+        int[] chain = new int[length];
+        for (int b = 0, c = 0; b < bodyIds.length; b++) {
+            for (int p = bodyIds[b]; p != BodyStore.NO_PARENT; p = this.bodies.parent[p]) {
+                chain[c++] = p;
+            }
+        }
+
+        int perTask = Math.max(1, MIN_CHUNK_WORK / Math.max(1, length));
+        int cutoff = Math.max(perTask, times.length / (this.pool.getParallelism() * CHUNKS_PER_WORKER));
+        QueryTask task = new QueryTask(times, chainStart, chain, sink, 0, times.length, cutoff);
+        if (times.length <= cutoff) {
+            task.compute();
+        } else {
+            this.pool.invoke(task);
+        }
+    }
+
+    private interface Sink {
+        void put(int index, double x, double y, double z);
+    }
+
+    /*
+     * Splits a range of time samples in half until it is below the cutoff
+     */
+    private class QueryTask extends RecursiveAction {
+        private final double[] times;
+        private final int[] chainStart;
+        private final int[] chain;
+        private final Sink sink;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+
+        QueryTask(double[] times, int[] chainStart, int[] chain, Sink sink, int from, int to, int cutoff) {
+            this.times = times;
+            this.chainStart = chainStart;
+            this.chain = chain;
+            this.sink = sink;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > this.cutoff) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new QueryTask(this.times, this.chainStart, this.chain, this.sink, this.from, mid, this.cutoff),
+                        new QueryTask(this.times, this.chainStart, this.chain, this.sink, mid, this.to, this.cutoff));
+                return;
+            }
+            int bodyCount = this.chainStart.length - 1;
+            for (int t = this.from; t < this.to; t++) {
+                double time = this.times[t];
+                for (int b = 0; b < bodyCount; b++) {
+                    double x = 0;
+                    double z = 0;
+                    for (int c = this.chainStart[b]; c < this.chainStart[b + 1]; c++) {
+                        int body = this.chain[c];
+                        double angle = Ephemeris.angle(time, bodies.orbitalPeriod[body]);
+                        x += Math.cos(angle) * bodies.orbitalRadius[body];
+                        z += Math.sin(angle) * bodies.orbitalRadius[body];
+                    }
+                    this.sink.put((t * bodyCount + b) * 3, x, 0, z);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,724 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Finds transits, eclipses and alignments of the bodies of a BodyStore over a
+ * time window without stepping through it.
+ *
+ * Orbits are circular, coplanar and all start at phase 0, so the angle between
+ * two bodies changes linearly in time and every transit or eclipse of a pair
+ * happens at a closed-form arithmetic progression of times. Each pair becomes
+ * a cursor over its progression and the cursors are merged through a priority
+ * queue, so the cost is proportional to the pairs considered plus the events
+ * produced, not to the length of the window. Sibling pairs are pruned through
+ * an index of siblings sorted by orbital radius, so pairs that cannot show a
+ * transit of the requested apparent size are never looked at, and the pairs
+ * that remain only get a cursor once the window reaches their first transit.
+ * How long a transit lasts depends on how far away it is watched from, so the
+ * contact times are found by root finding on the true geometry.
+ *
+ * Alignments involve many bodies at once and are found per sibling group by
+ * sweeping the window with the largest step that cannot skip over one, then
+ * refining each candidate with a golden-section search on the group's spread.
+ *
+ * Events are produced lazily in time order through events() or detect().
+ */
+public class EventDetector {
+    private static final double TWO_PI = Math.PI * 2;
+    private static final double GOLDEN = (Math.sqrt(5) - 1) / 2;
+    private static final int REFINE_ITERATIONS = 40;
+    private static final int CONTACT_ITERATIONS = 100;
+    private static final double CONTACT_TOLERANCE = 1e-14; // Relative to the half width
+    public static final double DEFAULT_MIN_APPARENT_SIZE = Math.toRadians(1.0 / 60); // About what an eye resolves
+
+    public enum Type {
+        TRANSIT, // body crosses the disc of other, as seen from observer
+        ECLIPSE, // body (a moon) passes through the shadow of other (its planet)
+        ALIGNMENT // bodies line up on one side of their common parent
+    }
+
+    /*
+     * A detected event. start and end bound the time the discs overlap (for
+     * transits and eclipses) or the bodies stay within tolerance (alignments);
+     * time is the moment of closest approach.
+     */
+    public static class OrbitalEvent {
+        public final Type type;
+        public final double time;
+        public final double start;
+        public final double end;
+        public final int body;
+        public final int other;
+        public final int observer; // BodyStore.NO_PARENT when not applicable
+        public final int[] aligned; // Bodies of an alignment, null otherwise
+
+        OrbitalEvent(Type type, double time, double start, double end, int body, int other, int observer,
+                int[] aligned) {
+            this.type = type;
+            this.time = time;
+            this.start = start;
+            this.end = end;
+            this.body = body;
+            this.other = other;
+            this.observer = observer;
+            this.aligned = aligned;
+        }
+
+        @Override
+        public String toString() {
+            if (this.type == Type.ALIGNMENT) {
+                return String.format("%.3f %s of %s", this.time, this.type, Arrays.toString(this.aligned));
+            }
+            return String.format("%.3f %s body %d / %d seen from %d (%.3f - %.3f)", this.time, this.type, this.body,
+                    this.other, this.observer, this.start, this.end);
+        }
+    }
+
+    private final BodyStore bodies;
+    private final double[] angularVelocity; // Radians per second, signed
+    private final int[][] children;
+
+    private double minApparentSize = DEFAULT_MIN_APPARENT_SIZE; // Radians, 0 considers every sibling pair
+    private int alignmentMinBodies = 0; // 0 disables alignment search
+    private double alignmentTolerance;
+
+    public EventDetector(BodyStore bodies) {
+        this.bodies = bodies;
+        int n = bodies.size();
+        this.angularVelocity = new double[n];
+        int[] childCount = new int[n];
+        for (int i = 0; i < n; i++) {
+            float period = bodies.orbitalPeriod[i];
+            this.angularVelocity[i] = period == 0 || Float.isInfinite(period) ? 0 : TWO_PI / period;
+            if (bodies.parent[i] != BodyStore.NO_PARENT) {
+                childCount[bodies.parent[i]]++;
+            }
+        }
+        this.children = new int[n][];
+        for (int i = 0; i < n; i++) {
+            this.children[i] = new int[childCount[i]];
+            childCount[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int p = bodies.parent[i];
+            if (p != BodyStore.NO_PARENT) {
+                this.children[p][childCount[p]++] = i;
+            }
+        }
+    }
+
+    /*
+     * Only report sibling transits where the transiting body looks at least this
+     * wide (in radians) from the observer. Raising it prunes sibling pairs, 0
+     * considers all of them, which is quadratic in the size of a sibling group.
+     */
+    public EventDetector setMinApparentSize(double radians) {
+        this.minApparentSize = radians;
+        return this;
+    }
+
+    /*
+     * Report times when at least minBodies siblings lie within tolerance radians
+     * of a common direction from their parent. minBodies below 2 disables it.
+     */
+    public EventDetector setAlignment(int minBodies, double toleranceRadians) {
+        this.alignmentMinBodies = minBodies;
+        this.alignmentTolerance = toleranceRadians;
+        return this;
+    }
+
+    /*
+     * Stream every event with its closest approach in [from, to] to the
+     * callback, in time order
+     */
+    public void detect(double from, double to, Consumer<OrbitalEvent> callback) {
+        Iterator<OrbitalEvent> events = events(from, to);
+        while (events.hasNext()) {
+            callback.accept(events.next());
+        }
+    }
+
+    /*
+     * Lazily produce every event with its closest approach in [from, to], in
+     * time order
+     */
+    public Iterator<OrbitalEvent> events(double from, double to) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>();
+        addMoonCursors(queue, from, to);
+        addSiblingCursors(queue, from, to);
+        if (this.alignmentMinBodies >= 2) {
+            for (int parent = 0; parent < this.children.length; parent++) {
+                if (this.children[parent].length >= this.alignmentMinBodies) {
+                    offer(queue, new AlignmentCursor(parent, from, to));
+                }
+            }
+        }
+        return new Iterator<OrbitalEvent>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public OrbitalEvent next() {
+                Cursor cursor = queue.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                OrbitalEvent event = cursor.current();
+                cursor.advance();
+                offer(queue, cursor);
+                return event;
+            }
+        };
+    }
+
+    private static void offer(PriorityQueue<Cursor> queue, Cursor cursor) {
+        if (cursor.current() != null) {
+            queue.add(cursor);
+        }
+    }
+
+    /*
+     * A moon transits its planet (as seen from the sun) when it is on the sun
+     * side of the planet and is eclipsed on the far side. Only moons of bodies
+     * that orbit the root are lit that simply.
+     */
+    private void addMoonCursors(PriorityQueue<Cursor> queue, double from, double to) {
+        for (int moon = 0; moon < this.bodies.size(); moon++) {
+            int planet = this.bodies.parent[moon];
+            if (planet == BodyStore.NO_PARENT) {
+                continue;
+            }
+            int sun = this.bodies.parent[planet];
+            if (sun == BodyStore.NO_PARENT || this.bodies.parent[sun] != BodyStore.NO_PARENT) {
+                continue;
+            }
+            double w = this.angularVelocity[moon] - this.angularVelocity[planet];
+            double transit = halfWidth(this.bodies.radius[planet], this.bodies.radius[moon],
+                    this.bodies.orbitalRadius[moon], this.bodies.orbitalRadius[planet]);
+            if (!Double.isNaN(transit)) {
+                offer(queue, new PairCursor(Type.TRANSIT, moon, planet, sun, w, Math.PI, transit, from, to));
+            }
+            // The shadow is taken as a cylinder, as if the sun were infinitely far
+            double eclipse = halfWidth(this.bodies.radius[planet], this.bodies.radius[moon],
+                    this.bodies.orbitalRadius[moon], Double.POSITIVE_INFINITY);
+            if (!Double.isNaN(eclipse)) {
+                offer(queue, new PairCursor(Type.ECLIPSE, moon, planet, sun, w, 0, eclipse, from, to));
+            }
+        }
+    }
+
+    /*
+     * An inner sibling transits the parent as seen from an outer sibling when the
+     * two are at the same angle. Siblings are sorted by orbital radius, so for
+     * each observer only the inner siblings close enough to look at least
+     * minApparentSize wide are visited, and those are handed to a SiblingCursor
+     * rather than each getting a cursor up front.
+     */
+    private void addSiblingCursors(PriorityQueue<Cursor> queue, double from, double to) {
+        for (int parent = 0; parent < this.children.length; parent++) {
+            int[] siblings = this.children[parent].clone();
+            if (siblings.length < 2) {
+                continue;
+            }
+            // Sort by orbital radius
+            long[] keyed = new long[siblings.length];
+            float maxRadius = 0;
+            for (int i = 0; i < siblings.length; i++) {
+                keyed[i] = ((long) Float.floatToIntBits(this.bodies.orbitalRadius[siblings[i]]) << 32)
+                        | siblings[i];
+                maxRadius = Math.max(maxRadius, this.bodies.radius[siblings[i]]);
+            }
+            Arrays.sort(keyed);
+            float[] distance = new float[siblings.length];
+            for (int i = 0; i < siblings.length; i++) {
+                siblings[i] = (int) keyed[i];
+                distance[i] = this.bodies.orbitalRadius[siblings[i]];
+            }
+
+            for (int o = 1; o < siblings.length; o++) {
+                int first = 0;
+                if (this.minApparentSize > 0) {
+                    // 2 r / (d_observer - d) >= size  =>  d >= d_observer - 2 r / size
+                    float nearest = (float) (distance[o] - 2 * maxRadius / this.minApparentSize);
+                    first = lowerBound(distance, nearest, o);
+                }
+                offer(queue, new SiblingCursor(queue, parent, siblings, distance, first, o, from, to));
+            }
+        }
+    }
+
+    private static int lowerBound(float[] sorted, float value, int limit) {
+        int lo = 0;
+        int hi = limit;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Half the relative angle over which a body of radius r orbiting at distance d
+     * overlaps the disc of radius R at the centre of its orbit, as seen from an
+     * observer going round the same centre at distance D. At relative angle t the
+     * observer sees the body atan2(d sin t, D - d cos t) from the centre, and the
+     * discs touch when that equals asin(R / D) + asin(r / s), s being how far the
+     * body is from the observer. The separation grows until cos t = d / D and the
+     * threshold shrinks meanwhile, so that angle brackets the single contact,
+     * which is found by false position. An infinitely distant observer has the
+     * closed form asin((R + r) / d). NaN when the discs never separate or the
+     * observer is not outside the body's orbit.
+     */
+    private static double halfWidth(double R, double r, double d, double D) {
+        if (Double.isInfinite(D)) {
+            return d <= R + r ? Double.NaN : Math.asin((R + r) / d);
+        }
+        if (d >= D) {
+            return Double.NaN;
+        }
+        double lo = 0;
+        double hi = Math.acos(d / D);
+        double fLo = contactGap(R, r, d, D, lo);
+        double fHi = contactGap(R, r, d, D, hi);
+        if (!(fHi > 0)) {
+            return Double.NaN;
+        }
+        // Illinois variant, halving the stale end so both ends close in
+        int side = 0;
+        for (int i = 0; i < CONTACT_ITERATIONS && hi - lo > CONTACT_TOLERANCE * hi; i++) {
+            double t = (lo * fHi - hi * fLo) / (fHi - fLo);
+            double f = contactGap(R, r, d, D, t);
+            if (f == 0) {
+                return t;
+            }
+            if (f < 0) {
+                lo = t;
+                fLo = f;
+                if (side < 0) {
+                    fHi /= 2;
+                }
+                side = -1;
+            } else {
+                hi = t;
+                fHi = f;
+                if (side > 0) {
+                    fLo /= 2;
+                }
+                side = 1;
+            }
+        }
+        return (lo + hi) / 2;
+    }
+
+    /*
+     * How far apart the edges of the two discs look at relative angle t,
+     * negative while they overlap
+     */
+    private static double contactGap(double R, double r, double d, double D, double t) {
+        double x = D - d * Math.cos(t);
+        double y = d * Math.sin(t);
+        double separation = Math.atan2(y, x);
+        return separation - Math.asin(R / D) - Math.asin(Math.min(1, r / Math.sqrt(x * x + y * y)));
+    }
+
+    /*
+     * A lazily advanced source of events, ordered by its current event
+     */
+    private abstract static class Cursor implements Comparable<Cursor> {
+        abstract OrbitalEvent current();
+
+        abstract void advance();
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Double.compare(current().time, other.current().time);
+        }
+    }
+
+    /*
+     * Events of a pair whose relative angle is w * t: they happen whenever that
+     * angle equals target, i.e. every 2 pi / |w| seconds
+     */
+    private static class PairCursor extends Cursor {
+        private final Type type;
+        private final int body;
+        private final int other;
+        private final int observer;
+        private final double period;
+        private final double offset;
+        private final double halfDuration;
+        private final double to;
+        private long k;
+        private OrbitalEvent current;
+
+        PairCursor(Type type, int body, int other, int observer, double w, double target, double halfWidth,
+                double from, double to) {
+            this.type = type;
+            this.body = body;
+            this.other = other;
+            this.observer = observer;
+            this.to = to;
+            if (w == 0) {
+                // Fixed relative angle, either always or never overlapping
+                this.period = Double.POSITIVE_INFINITY;
+                this.offset = 0;
+                this.halfDuration = 0;
+                return;
+            }
+            this.period = TWO_PI / Math.abs(w);
+            this.offset = offset(w, target, this.period);
+            this.halfDuration = halfWidth / Math.abs(w);
+            this.k = firstIndex(this.offset, this.period, from);
+            emit();
+        }
+
+        /*
+         * Time of the first event at or after from, the one a cursor built with
+         * the same arguments starts at. Infinite when w is 0.
+         */
+        static double firstTime(double w, double target, double from) {
+            if (w == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double period = TWO_PI / Math.abs(w);
+            double offset = offset(w, target, period);
+            return offset + firstIndex(offset, period, from) * period;
+        }
+
+        private static double offset(double w, double target, double period) {
+            return (((target / w) % period) + period) % period;
+        }
+
+        private static long firstIndex(double offset, double period, double from) {
+            return (long) Math.ceil((from - offset) / period);
+        }
+
+        private void emit() {
+            double time = this.offset + this.k * this.period;
+            this.current = time <= this.to
+                    ? new OrbitalEvent(this.type, time, time - this.halfDuration, time + this.halfDuration, this.body,
+                            this.other, this.observer, null)
+                    : null;
+        }
+
+        @Override
+        OrbitalEvent current() {
+            return this.current;
+        }
+
+        @Override
+        void advance() {
+            this.k++;
+            emit();
+        }
+    }
+
+    /*
+     * Transits of the parent by the inner siblings from first to observer - 1 (in
+     * order of orbital radius), seen from the sibling at observer. Every pair's
+     * first transit time is known in closed form, so the pairs wait in a binary
+     * heap on that time and only the earliest has a PairCursor. Once its first
+     * transit is out, that cursor goes into the shared queue for the rest and the
+     * next pair is taken off the heap. The shared queue then only ever holds the
+     * pairs that have had a transit so far in the window.
+     */
+    private class SiblingCursor extends Cursor {
+        private final PriorityQueue<Cursor> queue;
+        private final int parent;
+        private final int observer;
+        private final float observerDistance;
+        private final double from;
+        private final double to;
+        private final int[] heapBody;
+        private final float[] heapDistance;
+        private final double[] heapTime; // First transit of the pair
+        private int heapSize;
+        private PairCursor next;
+
+        SiblingCursor(PriorityQueue<Cursor> queue, int parent, int[] siblings, float[] distance, int first,
+                int observer, double from, double to) {
+            this.queue = queue;
+            this.parent = parent;
+            this.observer = siblings[observer];
+            this.observerDistance = distance[observer];
+            this.from = from;
+            this.to = to;
+            int capacity = observer - first;
+            this.heapBody = new int[capacity];
+            this.heapDistance = new float[capacity];
+            this.heapTime = new double[capacity];
+            for (int i = first; i < observer; i++) {
+                int body = siblings[i];
+                if (distance[i] == this.observerDistance) {
+                    continue;
+                }
+                double size = 2 * bodies.radius[body] / (this.observerDistance - distance[i]);
+                if (size < minApparentSize) {
+                    continue;
+                }
+                double time = PairCursor.firstTime(angularVelocity[body] - angularVelocity[this.observer], 0, from);
+                if (time > to) {
+                    continue;
+                }
+                this.heapBody[this.heapSize] = body;
+                this.heapDistance[this.heapSize] = distance[i];
+                this.heapTime[this.heapSize] = time;
+                this.heapSize++;
+            }
+            for (int i = this.heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+            this.next = release();
+        }
+
+        @Override
+        OrbitalEvent current() {
+            return this.next == null ? null : this.next.current();
+        }
+
+        @Override
+        void advance() {
+            this.next.advance();
+            offer(this.queue, this.next);
+            this.next = release();
+        }
+
+        /*
+         * Cursor for the pair with the earliest first transit still on the heap
+         */
+        private PairCursor release() {
+            while (this.heapSize > 0) {
+                int body = this.heapBody[0];
+                float distance = this.heapDistance[0];
+                this.heapSize--;
+                this.heapBody[0] = this.heapBody[this.heapSize];
+                this.heapDistance[0] = this.heapDistance[this.heapSize];
+                this.heapTime[0] = this.heapTime[this.heapSize];
+                siftDown(0);
+
+                double halfWidth = halfWidth(bodies.radius[this.parent], bodies.radius[body], distance,
+                        this.observerDistance);
+                if (Double.isNaN(halfWidth)) {
+                    continue;
+                }
+                double w = angularVelocity[body] - angularVelocity[this.observer];
+                return new PairCursor(Type.TRANSIT, body, this.parent, this.observer, w, 0, halfWidth, this.from,
+                        this.to);
+            }
+            return null;
+        }
+
+        private void siftDown(int i) {
+            int body = this.heapBody[i];
+            float distance = this.heapDistance[i];
+            double time = this.heapTime[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.heapSize) {
+                    break;
+                }
+                if (child + 1 < this.heapSize && this.heapTime[child + 1] < this.heapTime[child]) {
+                    child++;
+                }
+                if (this.heapTime[child] >= time) {
+                    break;
+                }
+                this.heapBody[i] = this.heapBody[child];
+                this.heapDistance[i] = this.heapDistance[child];
+                this.heapTime[i] = this.heapTime[child];
+                i = child;
+            }
+            this.heapBody[i] = body;
+            this.heapDistance[i] = distance;
+            this.heapTime[i] = time;
+        }
+    }
+
+    /*
+     * Sweeps one sibling group for moments where at least alignmentMinBodies of
+     * them are within alignmentTolerance of each other. The spread of any set of
+     * siblings shrinks no faster than the group's largest relative angular
+     * velocity, so from a sample with spread s the sweep can jump ahead by
+     * (s - tolerance) / speed without missing an alignment. Once inside one, its
+     * end is bracketed by galloping and bisection and its tightest moment is
+     * found by a golden-section search.
+     */
+    private class AlignmentCursor extends Cursor {
+        private final int[] siblings;
+        private final double relativeSpeed; // Radians per second
+        private final double fineStep;
+        private final double to;
+        private final double[] angles;
+        private final long[] sorted;
+        private double time;
+        private OrbitalEvent current;
+
+        AlignmentCursor(int parent, double from, double to) {
+            this.siblings = children[parent];
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int body : this.siblings) {
+                min = Math.min(min, angularVelocity[body]);
+                max = Math.max(max, angularVelocity[body]);
+            }
+            this.relativeSpeed = max - min;
+            this.fineStep = alignmentTolerance / this.relativeSpeed / 64;
+            this.to = to;
+            this.time = from;
+            this.angles = new double[this.siblings.length];
+            this.sorted = new long[this.siblings.length];
+            advance();
+        }
+
+        @Override
+        OrbitalEvent current() {
+            return this.current;
+        }
+
+        @Override
+        void advance() {
+            this.current = null;
+            while (this.current == null && this.time <= this.to) {
+                double spread = spread(this.time);
+                if (spread > alignmentTolerance) {
+                    // Siblings that all move together (speed 0) never get closer
+                    this.time += Math.max((spread - alignmentTolerance) / this.relativeSpeed, this.fineStep);
+                    continue;
+                }
+
+                // Gallop forward while aligned, then bisect back down to the fine step
+                double start = this.time;
+                double end = start;
+                double step = this.fineStep;
+                while (end + step <= this.to && spread(end + step) <= alignmentTolerance) {
+                    end += step;
+                    step *= 2;
+                }
+                while (step > this.fineStep) {
+                    step /= 2;
+                    if (end + step <= this.to && spread(end + step) <= alignmentTolerance) {
+                        end += step;
+                    }
+                }
+
+                double best = end > start ? refine(start, end) : start;
+                int[] cluster = widestCluster(best, alignmentTolerance);
+                this.time = end + this.fineStep;
+                if (cluster != null) {
+                    this.current = new OrbitalEvent(Type.ALIGNMENT, best, start, end, cluster[0], cluster[1],
+                            BodyStore.NO_PARENT, cluster);
+                }
+            }
+        }
+
+        /*
+         * Golden-section search for the time in [a, b] where the tightest group of
+         * alignmentMinBodies siblings has the smallest spread
+         */
+        private double refine(double a, double b) {
+            double c = b - GOLDEN * (b - a);
+            double d = a + GOLDEN * (b - a);
+            double fc = spread(c);
+            double fd = spread(d);
+            for (int i = 0; i < REFINE_ITERATIONS; i++) {
+                if (fc < fd) {
+                    b = d;
+                    d = c;
+                    fd = fc;
+                    c = b - GOLDEN * (b - a);
+                    fc = spread(c);
+                } else {
+                    a = c;
+                    c = d;
+                    fc = fd;
+                    d = a + GOLDEN * (b - a);
+                    fd = spread(d);
+                }
+            }
+            return (a + b) / 2;
+        }
+
+        /*
+         * Sort the siblings by angle at the given time. Angles go into the high
+         * bits of the sort key and the sibling slot into the low 20 bits, which
+         * caps a group at about a million siblings.
+         */
+        private void sortAngles(double time) {
+            for (int i = 0; i < this.siblings.length; i++) {
+                double angle = (angularVelocity[this.siblings[i]] * time) % TWO_PI;
+                if (angle < 0) {
+                    angle += TWO_PI;
+                }
+                this.sorted[i] = ((long) (angle * (1L << 40)) << 20) | i;
+            }
+            Arrays.sort(this.sorted);
+            for (int i = 0; i < this.siblings.length; i++) {
+                this.angles[i] = (this.sorted[i] >>> 20) / (double) (1L << 40);
+            }
+        }
+
+        /*
+         * Smallest angular spread covering alignmentMinBodies siblings
+         */
+        private double spread(double time) {
+            sortAngles(time);
+            int n = this.siblings.length;
+            int k = alignmentMinBodies;
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                int j = i + k - 1;
+                double width = j < n ? this.angles[j] - this.angles[i] : this.angles[j - n] + TWO_PI - this.angles[i];
+                best = Math.min(best, width);
+            }
+            return best;
+        }
+
+        /*
+         * The largest set of siblings within the tolerance at the given time, or
+         * null if it has fewer than alignmentMinBodies members
+         */
+        private int[] widestCluster(double time, double tolerance) {
+            sortAngles(time);
+            int n = this.siblings.length;
+            int bestStart = -1;
+            int bestCount = 0;
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                // Sliding window over the circle, j runs past n to wrap around
+                if (j < i) {
+                    j = i;
+                }
+                while (j + 1 < i + n && angleAt(j + 1) - this.angles[i] <= tolerance) {
+                    j++;
+                }
+                if (j - i + 1 > bestCount) {
+                    bestCount = j - i + 1;
+                    bestStart = i;
+                }
+            }
+            if (bestCount < alignmentMinBodies) {
+                return null;
+            }
+            int[] cluster = new int[bestCount];
+            for (int c = 0; c < bestCount; c++) {
+                cluster[c] = this.siblings[(int) (this.sorted[(bestStart + c) % n] & 0xFFFFF)];
+            }
+            Arrays.sort(cluster);
+            return cluster;
+        }
+
+        private double angleAt(int index) {
+            int n = this.siblings.length;
+            return index < n ? this.angles[index] : this.angles[index - n] + TWO_PI;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.GL4;
+
+/**
+ * Thin state tracking layer over a GL4. It remembers the bound program,
+ * vertex array, buffers, textures and enabled capabilities, and skips any
+ * bind or enable that would not change anything. Counts of the calls issued
+ * and skipped are kept per frame.
+ *
+ * The tracking is only right while every change of that state goes through
+ * here. Code that binds through the GL4 directly (for example TextureLoader's
+ * uploads) must be followed by invalidate.
+ */
+public class GLStateCache {
+    private static final int UNKNOWN = -1;
+    private static final int TEXTURE_UNITS = 16;
+    private static final int SLOTS = 8; // Distinct buffer targets and capabilities tracked
+
+    private final GL4 gl;
+    private int program;
+    private int vertexArray;
+    private int activeUnit;
+    private final int[] textureTargets = new int[TEXTURE_UNITS];
+    private final int[] textures = new int[TEXTURE_UNITS];
+    private final int[] bufferTargets = new int[SLOTS];
+    private final int[] buffers = new int[SLOTS];
+    private final int[] capabilities = new int[SLOTS];
+    private final int[] enabled = new int[SLOTS]; // 1 enabled, 0 disabled, UNKNOWN
+
+    // Per frame counts
+    private int issued;
+    private int skipped;
+    private int lastIssued;
+    private int lastSkipped;
+
+    public GLStateCache(GL4 gl) {
+        this.gl = gl;
+        invalidate();
+    }
+
+    /*
+     * The wrapped GL, for calls that are not tracked
+     */
+    public GL4 gl() {
+        return this.gl;
+    }
+
+    /*
+     * Forget everything, so the next call of each kind is issued
+     */
+    public void invalidate() {
+        this.program = UNKNOWN;
+        this.vertexArray = UNKNOWN;
+        this.activeUnit = UNKNOWN;
+        for (int unit = 0; unit < TEXTURE_UNITS; unit++) {
+            this.textureTargets[unit] = UNKNOWN;
+            this.textures[unit] = UNKNOWN;
+        }
+        for (int slot = 0; slot < SLOTS; slot++) {
+            this.bufferTargets[slot] = UNKNOWN;
+            this.capabilities[slot] = UNKNOWN;
+        }
+    }
+
+    /*
+     * Start counting a new frame; the counts of the one before stay readable
+     */
+    public void beginFrame() {
+        this.lastIssued = this.issued;
+        this.lastSkipped = this.skipped;
+        this.issued = 0;
+        this.skipped = 0;
+    }
+
+    /*
+     * Calls issued during the last complete frame
+     */
+    public int getIssued() {
+        return this.lastIssued;
+    }
+
+    /*
+     * Calls skipped during the last complete frame
+     */
+    public int getSkipped() {
+        return this.lastSkipped;
+    }
+
+    private boolean changes(boolean changes) {
+        if (changes) {
+            this.issued++;
+        } else {
+            this.skipped++;
+        }
+        return changes;
+    }
+
+    public void useProgram(int program) {
+        if (changes(this.program != program)) {
+            this.gl.glUseProgram(program);
+            this.program = program;
+        }
+    }
+
+    /*
+     * Binding a vertex array also brings in its element array buffer, so that
+     * binding is forgotten
+     */
+    public void bindVertexArray(int vertexArray) {
+        if (changes(this.vertexArray != vertexArray)) {
+            this.gl.glBindVertexArray(vertexArray);
+            this.vertexArray = vertexArray;
+            forgetBuffer(GL_ELEMENT_ARRAY_BUFFER);
+        }
+    }
+
+    public void bindBuffer(int target, int buffer) {
+        int slot = slot(this.bufferTargets, target);
+        if (changes(this.bufferTargets[slot] != target || this.buffers[slot] != buffer)) {
+            this.gl.glBindBuffer(target, buffer);
+            this.bufferTargets[slot] = target;
+            this.buffers[slot] = buffer;
+        }
+    }
+
+    private void forgetBuffer(int target) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (this.bufferTargets[slot] == target) {
+                this.bufferTargets[slot] = UNKNOWN;
+            }
+        }
+    }
+
+    /*
+     * Bind a texture to a texture unit, selecting the unit first if needed
+     */
+    public void bindTexture(int unit, int target, int texture) {
+        if (changes(this.textureTargets[unit] != target || this.textures[unit] != texture)) {
+            if (this.activeUnit != unit) {
+                this.gl.glActiveTexture(GL_TEXTURE0 + unit);
+                this.activeUnit = unit;
+                this.issued++;
+            }
+            this.gl.glBindTexture(target, texture);
+            this.textureTargets[unit] = target;
+            this.textures[unit] = texture;
+        }
+    }
+
+    public void enable(int capability) {
+        setCapability(capability, 1);
+    }
+
+    public void disable(int capability) {
+        setCapability(capability, 0);
+    }
+
+    private void setCapability(int capability, int state) {
+        int slot = slot(this.capabilities, capability);
+        if (changes(this.capabilities[slot] != capability || this.enabled[slot] != state)) {
+            if (state == 1) {
+                this.gl.glEnable(capability);
+            } else {
+                this.gl.glDisable(capability);
+            }
+            this.capabilities[slot] = capability;
+            this.enabled[slot] = state;
+        }
+    }
+
+    /*
+     * The slot tracking key, else a free one, else the last (evicting it)
+     */
+    private static int slot(int[] keys, int key) {
+        int free = SLOTS - 1;
+        for (int slot = SLOTS - 1; slot >= 0; slot--) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            if (keys[slot] == UNKNOWN) {
+                free = slot;
+            }
+        }
+        return free;
+    }
+}
@@ -0,0 +1,327 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Physically simulated alternative to the fixed circular orbits. Every body of
+ * a BodyStore becomes a point mass that is moved by the gravity of all others,
+ * integrated with kick-drift-kick leapfrog (symplectic, so orbits do not spiral
+ * in or out over long runs) at a fixed time step. Forces come from a
+ * Barnes-Hut Octree, so a step costs O(n log n).
+ *
+ * The .sol format has no masses, so they are derived from the orbits it does
+ * describe. A body with orbiting children gets the gravitational parameter
+ * Kepler's third law gives for them, GM = a^3 (2 pi / T)^2, averaged over its
+ * children. Every other body gets the density of the first body sized that
+ * way. Each body starts where its circular orbit starts, moving at circular
+ * speed around its parent in the orbit's direction.
+ */
+public class GravitySystem {
+    public static final double DEFAULT_THETA = 0.5;
+    private static final int STEPS_PER_ORBIT = 256; // Time step is the shortest orbit over this
+    private static final double SOFTENING_FRACTION = 1e-3; // Of the smallest orbital radius
+    private static final int MAX_STEPS_PER_ADVANCE = 64;
+
+    private final int count;
+    private final double[] mass; // Gravitational parameter G * m
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final double[] vx;
+    private final double[] vy;
+    private final double[] vz;
+    private final double[] ax;
+    private final double[] ay;
+    private final double[] az;
+    private final Octree octree = new Octree();
+
+    private double timeStep;
+    private double theta = DEFAULT_THETA;
+    private double softening;
+    private double time;
+    private long steps;
+
+    /*
+     * Point masses for every body of the store, placed where the store's
+     * circular orbits have them at time 0
+     */
+    public GravitySystem(BodyStore bodies) {
+        this.count = bodies.size();
+        this.mass = new double[this.count];
+        this.x = new double[this.count];
+        this.y = new double[this.count];
+        this.z = new double[this.count];
+        this.vx = new double[this.count];
+        this.vy = new double[this.count];
+        this.vz = new double[this.count];
+        this.ax = new double[this.count];
+        this.ay = new double[this.count];
+        this.az = new double[this.count];
+
+        deriveMasses(bodies);
+
+        double shortestPeriod = Double.POSITIVE_INFINITY;
+        double smallestOrbit = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < this.count; i++) {
+            int p = bodies.parent[i];
+            double a = bodies.orbitalRadius[i];
+            this.x[i] = a + (p != BodyStore.NO_PARENT ? this.x[p] : 0);
+            this.y[i] = p != BodyStore.NO_PARENT ? this.y[p] : 0;
+            this.z[i] = p != BodyStore.NO_PARENT ? this.z[p] : 0;
+            if (p == BodyStore.NO_PARENT || a <= 0) {
+                continue;
+            }
+
+            // Circular orbit in the xz plane, counterclockwise for a positive period like Ephemeris
+            double period = bodies.orbitalPeriod[i];
+            double speed = Math.sqrt(this.mass[p] / a) * (period < 0 ? -1 : 1);
+            this.vx[i] = this.vx[p];
+            this.vy[i] = this.vy[p];
+            this.vz[i] = this.vz[p] + speed;
+            if (Double.isFinite(period)) {
+                shortestPeriod = Math.min(shortestPeriod, Math.abs(period));
+            }
+            smallestOrbit = Math.min(smallestOrbit, a);
+        }
+
+        this.timeStep = Double.isFinite(shortestPeriod) ? shortestPeriod / STEPS_PER_ORBIT : 1.0 / 60;
+        this.softening = Double.isFinite(smallestOrbit) ? smallestOrbit * SOFTENING_FRACTION : 0;
+    }
+
+    /*
+     * Gravitational parameters from the orbits of each body's children
+     */
+    private void deriveMasses(BodyStore bodies) {
+        int[] children = new int[this.count];
+        for (int i = 0; i < this.count; i++) {
+            int p = bodies.parent[i];
+            double period = bodies.orbitalPeriod[i];
+            double a = bodies.orbitalRadius[i];
+            if (p != BodyStore.NO_PARENT && Double.isFinite(period) && a > 0) {
+                double w = 2 * Math.PI / period;
+                this.mass[p] += a * a * a * w * w;
+                children[p]++;
+            }
+        }
+
+        double density = 0;
+        for (int i = 0; i < this.count; i++) {
+            if (children[i] > 0) {
+                this.mass[i] /= children[i];
+                double r = bodies.radius[i];
+                if (density == 0 && r > 0) {
+                    density = this.mass[i] / (r * r * r);
+                }
+            }
+        }
+        if (density == 0) {
+            density = 1;
+        }
+        for (int i = 0; i < this.count; i++) {
+            if (children[i] == 0) {
+                double r = bodies.radius[i];
+                this.mass[i] = density * r * r * r;
+            }
+        }
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public double getTime() {
+        return this.time;
+    }
+
+    public long getSteps() {
+        return this.steps;
+    }
+
+    public double getTimeStep() {
+        return this.timeStep;
+    }
+
+    public void setTimeStep(double timeStep) {
+        this.timeStep = timeStep;
+    }
+
+    /*
+     * Barnes-Hut opening angle: larger is faster and less accurate, 0 is exact
+     */
+    public void setTheta(double theta) {
+        this.theta = theta;
+    }
+
+    public void setSoftening(double softening) {
+        this.softening = softening;
+    }
+
+    public Octree getOctree() {
+        return this.octree;
+    }
+
+    /*
+     * Turn a body's position and velocity about the y axis through the origin,
+     * for example to spread bodies around their orbits before the first step
+     */
+    public void rotate(int body, double cos, double sin) {
+        double x = this.x[body];
+        double z = this.z[body];
+        this.x[body] = cos * x - sin * z;
+        this.z[body] = sin * x + cos * z;
+        double vx = this.vx[body];
+        double vz = this.vz[body];
+        this.vx[body] = cos * vx - sin * vz;
+        this.vz[body] = sin * vx + cos * vz;
+    }
+
+    /*
+     * Take whole steps until the next one would pass time, backwards if time is
+     * in the past (leapfrog is time reversible). A system that cannot keep up
+     * stops after MAX_STEPS_PER_ADVANCE steps and drops the rest of the interval
+     * rather than stalling the caller.
+     */
+    public void advanceTo(double time, ForkJoinPool pool) {
+        double step = time < this.time ? -this.timeStep : this.timeStep;
+        int taken = 0;
+        while (Math.abs(time - this.time) >= this.timeStep) {
+            if (taken++ == MAX_STEPS_PER_ADVANCE) {
+                this.time = time;
+                break;
+            }
+            step(step, pool);
+        }
+    }
+
+    /*
+     * One leapfrog step forward
+     */
+    public void step(ForkJoinPool pool) {
+        step(this.timeStep, pool);
+    }
+
+    /*
+     * One leapfrog step of h seconds, negative to go back: half kick, drift,
+     * new forces, half kick
+     */
+    private void step(double h, ForkJoinPool pool) {
+        if (this.steps == 0) {
+            computeAccelerations(pool);
+        }
+        int cutoff = cutoff(pool);
+        pool.invoke(new StepTask(StepTask.KICK_DRIFT, h, 0, this.count, cutoff));
+        computeAccelerations(pool);
+        pool.invoke(new StepTask(StepTask.KICK, h, 0, this.count, cutoff));
+        this.time += h;
+        this.steps++;
+    }
+
+    private void computeAccelerations(ForkJoinPool pool) {
+        this.octree.build(this.x, this.y, this.z, this.mass, this.count, pool);
+        this.octree.accelerations(this.ax, this.ay, this.az, this.theta, this.softening, pool);
+    }
+
+    /*
+     * Copy the current positions into the store and rebuild its model matrices.
+     * Spins still follow the store's rotation periods.
+     */
+    public void writeTo(BodyStore bodies, long timeNanos, ForkJoinPool pool) {
+        pool.invoke(new StoreTask(bodies, timeNanos, 0, this.count, cutoff(pool)));
+    }
+
+    /*
+     * Total kinetic plus potential energy times G (masses are G * m), computed
+     * directly in O(n^2). For checking the integrator on small systems.
+     */
+    public double energy() {
+        double energy = 0;
+        for (int i = 0; i < this.count; i++) {
+            energy += 0.5 * this.mass[i] * (this.vx[i] * this.vx[i] + this.vy[i] * this.vy[i]
+                    + this.vz[i] * this.vz[i]);
+            for (int j = i + 1; j < this.count; j++) {
+                double dx = this.x[j] - this.x[i];
+                double dy = this.y[j] - this.y[i];
+                double dz = this.z[j] - this.z[i];
+                double r = Math.sqrt(dx * dx + dy * dy + dz * dz + this.softening * this.softening);
+                energy -= this.mass[i] * this.mass[j] / r;
+            }
+        }
+        return energy;
+    }
+
+    private int cutoff(ForkJoinPool pool) {
+        if (this.count < BodyStore.PARALLEL_THRESHOLD || pool.getParallelism() < 2) {
+            return this.count;
+        }
+        return Math.max(1024, this.count / (pool.getParallelism() * 4));
+    }
+
+    /*
+     * The integrator's per-body passes
+     */
+    private class StepTask extends RecursiveAction {
+        static final int KICK_DRIFT = 0;
+        static final int KICK = 1;
+
+        private final int pass;
+        private final double h;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+
+        StepTask(int pass, double h, int from, int to, int cutoff) {
+            this.pass = pass;
+            this.h = h;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > this.cutoff) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new StepTask(this.pass, this.h, this.from, mid, this.cutoff),
+                        new StepTask(this.pass, this.h, mid, this.to, this.cutoff));
+                return;
+            }
+            double half = this.h / 2;
+            for (int i = this.from; i < this.to; i++) {
+                vx[i] += ax[i] * half;
+                vy[i] += ay[i] * half;
+                vz[i] += az[i] * half;
+                if (this.pass == KICK_DRIFT) {
+                    x[i] += vx[i] * this.h;
+                    y[i] += vy[i] * this.h;
+                    z[i] += vz[i] * this.h;
+                }
+            }
+        }
+    }
+
+    private class StoreTask extends RecursiveAction {
+        private final BodyStore bodies;
+        private final long timeNanos;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+
+        StoreTask(BodyStore bodies, long timeNanos, int from, int to, int cutoff) {
+            this.bodies = bodies;
+            this.timeNanos = timeNanos;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > this.cutoff) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new StoreTask(this.bodies, this.timeNanos, this.from, mid, this.cutoff),
+                        new StoreTask(this.bodies, this.timeNanos, mid, this.to, this.cutoff));
+                return;
+            }
+            this.bodies.place(this.timeNanos, x, y, z, this.from, this.to);
+        }
+    }
+}
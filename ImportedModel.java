@@ -1,125 +1,390 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.FileInputStream;
-import java.io.File;
-import java.util.ArrayList;
-import org.joml.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import com.jogamp.common.nio.Buffers;
 
 public class ImportedModel
 {
-	private Vector3f[] vertices;
-	private Vector2f[] texCoords;
-	private Vector3f[] normals;
+	private float[] vertices;	// packed x,y,z per vertex
+	private float[] texCoords;	// packed s,t per vertex
+	private float[] normals;	// packed x,y,z per vertex
+	private int[] indices;		// three per triangle
 	private int numVertices;
 
 	public ImportedModel(String filename)
+	{	this(filename, false);
+	}
+
+	/*
+	 * weldNormals merges corners that only differ by their normal and replaces
+	 * the normals with the average of the welded corners. This is what makes
+	 * flat shaded exports such as planet.obj (one normal per face) indexable.
+	 */
+	public ImportedModel(String filename, boolean weldNormals)
 	{	ModelImporter modelImporter = new ModelImporter();
 		try
 		{	modelImporter.parseOBJ(filename);
-			numVertices   = modelImporter.getNumVertices();
-			float[] verts = modelImporter.getVertices();
-			float[] tcs   = modelImporter.getTextureCoordinates();
-			float[] norm  = modelImporter.getNormals();
-
-			vertices = new Vector3f[numVertices];
-			texCoords = new Vector2f[numVertices];
-			normals = new Vector3f[numVertices];
-			
-			for(int i=0; i<vertices.length; i++)
-			{	vertices[i] = new Vector3f();
-				vertices[i].set(verts[i*3], verts[i*3+1], verts[i*3+2]);
-				texCoords[i] = new Vector2f();
-				texCoords[i].set(tcs[i*2], tcs[i*2+1]);
-				normals[i] = new Vector3f();
-				normals[i].set(norm[i*3], norm[i*3+1], norm[i*3+2]);
-			}
+			modelImporter.deduplicate(weldNormals);
+			numVertices = modelImporter.getNumVertices();
+			indices     = modelImporter.getIndices();
+			vertices    = modelImporter.getVertices();
+			texCoords   = modelImporter.getTextureCoordinates();
+			normals     = modelImporter.getNormals();
 		} catch (IOException e)
 		{ e.printStackTrace();
 	}	}
 
 	public int getNumVertices() { return numVertices; }
-	public Vector3f[] getVertices() { return vertices; }
-	public Vector2f[] getTexCoords() { return texCoords; }	
-	public Vector3f[] getNormals() { return normals; }	
+	public int getNumIndices() { return indices.length; }
+	public int[] getIndices() { return indices; }
+	public float[] getVertices() { return vertices; }
+	public float[] getTexCoords() { return texCoords; }
+	public float[] getNormals() { return normals; }
+
+	public FloatBuffer getVertexBuffer() { return Buffers.newDirectFloatBuffer(vertices); }
+	public FloatBuffer getTexCoordBuffer() { return Buffers.newDirectFloatBuffer(texCoords); }
+	public FloatBuffer getNormalBuffer() { return Buffers.newDirectFloatBuffer(normals); }
+	public IntBuffer getIndexBuffer() { return Buffers.newDirectIntBuffer(indices); }
+
+	/*
+	 * Streaming OBJ reader. The file is pulled through a FileChannel in fixed size
+	 * chunks and tokenized byte by byte, so no Strings, boxed Floats or per-vertex
+	 * objects are created while parsing. Values are kept in growable primitive
+	 * arrays and the face corners are expanded into packed arrays at the end,
+	 * either one vertex per corner or, after deduplicate(), one vertex per unique
+	 * (v, vt, vn) triple plus an index list.
+	 */
+	static class ModelImporter
+	{	private static final int CHUNK_SIZE = 1 << 16;
+		private static final double[] POW10 = new double[23]; // every power of ten exact in a double
+		static
+		{	POW10[0] = 1.0;
+			for(int i=1; i<POW10.length; i++) POW10[i] = POW10[i-1] * 10.0;
+		}
+
+		// values as read from OBJ file
+		private float[] vertVals = new float[3 * 1024];
+		private float[] stVals   = new float[2 * 1024];
+		private float[] normVals = new float[3 * 1024];
+		private int numVertVals, numStVals, numNormVals;
+
+		// one (v, vt, vn) triple per face corner, zero based, -1 when missing
+		private int[] faceRefs = new int[3 * 3 * 1024];
+		private int numFaceRefs;
 
-	private class ModelImporter
-	{	// values as read from OBJ file
-		private ArrayList<Float> vertVals = new ArrayList<Float>();
-		private ArrayList<Float> triangleVerts = new ArrayList<Float>(); 
-		private ArrayList<Float> textureCoords = new ArrayList<Float>();
+		// unique triples and the triangle indices into them, see deduplicate()
+		private int[] vertexRefs;
+		private int numVertexRefs;
+		private int[] indices;
+		private float[] weldedNormals;
 
-		// values stored for later use as vertex attributes
-		private ArrayList<Float> stVals = new ArrayList<Float>();
-		private ArrayList<Float> normals = new ArrayList<Float>();
-		private ArrayList<Float> normVals = new ArrayList<Float>();
+		// tokenizer state
+		private byte[] buf;
+		private int pos, end;
 
 		public void parseOBJ(String filename) throws IOException
-		{	InputStream input = new FileInputStream(new File(filename));
-			BufferedReader br = new BufferedReader(new InputStreamReader(input));
-			String line;
-			while ((line = br.readLine()) != null)
-			{	if(line.startsWith("v "))			// vertex position ("v" case)
-				{	for(String s : (line.substring(2)).split(" "))
-					{	vertVals.add(Float.valueOf(s));
-				}	}
-				else if(line.startsWith("vt"))			// texture coordinates ("vt" case)
-				{	for(String s : (line.substring(3)).split(" "))
-					{	stVals.add(Float.valueOf(s));
-				}	}
-				else if(line.startsWith("vn"))			// vertex normals ("vn" case)
-				{	for(String s : (line.substring(3)).split(" "))
-					{	normVals.add(Float.valueOf(s));
-				}	}
-				else if(line.startsWith("f"))			// triangle faces ("f" case)
-				{	for(String s : (line.substring(2)).split(" "))
-					{	String v = s.split("/")[0];
-						String vt = s.split("/")[1];
-						String vn = s.split("/")[2];
-	
-						int vertRef = (Integer.valueOf(v)-1)*3;
-						int tcRef   = (Integer.valueOf(vt)-1)*2;
-						int normRef = (Integer.valueOf(vn)-1)*3;
-	
-						triangleVerts.add(vertVals.get(vertRef));
-						triangleVerts.add(vertVals.get((vertRef)+1));
-						triangleVerts.add(vertVals.get((vertRef)+2));
-
-						textureCoords.add(stVals.get(tcRef));
-						textureCoords.add(stVals.get(tcRef+1));
-	
-						normals.add(normVals.get(normRef));
-						normals.add(normVals.get(normRef+1));
-						normals.add(normVals.get(normRef+2));
-			}	}	}
-			input.close();
-		}
-
-		public int getNumVertices() { return (triangleVerts.size()/3); }
+		{	try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+			{	parse(channel);
+			}
+		}
+
+		void parse(FileChannel channel) throws IOException
+		{	buf = new byte[CHUNK_SIZE];
+			ByteBuffer chunk = ByteBuffer.wrap(buf);
+			int carry = 0;
+			boolean eof = false;
+			while (!eof)
+			{	chunk.limit(buf.length).position(carry);
+				if (channel.read(chunk) < 0) eof = true;
+				int filled = chunk.position();
+
+				// only hand complete lines to the tokenizer, keep the tail for the next read
+				int lastLine = filled - 1;
+				while (lastLine >= 0 && buf[lastLine] != '\n') lastLine--;
+				int parseEnd = eof ? filled : lastLine + 1;
+				if (parseEnd == 0 && !eof)
+				{	// a single line is larger than the buffer
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					chunk = ByteBuffer.wrap(buf);
+					carry = filled;
+					continue;
+				}
+
+				pos = 0;
+				end = parseEnd;
+				while (pos < end) parseLine();
+
+				carry = filled - parseEnd;
+				System.arraycopy(buf, parseEnd, buf, 0, carry);
+			}
+		}
+
+		private void parseLine() throws IOException
+		{	skipBlanks();
+			if (pos >= end) return;
+			byte c0 = buf[pos];
+			byte c1 = pos + 1 < end ? buf[pos+1] : 0;
+			if (c0 == 'v' && isBlank(c1))			// vertex position ("v" case)
+			{	pos += 1;
+				ensureVert(3);
+				for(int i=0; i<3; i++) vertVals[numVertVals++] = parseFloat();
+			}
+			else if (c0 == 'v' && c1 == 't')		// texture coordinates ("vt" case)
+			{	pos += 2;
+				ensureSt(2);
+				for(int i=0; i<2; i++) stVals[numStVals++] = parseFloat();
+			}
+			else if (c0 == 'v' && c1 == 'n')		// vertex normals ("vn" case)
+			{	pos += 2;
+				ensureNorm(3);
+				for(int i=0; i<3; i++) normVals[numNormVals++] = parseFloat();
+			}
+			else if (c0 == 'f' && isBlank(c1))		// faces, polygons are split into a triangle fan
+			{	pos += 1;
+				int first = numFaceRefs;
+				int corners = 0;
+				skipBlanks();
+				while (pos < end && buf[pos] != '\n' && buf[pos] != '\r')
+				{	if (corners >= 3)
+					{	// repeat the fan origin and the previous corner
+						ensureFaceRefs(6);
+						System.arraycopy(faceRefs, first, faceRefs, numFaceRefs, 3);
+						System.arraycopy(faceRefs, numFaceRefs - 3, faceRefs, numFaceRefs + 3, 3);
+						numFaceRefs += 6;
+					}
+					ensureFaceRefs(3);
+					faceRefs[numFaceRefs++] = parseIndex(numVertVals / 3);
+					faceRefs[numFaceRefs++] = -1;
+					faceRefs[numFaceRefs++] = -1;
+					if (pos < end && buf[pos] == '/')
+					{	pos++;
+						if (pos < end && buf[pos] != '/') faceRefs[numFaceRefs-2] = parseIndex(numStVals / 2);
+						if (pos < end && buf[pos] == '/')
+						{	pos++;
+							faceRefs[numFaceRefs-1] = parseIndex(numNormVals / 3);
+					}	}
+					corners++;
+					skipBlanks();
+				}
+				if (corners < 3) throw new IOException("OBJ face with fewer than 3 vertices");
+			}
+			skipLine();
+		}
+
+		private int parseIndex(int count) throws IOException
+		{	boolean negative = false;
+			if (pos < end && buf[pos] == '-') { negative = true; pos++; }
+			int value = 0;
+			int start = pos;
+			while (pos < end && buf[pos] >= '0' && buf[pos] <= '9')
+			{	value = value * 10 + (buf[pos++] - '0');
+			}
+			if (pos == start) throw new IOException("malformed OBJ index");
+			// OBJ indices are one based, negative indices count back from the end
+			return negative ? count - value : value - 1;
+		}
+
+		// Parse a number as Float.parseFloat would. Plain decimals of up to 15 significant
+		// digits and exponents within 22 are one exact double operation from their value,
+		// and so round to the float the JDK would give, except when that double lies
+		// halfway between two floats or below the normal floats. Those, and every other
+		// spelling, go through the JDK.
+		private float parseFloat() throws IOException
+		{	skipBlanks();
+			int token = pos;
+			boolean negative = false;
+			if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) negative = buf[pos++] == '-';
+			long mantissa = 0;
+			int digits = 0;		// significant digits
+			int seen = 0;		// all digits
+			int exponent = 0;
+			for (; pos < end && buf[pos] >= '0' && buf[pos] <= '9'; pos++, seen++)
+			{	if (mantissa != 0 || buf[pos] != '0') { mantissa = mantissa * 10 + (buf[pos] - '0'); digits++; }
+			}
+			if (pos < end && buf[pos] == '.')
+			{	for (pos++; pos < end && buf[pos] >= '0' && buf[pos] <= '9'; pos++, seen++)
+				{	if (mantissa != 0 || buf[pos] != '0') { mantissa = mantissa * 10 + (buf[pos] - '0'); digits++; }
+					exponent--;
+			}	}
+			if (seen > 0 && pos < end && (buf[pos] == 'e' || buf[pos] == 'E'))
+			{	pos++;
+				boolean negExp = false;
+				if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) negExp = buf[pos++] == '-';
+				int e = 0;
+				int first = pos;
+				for (; pos < end && buf[pos] >= '0' && buf[pos] <= '9'; pos++) e = Math.min(e * 10 + (buf[pos] - '0'), 1000);
+				if (pos == first) return parseFloatSlow(token);
+				exponent += negExp ? -e : e;
+			}
+			if (!atTokenEnd() || seen == 0 || digits > 15 || exponent < -22 || exponent > 22) return parseFloatSlow(token);
+			if (mantissa == 0) return negative ? -0f : 0f;
+			double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+			if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L || value < Float.MIN_NORMAL) return parseFloatSlow(token);
+			float f = (float) value;
+			return negative ? -f : f;
+		}
+
+		// the whole number from token on, parsed by the JDK, which rejects what the legacy path rejects
+		private float parseFloatSlow(int token) throws IOException
+		{	pos = token;
+			while (!atTokenEnd()) pos++;
+			if (pos == token) throw new IOException("malformed OBJ number");
+			try
+			{	return Float.parseFloat(new String(buf, token, pos - token, java.nio.charset.StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e)
+			{	throw new IOException("malformed OBJ number", e);
+			}
+		}
+
+		private boolean atTokenEnd()
+		{	return pos >= end || isBlank(buf[pos]) || buf[pos] == '\n' || buf[pos] == '\r';
+		}
+
+		private static boolean isBlank(byte c) { return c == ' ' || c == '\t'; }
+
+		private void skipBlanks()
+		{	while (pos < end && isBlank(buf[pos])) pos++;
+		}
+
+		private void skipLine()
+		{	while (pos < end && buf[pos] != '\n') pos++;
+			pos++;
+		}
+
+		private void ensureVert(int n)
+		{	if (numVertVals + n > vertVals.length) vertVals = Arrays.copyOf(vertVals, vertVals.length * 2);
+		}
+
+		private void ensureSt(int n)
+		{	if (numStVals + n > stVals.length) stVals = Arrays.copyOf(stVals, stVals.length * 2);
+		}
+
+		private void ensureNorm(int n)
+		{	if (numNormVals + n > normVals.length) normVals = Arrays.copyOf(normVals, normVals.length * 2);
+		}
+
+		private void ensureFaceRefs(int n)
+		{	if (numFaceRefs + n > faceRefs.length) faceRefs = Arrays.copyOf(faceRefs, faceRefs.length * 2);
+		}
+
+		/*
+		 * Collapse identical (v, vt, vn) corners into one vertex using an open
+		 * addressing table of int slots, and build the triangle index list. With
+		 * weldNormals the normal is left out of the key and the normals of the
+		 * merged corners are averaged instead.
+		 */
+		public void deduplicate(boolean weldNormals)
+		{	int corners = numFaceRefs / 3;
+			int capacity = Integer.highestOneBit(Math.max(corners, 8) * 2 - 1) << 1;
+			int mask = capacity - 1;
+			int[] table = new int[capacity];	// unique vertex + 1, 0 marks a free slot
+			vertexRefs = new int[3 * 1024];
+			numVertexRefs = 0;
+			indices = new int[corners];
+
+			for(int i = 0; i < corners; i++)
+			{	int v  = faceRefs[i*3];
+				int vt = faceRefs[i*3+1];
+				int vn = weldNormals ? -1 : faceRefs[i*3+2];
+				int slot = hash(v, vt, vn) & mask;
+				int found;
+				while ((found = table[slot]) != 0)
+				{	int r = (found - 1) * 3;
+					if (vertexRefs[r] == v && vertexRefs[r+1] == vt && vertexRefs[r+2] == vn) break;
+					slot = (slot + 1) & mask;
+				}
+				if (found == 0)
+				{	if (numVertexRefs + 3 > vertexRefs.length) vertexRefs = Arrays.copyOf(vertexRefs, vertexRefs.length * 2);
+					vertexRefs[numVertexRefs++] = v;
+					vertexRefs[numVertexRefs++] = vt;
+					vertexRefs[numVertexRefs++] = vn;
+					found = numVertexRefs / 3;
+					table[slot] = found;
+				}
+				indices[i] = found - 1;
+			}
+
+			weldedNormals = null;
+			if (weldNormals)
+			{	float[] n = new float[numVertexRefs];
+				for(int i = 0; i < corners; i++)
+				{	int normRef = faceRefs[i*3+2] * 3;
+					if (normRef < 0) continue;
+					int dst = indices[i] * 3;
+					n[dst]   += normVals[normRef];
+					n[dst+1] += normVals[normRef+1];
+					n[dst+2] += normVals[normRef+2];
+				}
+				for(int i = 0; i < n.length; i += 3)
+				{	float len = (float) Math.sqrt(n[i]*n[i] + n[i+1]*n[i+1] + n[i+2]*n[i+2]);
+					if (len > 0) { n[i] /= len; n[i+1] /= len; n[i+2] /= len; }
+				}
+				weldedNormals = n;
+			}
+		}
+
+		private static int hash(int v, int vt, int vn)
+		{	int h = v * 0x9E3779B1 ^ vt * 0x85EBCA77 ^ vn * 0xC2B2AE3D;
+			return h ^ (h >>> 16);
+		}
+
+		// corners of the expanded mesh, or unique vertices once deduplicated
+		private int[] refs() { return vertexRefs != null ? vertexRefs : faceRefs; }
+
+		public int getNumVertices() { return (vertexRefs != null ? numVertexRefs : numFaceRefs) / 3; }
+
+		/*
+		 * Triangle indices into the vertex arrays. Before deduplicate() every
+		 * corner is its own vertex.
+		 */
+		public int[] getIndices()
+		{	if (indices != null) return indices;
+			int[] identity = new int[getNumVertices()];
+			for(int i = 0; i < identity.length; i++) identity[i] = i;
+			return identity;
+		}
 
 		public float[] getVertices()
-		{	float[] p = new float[triangleVerts.size()];
-			for(int i = 0; i < triangleVerts.size(); i++)
-			{	p[i] = triangleVerts.get(i);
+		{	int[] refs = refs();
+			float[] p = new float[getNumVertices() * 3];
+			for(int i = 0; i < getNumVertices(); i++)
+			{	int vertRef = refs[i*3] * 3;
+				p[i*3]   = vertVals[vertRef];
+				p[i*3+1] = vertVals[vertRef+1];
+				p[i*3+2] = vertVals[vertRef+2];
 			}
 			return p;
 		}
 
 		public float[] getTextureCoordinates()
-		{	float[] t = new float[(textureCoords.size())];
-			for(int i = 0; i < textureCoords.size(); i++)
-			{	t[i] = textureCoords.get(i);
+		{	int[] refs = refs();
+			float[] t = new float[getNumVertices() * 2];
+			for(int i = 0; i < getNumVertices(); i++)
+			{	int tcRef = refs[i*3+1] * 2;
+				if (tcRef < 0) continue;
+				t[i*2]   = stVals[tcRef];
+				t[i*2+1] = stVals[tcRef+1];
 			}
 			return t;
 		}
-	
+
 		public float[] getNormals()
-		{	float[] n = new float[(normals.size())];
-			for(int i = 0; i < normals.size(); i++)
-			{	n[i] = normals.get(i);
+		{	if (weldedNormals != null) return weldedNormals.clone();
+			int[] refs = refs();
+			float[] n = new float[getNumVertices() * 3];
+			for(int i = 0; i < getNumVertices(); i++)
+			{	int normRef = refs[i*3+2] * 3;
+				if (normRef < 0) continue;
+				n[i*3]   = normVals[normRef];
+				n[i*3+1] = normVals[normRef+1];
+				n[i*3+2] = normVals[normRef+2];
 			}
 			return n;
-		}	
+		}
 	}
 }
@@ -0,0 +1,118 @@
+import java.util.Arrays;
+import org.joml.Matrix4fc;
+
+/**
+ * Picks how finely each body is drawn from its radius on screen. Level 0 is
+ * an impostor (a single point sprite) and levels 1 to levels - 1 are sphere
+ * meshes of increasing detail; level l is used from minPixels[l] pixels of
+ * projected radius up.
+ *
+ * Each body remembers its level, and a body only moves to another level once
+ * its radius is HYSTERESIS past the boundary, so a body sitting on a boundary
+ * does not flicker between two meshes. Bodies are handed back grouped by
+ * level, so each level can be drawn with one instanced call.
+ */
+public class LevelOfDetail {
+    public static final int IMPOSTOR = 0;
+    public static final float HYSTERESIS = 0.2f; // Fraction of a boundary to pass before switching
+    private static final byte UNSET = -1;
+
+    private final float[] minPixels;
+    private byte[] level = new byte[0];
+    private final int[] counts;
+
+    // Metrics of the last selection
+    private final int[] levelCounts;
+
+    /*
+     * minPixels[l] is the projected radius in pixels from which level l is
+     * used, increasing, with minPixels[0] = 0 for the impostor
+     */
+    public LevelOfDetail(float... minPixels) {
+        if (minPixels.length < 1 || minPixels[0] != 0) {
+            throw new IllegalArgumentException("Level 0 must start at 0 pixels");
+        }
+        for (int l = 1; l < minPixels.length; l++) {
+            if (minPixels[l] <= minPixels[l - 1]) {
+                throw new IllegalArgumentException("Level boundaries must increase");
+            }
+        }
+        this.minPixels = minPixels.clone();
+        this.counts = new int[minPixels.length];
+        this.levelCounts = new int[minPixels.length];
+    }
+
+    public int getLevels() {
+        return this.minPixels.length;
+    }
+
+    /*
+     * Number of bodies given each level by the last select
+     */
+    public int getLevelCount(int level) {
+        return this.levelCounts[level];
+    }
+
+    /*
+     * Choose a level for each of the count bodies listed in bodies and write
+     * them to ordered grouped by level, level l taking ordered[start[l]] to
+     * ordered[start[l + 1]]. Positions are the translations of the bodies'
+     * model matrices; view is the view matrix and pixelsPerUnit the size in
+     * pixels of one unit at one unit of distance in front of the camera,
+     * projection m11 times half the viewport height. Bodies keep their level
+     * between calls, so a body that leaves the list and comes back resumes
+     * where it was.
+     */
+    public void select(float[] matrices, float[] radius, int[] bodies, int count, Matrix4fc view,
+            float pixelsPerUnit, int[] ordered, int[] start) {
+        int bodyCount = radius.length;
+        if (this.level.length < bodyCount) {
+            int old = this.level.length;
+            this.level = Arrays.copyOf(this.level, bodyCount);
+            Arrays.fill(this.level, old, bodyCount, UNSET);
+        }
+
+        // The view matrix may scale, and scales every radius with it
+        float scale = (float) Math.sqrt(view.m00() * view.m00() + view.m01() * view.m01() + view.m02() * view.m02());
+        int levels = this.minPixels.length;
+        Arrays.fill(this.counts, 0);
+        for (int i = 0; i < count; i++) {
+            int body = bodies[i];
+            int m = body * BodyStore.MATRIX_FLOATS;
+            float x = matrices[m + 12];
+            float y = matrices[m + 13];
+            float z = matrices[m + 14];
+            float depth = -(view.m02() * x + view.m12() * y + view.m22() * z + view.m32());
+            float pixels = depth > 0 ? radius[body] * scale * pixelsPerUnit / depth : 0;
+
+            int l = this.level[body];
+            if (l == UNSET) {
+                l = 0;
+                while (l + 1 < levels && pixels >= this.minPixels[l + 1]) {
+                    l++;
+                }
+            } else {
+                while (l + 1 < levels && pixels >= this.minPixels[l + 1] * (1 + HYSTERESIS)) {
+                    l++;
+                }
+                while (l > 0 && pixels < this.minPixels[l] * (1 - HYSTERESIS)) {
+                    l--;
+                }
+            }
+            this.level[body] = (byte) l;
+            this.counts[l]++;
+        }
+
+        // Counting sort by level
+        start[0] = 0;
+        for (int l = 0; l < levels; l++) {
+            start[l + 1] = start[l] + this.counts[l];
+            this.levelCounts[l] = this.counts[l];
+            this.counts[l] = start[l];
+        }
+        for (int i = 0; i < count; i++) {
+            int body = bodies[i];
+            ordered[this.counts[this.level[body]]++] = body;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.GL4;
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Every mesh of a scene packed into one vertex and one index buffer, so a
+ * single vertex array serves them all. Each mesh keeps its own indices and is
+ * reached through its base vertex and first index, which is all a
+ * DrawElementsIndirectCommand needs: one glMultiDrawElementsIndirect can then
+ * draw any mix of meshes.
+ *
+ * Meshes are added first and the arena is uploaded once, with upload.
+ */
+public class MeshArena {
+    public static final int COMMAND_INTS = 5; // count, instanceCount, firstIndex, baseVertex, baseInstance
+    public static final int COMMAND_BYTES = COMMAND_INTS * 4;
+
+    private final ArrayList<MeshCache.Mesh> meshes = new ArrayList<MeshCache.Mesh>();
+    private float[] scales = new float[8]; // Applied to the positions when packing
+    private int[] baseVertex = new int[8];
+    private int[] firstIndex = new int[8];
+    private int[] indexCount = new int[8];
+    private int vertexTotal;
+    private int indexTotal;
+
+    /*
+     * Add an indexed mesh as it is and return its id
+     */
+    public int add(MeshCache.Mesh mesh) {
+        return add(mesh, 1);
+    }
+
+    /*
+     * Add an indexed mesh scaled about its origin so its furthest vertex is at
+     * distance 1, the size of the spheres, and return its id. Model matrices
+     * scale every mesh by its body's radius, so imported models have to be
+     * brought to unit size first.
+     */
+    public int addFitted(MeshCache.Mesh mesh) {
+        ByteBuffer vertices = mesh.vertexData.duplicate().order(ByteOrder.nativeOrder());
+        float furthest = 0;
+        for (int v = 0; v < mesh.vertexCount; v++) {
+            int at = vertices.position() + v * MeshCache.STRIDE + MeshCache.POSITION_OFFSET;
+            float x = vertices.getFloat(at);
+            float y = vertices.getFloat(at + 4);
+            float z = vertices.getFloat(at + 8);
+            furthest = Math.max(furthest, x * x + y * y + z * z);
+        }
+        return add(mesh, furthest > 0 ? (float) (1 / Math.sqrt(furthest)) : 1);
+    }
+
+    private int add(MeshCache.Mesh mesh, float scale) {
+        if (mesh.indexData == null) {
+            throw new IllegalArgumentException("Only indexed meshes can share the arena");
+        }
+        int id = this.meshes.size();
+        if (id == this.indexCount.length) {
+            this.scales = Arrays.copyOf(this.scales, id * 2);
+            this.baseVertex = Arrays.copyOf(this.baseVertex, id * 2);
+            this.firstIndex = Arrays.copyOf(this.firstIndex, id * 2);
+            this.indexCount = Arrays.copyOf(this.indexCount, id * 2);
+        }
+        this.meshes.add(mesh);
+        this.scales[id] = scale;
+        this.baseVertex[id] = this.vertexTotal;
+        this.firstIndex[id] = this.indexTotal;
+        this.indexCount[id] = mesh.indexCount;
+        this.vertexTotal += mesh.vertexCount;
+        this.indexTotal += mesh.indexCount;
+        return id;
+    }
+
+    public int size() {
+        return this.meshes.size();
+    }
+
+    public int getBaseVertex(int mesh) {
+        return this.baseVertex[mesh];
+    }
+
+    public int getFirstIndex(int mesh) {
+        return this.firstIndex[mesh];
+    }
+
+    public int getIndexCount(int mesh) {
+        return this.indexCount[mesh];
+    }
+
+    public int getVertexCount() {
+        return this.vertexTotal;
+    }
+
+    /*
+     * Indices of all meshes together
+     */
+    public int getIndexCount() {
+        return this.indexTotal;
+    }
+
+    /*
+     * Pack every mesh into vertexBuffer and indexBuffer. The element buffer is
+     * left bound, so with a vertex array bound it becomes that array's.
+     */
+    public void upload(GL4 gl, int vertexBuffer, int indexBuffer) {
+        ByteBuffer vertexData = Buffers.newDirectByteBuffer(this.vertexTotal * MeshCache.STRIDE);
+        ByteBuffer indexData = Buffers.newDirectByteBuffer(this.indexTotal * 4);
+        for (int id = 0; id < this.meshes.size(); id++) {
+            MeshCache.Mesh mesh = this.meshes.get(id);
+            int start = vertexData.position();
+            vertexData.put(mesh.vertexData.duplicate());
+            indexData.put(mesh.indexData.duplicate());
+            if (this.scales[id] != 1) {
+                for (int v = 0; v < mesh.vertexCount; v++) {
+                    int at = start + v * MeshCache.STRIDE + MeshCache.POSITION_OFFSET;
+                    for (int c = 0; c < 3; c++) {
+                        vertexData.putFloat(at + c * 4, vertexData.getFloat(at + c * 4) * this.scales[id]);
+                    }
+                }
+            }
+        }
+        vertexData.flip();
+        indexData.flip();
+
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+        gl.glBufferData(GL_ARRAY_BUFFER, vertexData.remaining(), vertexData, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, indexData.remaining(), indexData, GL_STATIC_DRAW);
+    }
+
+    /*
+     * Append the DrawElementsIndirectCommand drawing instanceCount instances of
+     * a mesh, from baseInstance on
+     */
+    public void putCommand(IntBuffer commands, int mesh, int instanceCount, int baseInstance) {
+        commands.put(this.indexCount[mesh]).put(instanceCount).put(this.firstIndex[mesh])
+                .put(this.baseVertex[mesh]).put(baseInstance);
+    }
+}
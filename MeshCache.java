@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache for imported OBJ meshes. The first time an OBJ is loaded it is
+ * parsed through ImportedModel and written next to it as <name>.mesh; later
+ * loads memory map that file and hand the mapped vertex and index sections
+ * straight to glBufferData.
+ *
+ * Layout (native byte order):
+ *
+ * <pre>
+ * header  64 bytes  magic, version, flags, vertex count, index count,
+ *                   OBJ size, OBJ mtime, OBJ CRC32
+ * vertex  32 bytes per vertex, interleaved position xyz, texture st, normal xyz
+ * index   4 bytes per index (only when the INDEXED flag is set)
+ * </pre>
+ */
+public final class MeshCache {
+    public static final int FLOATS_PER_VERTEX = 8;
+    public static final int STRIDE = FLOATS_PER_VERTEX * 4; // Bytes per interleaved vertex
+    public static final int POSITION_OFFSET = 0;
+    public static final int TEXCOORD_OFFSET = 3 * 4;
+    public static final int NORMAL_OFFSET = 5 * 4;
+
+    private static final String EXTENSION = ".mesh";
+    private static final int MAGIC = 0x4D534831; // "MSH1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int FLAG_INDEXED = 1;
+    private static final int FLAG_WELDED_NORMALS = 2;
+
+    // private constructor prevents instantiation (static only)
+    private MeshCache() {
+    }
+
+    /*
+     * An interleaved mesh ready for upload. Both buffers are direct, and when the
+     * mesh came from the cache they are views of the mapped file.
+     */
+    public static class Mesh {
+        public final ByteBuffer vertexData;
+        public final ByteBuffer indexData; // null if not indexed
+        public final int vertexCount;
+        public final int indexCount;
+
+        Mesh(ByteBuffer vertexData, ByteBuffer indexData, int vertexCount, int indexCount) {
+            this.vertexData = vertexData;
+            this.indexData = indexData;
+            this.vertexCount = vertexCount;
+            this.indexCount = indexCount;
+        }
+    }
+
+    /**
+     * Load an OBJ as an indexed, interleaved mesh, going through the binary cache
+     * next to it whenever that is still valid.
+     *
+     * @param objFileName
+     * @param weldNormals see ImportedModel
+     * @return
+     * @throws IOException
+     */
+    public static Mesh load(String objFileName, boolean weldNormals) throws IOException {
+        Path obj = Paths.get(objFileName);
+        Path cache = Paths.get(objFileName + EXTENSION);
+        int flags = FLAG_INDEXED | (weldNormals ? FLAG_WELDED_NORMALS : 0);
+
+        long objSize = Files.size(obj);
+        long objMtime = Files.getLastModifiedTime(obj).toMillis();
+
+        if (Files.exists(cache)) {
+            Mesh mesh = tryMap(obj, cache, flags, objSize, objMtime);
+            if (mesh != null) {
+                return mesh;
+            }
+        }
+
+        ImportedModel model = new ImportedModel(objFileName, weldNormals);
+        if (model.getVertices() == null) {
+            throw new IOException("Could not parse " + objFileName);
+        }
+        ByteBuffer file = encode(model, flags, objSize, objMtime, checksum(obj));
+        try {
+            write(cache, file);
+            Mesh mesh = tryMap(obj, cache, flags, objSize, objMtime);
+            if (mesh != null) {
+                return mesh;
+            }
+        } catch (IOException e) {
+            // Read only location, serve the freshly built mesh from memory
+        }
+        return sections(file);
+    }
+
+    /*
+     * Validate the cache file's header and map the file. Returns null when the
+     * cache is stale. A cache whose mtime no longer matches but whose CRC still
+     * does (for example after a fresh checkout) is kept and its header updated.
+     * The header is read, not mapped, so a stale cache is never mapped: a live
+     * mapping would stop it from being replaced on Windows.
+     */
+    private static Mesh tryMap(Path obj, Path cache, int flags, long objSize, long objMtime) throws IOException {
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return null;
+                }
+            }
+
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != flags
+                    || header.getLong(24) != objSize) {
+                return null;
+            }
+            long expected = HEADER_SIZE + (long) header.getInt(12) * STRIDE + (long) header.getInt(16) * 4;
+            if (channel.size() != expected) {
+                return null;
+            }
+            if (header.getLong(32) != objMtime) {
+                if (header.getLong(40) != checksum(obj)) {
+                    return null;
+                }
+                touch(cache, objMtime);
+            }
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            file.order(ByteOrder.nativeOrder());
+            return sections(file);
+        }
+    }
+
+    /*
+     * Record the new OBJ mtime in the header, best effort
+     */
+    private static void touch(Path cache, long objMtime) {
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.WRITE)) {
+            ByteBuffer mtime = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(0, objMtime);
+            channel.write(mtime, 32);
+        } catch (IOException e) {
+            // The cache stays valid through the CRC check
+        }
+    }
+
+    /*
+     * Slice the vertex and index sections out of a complete cache image
+     */
+    private static Mesh sections(ByteBuffer file) {
+        int vertexCount = file.getInt(12);
+        int indexCount = file.getInt(16);
+        int vertexBytes = vertexCount * STRIDE;
+
+        ByteBuffer vertexData = file.duplicate().position(HEADER_SIZE).limit(HEADER_SIZE + vertexBytes).slice()
+                .order(ByteOrder.nativeOrder());
+        ByteBuffer indexData = null;
+        if ((file.getInt(8) & FLAG_INDEXED) != 0) {
+            indexData = file.duplicate().position(HEADER_SIZE + vertexBytes)
+                    .limit(HEADER_SIZE + vertexBytes + indexCount * 4).slice().order(ByteOrder.nativeOrder());
+        }
+        return new Mesh(vertexData, indexData, vertexCount, indexCount);
+    }
+
+    /*
+     * Build the complete cache image for a parsed model
+     */
+    private static ByteBuffer encode(ImportedModel model, int flags, long objSize, long objMtime, long crc) {
+        int vertexCount = model.getNumVertices();
+        int indexCount = model.getNumIndices();
+        float[] positions = model.getVertices();
+        float[] texCoords = model.getTexCoords();
+        float[] normals = model.getNormals();
+        int[] indices = model.getIndices();
+
+        ByteBuffer file = ByteBuffer.allocateDirect(HEADER_SIZE + vertexCount * STRIDE + indexCount * 4)
+                .order(ByteOrder.nativeOrder());
+        file.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(vertexCount).putInt(indexCount).putInt(0)
+                .putLong(objSize).putLong(objMtime).putLong(crc);
+        file.position(HEADER_SIZE);
+        for (int i = 0; i < vertexCount; i++) {
+            file.putFloat(positions[i * 3]).putFloat(positions[i * 3 + 1]).putFloat(positions[i * 3 + 2]);
+            file.putFloat(texCoords[i * 2]).putFloat(texCoords[i * 2 + 1]);
+            file.putFloat(normals[i * 3]).putFloat(normals[i * 3 + 1]).putFloat(normals[i * 3 + 2]);
+        }
+        file.asIntBuffer().put(indices);
+        file.clear();
+        return file;
+    }
+
+    /*
+     * Write through a temporary file so a crash never leaves a half written
+     * cache. The temporary file is removed again if it cannot take the cache's
+     * place.
+     */
+    private static void write(Path cache, ByteBuffer file) throws IOException {
+        Path parent = cache.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, cache.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer data = file.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static long checksum(Path obj) throws IOException {
+        try (FileChannel channel = FileChannel.open(obj, StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Compares the streaming OBJ importer used by ImportedModel against the
+ * original String.split / ArrayList<Float> parser. Runs on planet.obj and on a
+ * generated grid mesh with one million triangles, and reports how many vertices
+ * remain after (v, vt, vn) deduplication.
+ *
+ * Usage: java ModelImporterBenchmark [objFile]
+ */
+public class ModelImporterBenchmark {
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 5;
+    private static final int SYNTHETIC_FACES = 1_000_000;
+    private static final String[] ATTRIBUTES = { "positions", "texture coordinates", "normals" };
+
+    public static void main(String[] args) throws IOException {
+        String objFile = args.length > 0 ? args[0] : "planet.obj";
+        run(objFile);
+
+        File synthetic = File.createTempFile("synthetic-mesh", ".obj");
+        synthetic.deleteOnExit();
+        writeGridMesh(synthetic, SYNTHETIC_FACES);
+        run(synthetic.getPath());
+    }
+
+    /*
+     * Time both parsers on the given file and make sure they agree on every
+     * attribute of the output
+     */
+    private static void run(String fileName) throws IOException {
+        System.out.println(fileName + " (" + new File(fileName).length() / 1024 + " KiB)");
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            parseLegacy(fileName);
+            parseStreaming(fileName);
+        }
+
+        long legacyNanos = Long.MAX_VALUE;
+        long streamingNanos = Long.MAX_VALUE;
+        float[][] legacy = null;
+        float[][] streaming = null;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            legacy = parseLegacy(fileName);
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            streaming = parseStreaming(fileName);
+            streamingNanos = Math.min(streamingNanos, System.nanoTime() - start);
+        }
+
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            if (!java.util.Arrays.equals(legacy[i], streaming[i])) {
+                throw new IllegalStateException("Parsers disagree on the " + ATTRIBUTES[i] + " of " + fileName);
+            }
+        }
+        System.out.printf("  legacy    %8.2f ms%n", legacyNanos / 1e6);
+        System.out.printf("  streaming %8.2f ms  (%.1fx)%n", streamingNanos / 1e6,
+                (double) legacyNanos / streamingNanos);
+
+        reportIndexed(fileName, streaming[0], false);
+        reportIndexed(fileName, streaming[0], true);
+    }
+
+    /*
+     * Load the file as an indexed mesh, check that expanding the indices gives
+     * back the unindexed positions and print the vertex counts and load time
+     */
+    private static void reportIndexed(String fileName, float[] expanded, boolean weldNormals) throws IOException {
+        long best = Long.MAX_VALUE;
+        ImportedModel.ModelImporter importer = null;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            importer = new ImportedModel.ModelImporter();
+            importer.parseOBJ(fileName);
+            importer.deduplicate(weldNormals);
+            importer.getVertices();
+            importer.getTextureCoordinates();
+            importer.getNormals();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        int[] indices = importer.getIndices();
+        float[] positions = importer.getVertices();
+        for (int i = 0; i < indices.length; i++) {
+            for (int c = 0; c < 3; c++) {
+                if (positions[indices[i] * 3 + c] != expanded[i * 3 + c]) {
+                    throw new IllegalStateException("Indexed mesh does not match " + fileName);
+                }
+            }
+        }
+        System.out.printf("  indexed%s %8.2f ms  %d -> %d vertices (%.1fx)%n",
+                weldNormals ? " (welded normals)" : "", best / 1e6, indices.length,
+                importer.getNumVertices(), (double) indices.length / importer.getNumVertices());
+    }
+
+    /*
+     * Positions, texture coordinates and normals, one entry per face corner
+     */
+    private static float[][] parseLegacy(String fileName) throws IOException {
+        LegacyModelImporter importer = new LegacyModelImporter();
+        importer.parseOBJ(fileName);
+        return new float[][] { importer.getVertices(), importer.getTextureCoordinates(), importer.getNormals() };
+    }
+
+    private static float[][] parseStreaming(String fileName) throws IOException {
+        ImportedModel.ModelImporter importer = new ImportedModel.ModelImporter();
+        importer.parseOBJ(fileName);
+        return new float[][] { importer.getVertices(), importer.getTextureCoordinates(), importer.getNormals() };
+    }
+
+    /*
+     * Write a flat grid with at least the requested number of triangles in the
+     * same v/vt/vn layout Blender exports
+     */
+    private static void writeGridMesh(File file, int faces) throws IOException {
+        int quads = (int) Math.ceil(Math.sqrt(faces / 2.0));
+        int side = quads + 1;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            for (int z = 0; z < side; z++) {
+                for (int x = 0; x < side; x++) {
+                    out.write("v " + (x / (float) quads) + " 0.000000 " + (z / (float) quads) + "\n");
+                }
+            }
+            for (int z = 0; z < side; z++) {
+                for (int x = 0; x < side; x++) {
+                    out.write("vt " + (x / (float) quads) + " " + (z / (float) quads) + "\n");
+                }
+            }
+            out.write("vn 0.0000 1.0000 0.0000\n");
+            for (int z = 0; z < quads; z++) {
+                for (int x = 0; x < quads; x++) {
+                    int a = z * side + x + 1;
+                    int b = a + 1;
+                    int c = a + side;
+                    int d = c + 1;
+                    out.write("f " + a + "/" + a + "/1 " + c + "/" + c + "/1 " + b + "/" + b + "/1\n");
+                    out.write("f " + b + "/" + b + "/1 " + c + "/" + c + "/1 " + d + "/" + d + "/1\n");
+                }
+            }
+        }
+    }
+
+    /*
+     * The original ImportedModel parser, kept here as the baseline
+     */
+    private static class LegacyModelImporter {
+        private ArrayList<Float> vertVals = new ArrayList<Float>();
+        private ArrayList<Float> triangleVerts = new ArrayList<Float>();
+        private ArrayList<Float> textureCoords = new ArrayList<Float>();
+        private ArrayList<Float> stVals = new ArrayList<Float>();
+        private ArrayList<Float> normals = new ArrayList<Float>();
+        private ArrayList<Float> normVals = new ArrayList<Float>();
+
+        public void parseOBJ(String filename) throws IOException {
+            InputStream input = new FileInputStream(new File(filename));
+            BufferedReader br = new BufferedReader(new InputStreamReader(input));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("v ")) {
+                    for (String s : (line.substring(2)).split(" ")) {
+                        vertVals.add(Float.valueOf(s));
+                    }
+                } else if (line.startsWith("vt")) {
+                    for (String s : (line.substring(3)).split(" ")) {
+                        stVals.add(Float.valueOf(s));
+                    }
+                } else if (line.startsWith("vn")) {
+                    for (String s : (line.substring(3)).split(" ")) {
+                        normVals.add(Float.valueOf(s));
+                    }
+                } else if (line.startsWith("f")) {
+                    for (String s : (line.substring(2)).split(" ")) {
+                        String v = s.split("/")[0];
+                        String vt = s.split("/")[1];
+                        String vn = s.split("/")[2];
+
+                        int vertRef = (Integer.valueOf(v) - 1) * 3;
+                        int tcRef = (Integer.valueOf(vt) - 1) * 2;
+                        int normRef = (Integer.valueOf(vn) - 1) * 3;
+
+                        triangleVerts.add(vertVals.get(vertRef));
+                        triangleVerts.add(vertVals.get((vertRef) + 1));
+                        triangleVerts.add(vertVals.get((vertRef) + 2));
+
+                        textureCoords.add(stVals.get(tcRef));
+                        textureCoords.add(stVals.get(tcRef + 1));
+
+                        normals.add(normVals.get(normRef));
+                        normals.add(normVals.get(normRef + 1));
+                        normals.add(normVals.get(normRef + 2));
+                    }
+                }
+            }
+            input.close();
+        }
+
+        public float[] getVertices() {
+            float[] p = new float[triangleVerts.size()];
+            for (int i = 0; i < triangleVerts.size(); i++) {
+                p[i] = triangleVerts.get(i);
+            }
+            return p;
+        }
+
+        public float[] getTextureCoordinates() {
+            float[] t = new float[(textureCoords.size())];
+            for (int i = 0; i < textureCoords.size(); i++) {
+                t[i] = textureCoords.get(i);
+            }
+            return t;
+        }
+
+        public float[] getNormals() {
+            float[] n = new float[(normals.size())];
+            for (int i = 0; i < normals.size(); i++) {
+                n[i] = normals.get(i);
+            }
+            return n;
+        }
+    }
+}
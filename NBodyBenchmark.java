@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless timing of the gravity mode. Builds an asteroid belt of the requested
+ * size around a single star (or loads a .sol file), then times the octree
+ * build, the force pass and whole leapfrog steps, sequentially and on the
+ * common pool. For small systems it also reports the energy drift.
+ *
+ * Usage: java NBodyBenchmark [solFile | particleCount] [steps]
+ */
+public class NBodyBenchmark {
+    private static final int DEFAULT_PARTICLES = 1_000_000;
+    private static final int DEFAULT_STEPS = 5;
+    private static final int ENERGY_CHECK_LIMIT = 5_000; // energy() is O(n^2)
+
+    public static void main(String[] args) throws IOException {
+        BodyStore bodies;
+        boolean belt = args.length == 0 || args[0].matches("\\d+");
+        if (!belt) {
+            bodies = BodyStore.from(SolFile.read(args[0]).stellarSystem);
+        } else {
+            bodies = belt(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PARTICLES);
+        }
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
+
+        run("sequential", bodies, belt, new ForkJoinPool(1), steps);
+        run("parallel  ", bodies, belt, ForkJoinPool.commonPool(), steps);
+    }
+
+    private static void run(String label, BodyStore bodies, boolean belt, ForkJoinPool pool, int steps) {
+        GravitySystem system = new GravitySystem(bodies);
+        if (belt) {
+            scatter(system, bodies);
+        }
+        double energy = system.size() <= ENERGY_CHECK_LIMIT ? system.energy() : Double.NaN;
+        system.step(pool); // Warm up
+
+        Octree octree = system.getOctree();
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            system.step(pool);
+        }
+        long nanos = System.nanoTime() - start;
+
+        System.out.printf("%s %d particles, %d nodes: %.1f ms per step (%.2f steps/s)%n", label, system.size(),
+                octree.getNodeCount(), nanos / 1e6 / steps, steps / (nanos / 1e9));
+        if (!Double.isNaN(energy)) {
+            System.out.printf("%s energy drift after %d steps: %.2e%n", label, system.getSteps(),
+                    Math.abs((system.energy() - energy) / energy));
+        }
+    }
+
+    /*
+     * Every body starts at phase 0 of its orbit, which lines the whole belt up
+     * along the x axis. Rotate each asteroid to a random phase.
+     */
+    private static void scatter(GravitySystem system, BodyStore bodies) {
+        Random random = new Random(7);
+        for (int i = 0; i < system.size(); i++) {
+            if (bodies.parent[i] != 0) {
+                continue;
+            }
+            double angle = random.nextDouble() * 2 * Math.PI;
+            system.rotate(i, Math.cos(angle), Math.sin(angle));
+        }
+    }
+
+    /*
+     * A star with particleCount asteroids on circular orbits between 20 and 40
+     * units, periods following Kepler's third law
+     */
+    static BodyStore belt(int particleCount) {
+        Random random = new Random(42);
+        BodyStore bodies = new BodyStore(particleCount + 1);
+        int sun = bodies.add(5, 2.8f, 0, 0, BodyStore.NO_PARENT);
+        for (int i = 0; i < particleCount; i++) {
+            float a = 20 + 20 * random.nextFloat();
+            float period = (float) (2 * Math.PI * Math.sqrt(a * a * a));
+            bodies.add(0.001f + 0.01f * random.nextFloat(), 1, a, period, sun);
+        }
+        return bodies;
+    }
+}
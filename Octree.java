@@ -0,0 +1,547 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Barnes-Hut octree over a set of point masses. Particles are sorted along a
+ * Morton (z-order) curve, so every node covers a contiguous range of the sorted
+ * particles and a node's children are found by binary search on the keys.
+ * Nodes live in flat arrays, children of a node are stored next to each other,
+ * and both the build and the force pass are split over a ForkJoinPool.
+ *
+ * Masses are gravitational parameters (G * m), so accelerations come out
+ * without a separate gravitational constant.
+ */
+public class Octree {
+    public static final int LEAF_SIZE = 16; // Particles below which a node is not split
+    public static final int GROUP_SIZE = 64; // Particles sharing one walk of the force pass
+    private static final int FORK_THRESHOLD = 8192; // Particles below which a subtree is built in one task
+    private static final int MIN_CHUNK = 1024;
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final int MAX_LEVELS = 21; // 3 * 21 bits fill a long
+    private static final double MIN_SOFTENING = 1e-6;
+
+    private int count;
+    private int indexBits;
+    private int levels;
+    private double rootSize;
+
+    // Particles in Morton order
+    private long[] keys; // Morton code above indexBits bits of original index
+    private int[] order; // Original index of each sorted particle
+    private double[] px;
+    private double[] py;
+    private double[] pz;
+    private double[] pm;
+
+    // Nodes, the root is node 0
+    private int nodeCount;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private volatile boolean overflow;
+    private int[] nodeFirst; // Sorted particle range
+    private int[] nodeEnd;
+    private int[] nodeChild; // Index of the first child
+    private int[] nodeChildren; // Number of children, 0 for a leaf
+    private double[] nodeSize; // Edge length of the node's cube
+    private double[] nodeMass;
+    private double[] nodeX; // Centre of mass
+    private double[] nodeY;
+    private double[] nodeZ;
+    private int[] groups = new int[0]; // Nodes the force pass walks the tree for
+    private int groupCount;
+
+    public Octree() {
+        this.keys = new long[0];
+        this.order = new int[0];
+        this.px = this.py = this.pz = this.pm = new double[0];
+        allocateNodes(1);
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    /*
+     * Rebuild the tree over the first count particles. The arrays are copied,
+     * so they can be changed as soon as this returns.
+     */
+    public void build(double[] x, double[] y, double[] z, double[] mass, int count, ForkJoinPool pool) {
+        ensureParticles(count);
+        this.count = count;
+        this.indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(count - 1, 1));
+        this.levels = Math.min(MAX_LEVELS, (63 - this.indexBits) / 3);
+
+        // Bounding cube
+        double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        this.rootSize = Math.max(Math.max(maxX - minX, maxY - minY), Math.max(maxZ - minZ, Double.MIN_NORMAL));
+        double scale = (1 << this.levels) / this.rootSize;
+
+        int cutoff = cutoff(count, pool);
+        pool.invoke(new ParticleTask(ParticleTask.KEYS, x, y, z, mass, minX, minY, minZ, scale, 0, count, cutoff));
+        Arrays.parallelSort(this.keys, 0, count);
+        pool.invoke(new ParticleTask(ParticleTask.GATHER, x, y, z, mass, 0, 0, 0, 0, 0, count, cutoff));
+
+        // Node arrays are sized from a guess and grown whenever a build runs out
+        if (this.nodeFirst.length < 2 * count / LEAF_SIZE + 64) {
+            allocateNodes(2 * count / LEAF_SIZE + 64);
+        }
+        do {
+            this.overflow = false;
+            this.allocated.set(1);
+            this.nodeFirst[0] = 0;
+            this.nodeEnd[0] = count;
+            if (count > 0) {
+                pool.invoke(new BuildTask(0, 0));
+            } else {
+                this.nodeChildren[0] = 0;
+                this.nodeMass[0] = 0;
+            }
+            if (this.overflow) {
+                allocateNodes(this.nodeFirst.length * 2);
+            }
+        } while (this.overflow);
+        this.nodeCount = this.allocated.get();
+        collectGroups();
+    }
+
+    /*
+     * The largest nodes with at most GROUP_SIZE particles (or leaves, if
+     * larger), in Morton order. These are the units of work of the force pass.
+     */
+    private void collectGroups() {
+        if (this.groups.length < this.nodeCount) {
+            this.groups = new int[this.nodeCount];
+        }
+        this.groupCount = 0;
+        if (this.count == 0) {
+            return;
+        }
+        int[] stack = new int[7 * this.levels + 8];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (this.nodeChildren[node] == 0 || this.nodeEnd[node] - this.nodeFirst[node] <= GROUP_SIZE) {
+                this.groups[this.groupCount++] = node;
+            } else {
+                for (int c = this.nodeChild[node] + this.nodeChildren[node] - 1; c >= this.nodeChild[node]; c--) {
+                    stack[top++] = c;
+                }
+            }
+        }
+    }
+
+    /*
+     * Acceleration on every particle of the last build, written to ax, ay, az in
+     * the particles' original order. A node whose size over its distance from a
+     * group of nearby particles is below theta acts on the whole group as a point
+     * mass, and softening keeps close encounters finite. Softening never goes
+     * below MIN_SOFTENING of the tree's size, nor below what keeps the force
+     * terms finite in single precision when the tree has no size at all (a
+     * single body, or bodies all at one place).
+     */
+    public void accelerations(double[] ax, double[] ay, double[] az, double theta, double softening,
+            ForkJoinPool pool) {
+        softening = Math.max(softening, this.rootSize * MIN_SOFTENING);
+        double softening2 = Math.max(softening * softening, floatSoftening2(this.nodeMass[0]));
+        int cutoff = Math.max(1, this.groupCount / (pool.getParallelism() * CHUNKS_PER_WORKER));
+        pool.invoke(new ForceTask(ax, ay, az, theta * theta, softening2, 0, this.groupCount, cutoff));
+    }
+
+    /*
+     * Smallest squared softening for which mass / r2^1.5, with r2 at least
+     * that, is a finite float with a normal denominator for every mass up to
+     * the given total. A factor of 4 (8 on r2^1.5) covers rounding.
+     */
+    private static double floatSoftening2(double mass) {
+        return 4 * Math.pow(Math.max(mass / Float.MAX_VALUE, Float.MIN_NORMAL), 2.0 / 3);
+    }
+
+    private static int cutoff(int count, ForkJoinPool pool) {
+        return Math.max(MIN_CHUNK, count / (pool.getParallelism() * CHUNKS_PER_WORKER));
+    }
+
+    private void ensureParticles(int count) {
+        if (this.keys.length < count) {
+            this.keys = new long[count];
+            this.order = new int[count];
+            this.px = new double[count];
+            this.py = new double[count];
+            this.pz = new double[count];
+            this.pm = new double[count];
+        }
+    }
+
+    private void allocateNodes(int capacity) {
+        this.nodeFirst = new int[capacity];
+        this.nodeEnd = new int[capacity];
+        this.nodeChild = new int[capacity];
+        this.nodeChildren = new int[capacity];
+        this.nodeSize = new double[capacity];
+        this.nodeMass = new double[capacity];
+        this.nodeX = new double[capacity];
+        this.nodeY = new double[capacity];
+        this.nodeZ = new double[capacity];
+    }
+
+    /*
+     * Spread the low 21 bits of v so there are two zero bits between each
+     */
+    private static long spread(long v) {
+        v &= 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    private long quantize(double v, double min, double scale) {
+        long q = (long) ((v - min) * scale);
+        return Math.min(Math.max(q, 0), (1L << this.levels) - 1);
+    }
+
+    /*
+     * First sorted particle in [from, to) whose octant at the given shift is
+     * above octant
+     */
+    private int upperBound(int from, int to, int shift, int octant) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if ((int) (this.keys[mid] >>> shift & 7) <= octant) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /*
+     * Morton keys and the sorted particle copies, independent per particle
+     */
+    private class ParticleTask extends RecursiveAction {
+        static final int KEYS = 0;
+        static final int GATHER = 1;
+
+        private final int pass;
+        private final double[] x, y, z, mass;
+        private final double minX, minY, minZ, scale;
+        private final int from, to, cutoff;
+
+        ParticleTask(int pass, double[] x, double[] y, double[] z, double[] mass, double minX, double minY,
+                double minZ, double scale, int from, int to, int cutoff) {
+            this.pass = pass;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.mass = mass;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.scale = scale;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > this.cutoff) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new ParticleTask(this.pass, this.x, this.y, this.z, this.mass, this.minX, this.minY,
+                        this.minZ, this.scale, this.from, mid, this.cutoff),
+                        new ParticleTask(this.pass, this.x, this.y, this.z, this.mass, this.minX, this.minY,
+                                this.minZ, this.scale, mid, this.to, this.cutoff));
+                return;
+            }
+            for (int i = this.from; i < this.to; i++) {
+                if (this.pass == KEYS) {
+                    long morton = spread(quantize(this.x[i], this.minX, this.scale)) << 2
+                            | spread(quantize(this.y[i], this.minY, this.scale)) << 1
+                            | spread(quantize(this.z[i], this.minZ, this.scale));
+                    keys[i] = morton << indexBits | i;
+                } else {
+                    int p = (int) (keys[i] & ((1L << indexBits) - 1));
+                    order[i] = p;
+                    px[i] = this.x[p];
+                    py[i] = this.y[p];
+                    pz[i] = this.z[p];
+                    pm[i] = this.mass[p];
+                }
+            }
+        }
+    }
+
+    /*
+     * Splits a node into its non-empty octants, builds the children (in
+     * parallel for large ranges) and then sums their mass moments
+     */
+    private class BuildTask extends RecursiveAction {
+        private final int node;
+        private final int level;
+
+        BuildTask(int node, int level) {
+            this.node = node;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute() {
+            int node = this.node;
+            int first = nodeFirst[node];
+            int end = nodeEnd[node];
+            nodeSize[node] = rootSize / (1 << this.level);
+
+            if (end - first <= LEAF_SIZE || this.level == levels) {
+                leaf(node, first, end);
+                return;
+            }
+
+            // Octant boundaries at this level
+            int shift = indexBits + 3 * (levels - 1 - this.level);
+            int[] bounds = new int[9];
+            bounds[0] = first;
+            int children = 0;
+            for (int octant = 0; octant < 8; octant++) {
+                bounds[octant + 1] = upperBound(bounds[octant], end, shift, octant);
+                if (bounds[octant + 1] > bounds[octant]) {
+                    children++;
+                }
+            }
+
+            int child = allocated.getAndAdd(children);
+            if (child + children > nodeFirst.length) {
+                overflow = true;
+                nodeChildren[node] = 0;
+                return;
+            }
+            nodeChild[node] = child;
+            nodeChildren[node] = children;
+
+            BuildTask[] forks = end - first > FORK_THRESHOLD ? new BuildTask[children] : null;
+            int c = child;
+            for (int octant = 0; octant < 8; octant++) {
+                if (bounds[octant + 1] > bounds[octant]) {
+                    nodeFirst[c] = bounds[octant];
+                    nodeEnd[c] = bounds[octant + 1];
+                    BuildTask task = new BuildTask(c, this.level + 1);
+                    if (forks != null) {
+                        forks[c - child] = task;
+                    } else {
+                        task.compute();
+                    }
+                    c++;
+                }
+            }
+            if (forks != null) {
+                invokeAll(forks);
+            }
+
+            double m = 0, x = 0, y = 0, z = 0;
+            for (c = child; c < child + children; c++) {
+                m += nodeMass[c];
+                x += nodeMass[c] * nodeX[c];
+                y += nodeMass[c] * nodeY[c];
+                z += nodeMass[c] * nodeZ[c];
+            }
+            moments(node, m, x, y, z, first);
+        }
+
+        private void leaf(int node, int first, int end) {
+            nodeChildren[node] = 0;
+            double m = 0, x = 0, y = 0, z = 0;
+            for (int i = first; i < end; i++) {
+                m += pm[i];
+                x += pm[i] * px[i];
+                y += pm[i] * py[i];
+                z += pm[i] * pz[i];
+            }
+            moments(node, m, x, y, z, first);
+        }
+
+        /*
+         * Store the mass and centre of mass, falling back to the first particle
+         * for massless nodes
+         */
+        private void moments(int node, double m, double x, double y, double z, int first) {
+            nodeMass[node] = m;
+            if (m > 0) {
+                nodeX[node] = x / m;
+                nodeY[node] = y / m;
+                nodeZ[node] = z / m;
+            } else {
+                nodeX[node] = px[first];
+                nodeY[node] = py[first];
+                nodeZ[node] = pz[first];
+            }
+        }
+    }
+
+    /*
+     * Walks the tree once per group rather than once per particle. Nodes far
+     * enough from the group's bounding box to be treated as point masses, and the
+     * particles of nearby leaves, go into one interaction list that is then
+     * applied to every particle of the group in a straight loop.
+     */
+    private class ForceTask extends RecursiveAction {
+        private final double[] ax, ay, az;
+        private final double theta2, softening2;
+        private final int from, to, cutoff; // Range of groups
+
+        // Interaction list, reused across the task's groups. Single precision
+        // relative to the group's centre, which keeps the square roots and
+        // divisions cheap without losing position accuracy.
+        private float[] listX, listY, listZ, listM;
+        private int listSize;
+        private double centreX, centreY, centreZ;
+
+        ForceTask(double[] ax, double[] ay, double[] az, double theta2, double softening2, int from, int to,
+                int cutoff) {
+            this.ax = ax;
+            this.ay = ay;
+            this.az = az;
+            this.theta2 = theta2;
+            this.softening2 = softening2;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > this.cutoff) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new ForceTask(this.ax, this.ay, this.az, this.theta2, this.softening2, this.from, mid,
+                        this.cutoff),
+                        new ForceTask(this.ax, this.ay, this.az, this.theta2, this.softening2, mid, this.to,
+                                this.cutoff));
+                return;
+            }
+            this.listX = new float[4096];
+            this.listY = new float[4096];
+            this.listZ = new float[4096];
+            this.listM = new float[4096];
+            int[] stack = new int[7 * levels + 8];
+            for (int g = this.from; g < this.to; g++) {
+                int group = groups[g];
+                collect(group, stack);
+                apply(nodeFirst[group], nodeEnd[group]);
+            }
+        }
+
+        /*
+         * Build the interaction list for one group. The opening test uses the
+         * distance from a node's centre of mass to the group's bounding box, so it
+         * holds for every particle in the group. Nodes holding any of the group's
+         * particles (its ancestors, itself and its descendants, whose sorted
+         * ranges overlap the group's) are always opened whatever theta is, so the
+         * group never feels its own mass as a point and its particles see each
+         * other one by one.
+         */
+        private void collect(int group, int[] stack) {
+            int groupFirst = nodeFirst[group];
+            int groupEnd = nodeEnd[group];
+            double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+            for (int i = nodeFirst[group]; i < nodeEnd[group]; i++) {
+                minX = Math.min(minX, px[i]);
+                minY = Math.min(minY, py[i]);
+                minZ = Math.min(minZ, pz[i]);
+                maxX = Math.max(maxX, px[i]);
+                maxY = Math.max(maxY, py[i]);
+                maxZ = Math.max(maxZ, pz[i]);
+            }
+            this.centreX = (minX + maxX) / 2;
+            this.centreY = (minY + maxY) / 2;
+            this.centreZ = (minZ + maxZ) / 2;
+
+            this.listSize = 0;
+            int top = 0;
+            stack[top++] = 0;
+            while (top > 0) {
+                int node = stack[--top];
+                double dx = Math.max(Math.max(minX - nodeX[node], nodeX[node] - maxX), 0);
+                double dy = Math.max(Math.max(minY - nodeY[node], nodeY[node] - maxY), 0);
+                double dz = Math.max(Math.max(minZ - nodeZ[node], nodeZ[node] - maxZ), 0);
+                double d2 = dx * dx + dy * dy + dz * dz;
+                boolean own = nodeFirst[node] < groupEnd && groupFirst < nodeEnd[node];
+                if (!own && nodeSize[node] * nodeSize[node] < this.theta2 * d2) {
+                    add(nodeX[node], nodeY[node], nodeZ[node], nodeMass[node]);
+                } else if (nodeChildren[node] == 0) {
+                    for (int j = nodeFirst[node]; j < nodeEnd[node]; j++) {
+                        add(px[j], py[j], pz[j], pm[j]);
+                    }
+                } else {
+                    for (int c = nodeChild[node] + nodeChildren[node] - 1; c >= nodeChild[node]; c--) {
+                        stack[top++] = c;
+                    }
+                }
+            }
+        }
+
+        private void add(double x, double y, double z, double m) {
+            if (this.listSize == this.listX.length) {
+                this.listX = Arrays.copyOf(this.listX, this.listSize * 2);
+                this.listY = Arrays.copyOf(this.listY, this.listSize * 2);
+                this.listZ = Arrays.copyOf(this.listZ, this.listSize * 2);
+                this.listM = Arrays.copyOf(this.listM, this.listSize * 2);
+            }
+            this.listX[this.listSize] = (float) (x - this.centreX);
+            this.listY[this.listSize] = (float) (y - this.centreY);
+            this.listZ[this.listSize] = (float) (z - this.centreZ);
+            this.listM[this.listSize] = (float) m;
+            this.listSize++;
+        }
+
+        /*
+         * Sum the interaction list for each particle of the group. A particle
+         * meets itself in the list at distance 0, as do particles at the same
+         * place. The softening floor keeps s finite for those, so they add
+         * 0 * s = 0 without a branch in the loop.
+         */
+        private void apply(int first, int end) {
+            float softening2 = (float) this.softening2;
+            float[] listX = this.listX;
+            float[] listY = this.listY;
+            float[] listZ = this.listZ;
+            float[] listM = this.listM;
+            for (int i = first; i < end; i++) {
+                float x = (float) (px[i] - this.centreX);
+                float y = (float) (py[i] - this.centreY);
+                float z = (float) (pz[i] - this.centreZ);
+                float fx = 0, fy = 0, fz = 0;
+                for (int k = 0; k < this.listSize; k++) {
+                    float dx = listX[k] - x;
+                    float dy = listY[k] - y;
+                    float dz = listZ[k] - z;
+                    float r2 = dx * dx + dy * dy + dz * dz + softening2;
+                    float s = listM[k] / (r2 * (float) Math.sqrt(r2));
+                    fx += dx * s;
+                    fy += dy * s;
+                    fz += dz * s;
+                }
+
+                int p = order[i];
+                this.ax[p] = fx;
+                this.ay[p] = fy;
+                this.az[p] = fz;
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless timing of the orbit engine. Advances a stellar system through a
+ * number of frames without any GL context or window, with Math.sin / Math.cos
+ * and with a SinCosTable, and reports how far the table moves the bodies.
+ *
+ * Usage: java OrbitBenchmark [solFile | bodyCount] [frames]
+ */
+public class OrbitBenchmark {
+    private static final int DEFAULT_BODIES = 100_000;
+    private static final int DEFAULT_FRAMES = 200;
+    private static final int MOONS_PER_PLANET = 99;
+    private static final float FRAME_SECONDS = 1 / 60f;
+
+    public static void main(String[] args) throws IOException {
+        StellarSystem stellarSystem;
+        if (args.length > 0 && !args[0].matches("\\d+")) {
+            stellarSystem = SolFile.read(args[0]).stellarSystem;
+        } else {
+            stellarSystem = generate(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BODIES);
+        }
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_FRAMES;
+
+        Simulation exact = new Simulation(stellarSystem, new ForkJoinPool(1));
+        Simulation table = new Simulation(stellarSystem, new ForkJoinPool(1));
+        table.getBodies().setSinCosTable(new SinCosTable());
+        run("sequential", exact, frames);
+        run("table     ", table, frames);
+        run("parallel  ", new Simulation(stellarSystem, ForkJoinPool.commonPool()), frames);
+        compare(exact, table, frames);
+    }
+
+    /*
+     * Largest difference between the two simulations' model matrices over a
+     * range of frames. The bound is the table's error for every orbit of the
+     * longest chain of orbits, plus float rounding.
+     */
+    private static void compare(Simulation exact, Simulation table, int frames) {
+        BodyStore bodies = exact.getBodies();
+        float[] a = bodies.getModelMatrices();
+        float[] b = table.getBodies().getModelMatrices();
+        double chain = 0;
+        for (int i = 0; i < bodies.size(); i++) {
+            double sum = bodies.radius[i];
+            for (int p = i; p != BodyStore.NO_PARENT; p = bodies.parent[p]) {
+                sum += bodies.orbitalRadius[p];
+            }
+            chain = Math.max(chain, sum);
+        }
+        double worst = 0;
+        double scale = 0;
+        for (int f = 0; f < frames; f++) {
+            exact.advanceTo(f * 7.3);
+            table.advanceTo(f * 7.3);
+            for (int i = 0; i < exact.getBodies().size() * BodyStore.MATRIX_FLOATS; i++) {
+                worst = Math.max(worst, Math.abs(a[i] - b[i]));
+                scale = Math.max(scale, Math.abs(a[i]));
+            }
+        }
+        double bound = table.getBodies().getSinCosTable().maxError() * chain + 2 * Math.ulp((float) scale);
+        System.out.printf("table error %.2e (bound %.2e)%n", worst, bound);
+    }
+
+    private static void run(String label, Simulation simulation, int frames) {
+        for (int i = 0; i < frames; i++) {
+            simulation.advanceTo(i * FRAME_SECONDS);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            simulation.advanceTo((frames + i) * FRAME_SECONDS);
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%s %d bodies: %.3f ms per frame%n", label, simulation.getBodies().size(),
+                nanos / 1e6 / frames);
+    }
+
+    /*
+     * Build a system of roughly the requested size: planets spread out from the
+     * sun, each with the same number of moons
+     */
+    static StellarSystem generate(int bodyCount) {
+        java.util.Random random = new java.util.Random(42);
+        StellarSystem stellarSystem = new StellarSystem(new CelestialObject("sun.jpg", 5, 2.8f));
+        int planets = Math.max(1, (bodyCount - 1) / (MOONS_PER_PLANET + 1));
+        for (int p = 0; p < planets; p++) {
+            int planet = stellarSystem.add(new CelestialObject("earth.jpg",
+                    0.5f + random.nextFloat(), 1 + random.nextFloat() * 5, 20 + p * 0.5f,
+                    10 + random.nextFloat() * 100, 0), 0);
+            for (int m = 0; m < MOONS_PER_PLANET; m++) {
+                stellarSystem.add(new CelestialObject("moon.jpg", 0.1f + random.nextFloat() * 0.2f,
+                        1 + random.nextFloat() * 5, 2 + random.nextFloat() * 8,
+                        (random.nextBoolean() ? 1 : -1) * (2 + random.nextFloat() * 20), 0), planet);
+            }
+        }
+        return stellarSystem;
+    }
+}
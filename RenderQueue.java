@@ -0,0 +1,138 @@
+import java.util.Arrays;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.GL4;
+
+/**
+ * The draws of one frame, collected first and then submitted sorted by
+ * program, then mesh (vertex array), then texture, so each of them is bound
+ * once per run of draws that share it. Binds go through a GLStateCache,
+ * which also drops the ones left over from the frame before.
+ *
+ * Draws are kept in parallel arrays and sorted on one long per draw: 16 bits
+ * each of program, vertex array and texture over the draw's index, so at
+ * most MAX_DRAWS draws fit in a frame. GL names above 16 bits still draw
+ * correctly but may sort less well.
+ */
+public class RenderQueue {
+    public static final int MAX_DRAWS = 1 << 16;
+    private static final int ELEMENTS = 0;
+    private static final int ARRAYS = 1;
+    private static final int INDIRECT = 2;
+
+    private int count;
+    private long[] keys = new long[16];
+    private int[] kind = new int[16];
+    private int[] program = new int[16];
+    private int[] vertexArray = new int[16];
+    private int[] textureTarget = new int[16];
+    private int[] texture = new int[16];
+    private int[] mode = new int[16];
+    private int[] first = new int[16]; // First index, first vertex or command buffer
+    private int[] elements = new int[16]; // Index, vertex or command count
+    private int[] instances = new int[16];
+    private int[] baseVertex = new int[16];
+    private int[] baseInstance = new int[16];
+
+    public int size() {
+        return this.count;
+    }
+
+    public void clear() {
+        this.count = 0;
+    }
+
+    /*
+     * Queue an instanced draw of unsigned int indices, starting firstIndex
+     * indices into the bound element buffer
+     */
+    public void drawElements(int program, int vertexArray, int textureTarget, int texture, int mode,
+            int indexCount, int firstIndex, int instanceCount, int baseVertex, int baseInstance) {
+        int i = add(ELEMENTS, program, vertexArray, textureTarget, texture, mode, firstIndex, indexCount,
+                instanceCount, baseInstance);
+        this.baseVertex[i] = baseVertex;
+    }
+
+    /*
+     * Queue an instanced draw of vertexCount vertices from firstVertex
+     */
+    public void drawArrays(int program, int vertexArray, int textureTarget, int texture, int mode,
+            int firstVertex, int vertexCount, int instanceCount, int baseInstance) {
+        add(ARRAYS, program, vertexArray, textureTarget, texture, mode, firstVertex, vertexCount, instanceCount,
+                baseInstance);
+    }
+
+    /*
+     * Queue drawCount DrawElementsIndirectCommands of unsigned int indices,
+     * read from the start of commandBuffer, as one multi draw
+     */
+    public void multiDrawElementsIndirect(int program, int vertexArray, int textureTarget, int texture, int mode,
+            int commandBuffer, int drawCount) {
+        add(INDIRECT, program, vertexArray, textureTarget, texture, mode, commandBuffer, drawCount, 0, 0);
+    }
+
+    private int add(int kind, int program, int vertexArray, int textureTarget, int texture, int mode, int first,
+            int elements, int instances, int baseInstance) {
+        if (this.count == MAX_DRAWS) {
+            throw new IllegalStateException("More than " + MAX_DRAWS + " draws in a frame");
+        }
+        if (this.count == this.keys.length) {
+            grow(this.count * 2);
+        }
+        int i = this.count++;
+        this.keys[i] = (long) (program & 0xFFFF) << 48 | (long) (vertexArray & 0xFFFF) << 32
+                | (long) (texture & 0xFFFF) << 16 | i;
+        this.kind[i] = kind;
+        this.program[i] = program;
+        this.vertexArray[i] = vertexArray;
+        this.textureTarget[i] = textureTarget;
+        this.texture[i] = texture;
+        this.mode[i] = mode;
+        this.first[i] = first;
+        this.elements[i] = elements;
+        this.instances[i] = instances;
+        this.baseInstance[i] = baseInstance;
+        return i;
+    }
+
+    private void grow(int capacity) {
+        this.keys = Arrays.copyOf(this.keys, capacity);
+        this.kind = Arrays.copyOf(this.kind, capacity);
+        this.program = Arrays.copyOf(this.program, capacity);
+        this.vertexArray = Arrays.copyOf(this.vertexArray, capacity);
+        this.textureTarget = Arrays.copyOf(this.textureTarget, capacity);
+        this.texture = Arrays.copyOf(this.texture, capacity);
+        this.mode = Arrays.copyOf(this.mode, capacity);
+        this.first = Arrays.copyOf(this.first, capacity);
+        this.elements = Arrays.copyOf(this.elements, capacity);
+        this.instances = Arrays.copyOf(this.instances, capacity);
+        this.baseVertex = Arrays.copyOf(this.baseVertex, capacity);
+        this.baseInstance = Arrays.copyOf(this.baseInstance, capacity);
+    }
+
+    /*
+     * Sort the queued draws, bind what each needs on texture unit 0 and issue
+     * them, then empty the queue
+     */
+    public void submit(GLStateCache state) {
+        Arrays.sort(this.keys, 0, this.count);
+        GL4 gl = state.gl();
+        for (int k = 0; k < this.count; k++) {
+            int i = (int) (this.keys[k] & 0xFFFF);
+            state.useProgram(this.program[i]);
+            state.bindVertexArray(this.vertexArray[i]);
+            state.bindTexture(0, this.textureTarget[i], this.texture[i]);
+            if (this.kind[i] == ELEMENTS) {
+                gl.glDrawElementsInstancedBaseVertexBaseInstance(this.mode[i], this.elements[i], GL_UNSIGNED_INT,
+                        this.first[i] * 4L, this.instances[i], this.baseVertex[i], this.baseInstance[i]);
+            } else if (this.kind[i] == INDIRECT) {
+                // JOGL only takes the commands as a Buffer; null is offset 0 into the bound one
+                state.bindBuffer(GL_DRAW_INDIRECT_BUFFER, this.first[i]);
+                gl.glMultiDrawElementsIndirect(this.mode[i], GL_UNSIGNED_INT, null, this.elements[i], 0);
+            } else {
+                gl.glDrawArraysInstancedBaseInstance(this.mode[i], this.first[i], this.elements[i],
+                        this.instances[i], this.baseInstance[i]);
+            }
+        }
+        this.count = 0;
+    }
+}
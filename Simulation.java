@@ -0,0 +1,94 @@
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The orbit engine. Owns a StellarSystem and advances every body's transforms
+ * to a point in time. Has no rendering dependencies, so it can be run and
+ * measured without a display or GL context.
+ *
+ * Bodies either follow the fixed circular orbits of the .sol file (KEPLER) or
+ * are moved by their mutual gravity (GRAVITY), see GravitySystem.
+ */
+public class Simulation {
+    public enum Mode {
+        KEPLER, GRAVITY
+    }
+
+    private final StellarSystem stellarSystem;
+    private final BodyStore bodies;
+    private final ForkJoinPool pool;
+    private final GravitySystem gravitySystem; // null in KEPLER mode
+
+    // Time Management
+    private long timeElapsed; // In nanoseconds
+
+    public Simulation(StellarSystem stellarSystem) {
+        this(stellarSystem, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * pool is used to update large systems in parallel, see BodyStore
+     */
+    public Simulation(StellarSystem stellarSystem, ForkJoinPool pool) {
+        this(stellarSystem, pool, Mode.KEPLER);
+    }
+
+    public Simulation(StellarSystem stellarSystem, ForkJoinPool pool, Mode mode) {
+        this.stellarSystem = stellarSystem;
+        this.bodies = BodyStore.from(stellarSystem);
+        this.pool = pool;
+        this.gravitySystem = mode == Mode.GRAVITY ? new GravitySystem(this.bodies) : null;
+    }
+
+    public StellarSystem getStellarSystem() {
+        return this.stellarSystem;
+    }
+
+    /*
+     * Per-body state, in the order of StellarSystem.getBodies()
+     */
+    public BodyStore getBodies() {
+        return this.bodies;
+    }
+
+    /*
+     * The N-body state in GRAVITY mode, null otherwise
+     */
+    public GravitySystem getGravitySystem() {
+        return this.gravitySystem;
+    }
+
+    /*
+     * Seconds since the start
+     */
+    public double getTimeElapsed() {
+        return this.timeElapsed / 1e9;
+    }
+
+    public long getTimeElapsedNanos() {
+        return this.timeElapsed;
+    }
+
+    /*
+     * Move every body to where it is timeElapsed seconds after the start. The
+     * sun only rotates and every other body orbits the body above it.
+     * In GRAVITY mode the system is integrated to timeElapsed instead.
+     * Returns once every body is updated.
+     */
+    public void advanceTo(double timeElapsed) {
+        advanceToNanos(Math.round(timeElapsed * 1e9));
+    }
+
+    /*
+     * Same as advanceTo(seconds). Time in nanoseconds keeps orbits exact however
+     * long the simulation has been running, and may go backwards.
+     */
+    public void advanceToNanos(long timeElapsed) {
+        this.timeElapsed = timeElapsed;
+        if (this.gravitySystem != null) {
+            this.gravitySystem.advanceTo(timeElapsed / 1e9, this.pool);
+            this.gravitySystem.writeTo(this.bodies, timeElapsed, this.pool);
+        } else {
+            this.bodies.update(timeElapsed, this.pool);
+        }
+    }
+}
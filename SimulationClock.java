@@ -0,0 +1,93 @@
+/**
+ * Simulated time, kept as a whole number of nanoseconds so it never loses
+ * precision however long it runs. Real time is turned into simulated time by
+ * a warp factor: 1 is real time, 2 twice as fast, negative runs backwards, and
+ * a paused clock does not move at all. Warp and pause can be changed from any
+ * thread; the clock itself is advanced by a single thread.
+ *
+ * The warp is kept within MAX_WARP either way. Time that would run past the
+ * range of a long (about 292 years either side of the start) stops at the
+ * limit instead of wrapping around.
+ */
+public class SimulationClock {
+    public static final double MAX_WARP = 1e9; // A real second is about 32 simulated years
+
+    private volatile double warp = 1;
+    private volatile boolean paused;
+    private volatile long timeNanos;
+    private double remainder; // Fraction of a nanosecond carried to the next advance
+
+    public SimulationClock() {
+    }
+
+    public SimulationClock(long timeNanos) {
+        this.timeNanos = timeNanos;
+    }
+
+    /*
+     * Move the clock on by realNanos of real time, scaled by the warp factor
+     */
+    public long advance(long realNanos) {
+        if (this.paused) {
+            return this.timeNanos;
+        }
+        double scaled = realNanos * this.warp + this.remainder;
+        long whole = (long) scaled; // Saturates rather than wraps
+        this.remainder = scaled - whole;
+        try {
+            this.timeNanos = Math.addExact(this.timeNanos, whole);
+        } catch (ArithmeticException e) {
+            this.timeNanos = whole > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+            this.remainder = 0;
+        }
+        if (this.remainder >= 1 || this.remainder <= -1) {
+            this.remainder = 0; // Only left by a saturated cast
+        }
+        return this.timeNanos;
+    }
+
+    public long getTimeNanos() {
+        return this.timeNanos;
+    }
+
+    /*
+     * Simulated seconds, for display
+     */
+    public double getTime() {
+        return this.timeNanos / 1e9;
+    }
+
+    public void setTimeNanos(long timeNanos) {
+        this.timeNanos = timeNanos;
+        this.remainder = 0;
+    }
+
+    public double getWarp() {
+        return this.warp;
+    }
+
+    /*
+     * Set the warp factor, clamped to MAX_WARP in either direction
+     */
+    public void setWarp(double warp) {
+        if (Double.isNaN(warp)) {
+            throw new IllegalArgumentException("Warp must be a number");
+        }
+        this.warp = Math.max(-MAX_WARP, Math.min(MAX_WARP, warp));
+    }
+
+    /*
+     * Run backwards at the same speed, or forwards again
+     */
+    public void reverse() {
+        this.warp = -this.warp;
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+}
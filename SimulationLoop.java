@@ -0,0 +1,247 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a Simulation on its own thread at a fixed tick, decoupled from the
+ * render loop. Each tick moves a SimulationClock on by one tick of real time,
+ * so simulated time follows the clock's warp, pause and direction. After every
+ * tick the bodies' positions and spins are published
+ * as a Snapshot through a lock-free buffer exchange, and the render thread
+ * interpolates between the last two snapshots it has received. A slow frame
+ * never holds up the simulation, and a slow tick never blocks a frame.
+ *
+ * Snapshots are exchanged with four buffers: one being written by the
+ * simulation thread, one waiting in the exchange slot and two held by the
+ * reader (previous and current). A buffer is only ever owned by one side, so
+ * neither side locks or copies under contention.
+ */
+public class SimulationLoop {
+    public static final double DEFAULT_TICK_SECONDS = 1.0 / 120;
+    private static final int MAX_CATCH_UP_TICKS = 8; // Ticks run back to back before time is dropped
+    private static final int BUFFERS = 4;
+    private static final int FRESH = 1 << 8; // Set on the exchange slot when it holds an unread snapshot
+    private static final int INDEX_MASK = FRESH - 1;
+    private static final double INV_TWO_PI = 1 / (Math.PI * 2);
+
+    private final Simulation simulation;
+    private final SimulationClock clock;
+    private final long tickNanos;
+    private final Snapshot[] snapshots = new Snapshot[BUFFERS];
+    private final AtomicInteger exchange;
+
+    // Owned by the simulation thread
+    private int back;
+    private long ticks;
+
+    // Owned by the reader
+    private int previous;
+    private int current;
+
+    private volatile boolean running;
+    private volatile long startNanos;
+    private Thread thread;
+
+    public SimulationLoop(Simulation simulation) {
+        this(simulation, new SimulationClock(), DEFAULT_TICK_SECONDS);
+    }
+
+    public SimulationLoop(Simulation simulation, SimulationClock clock) {
+        this(simulation, clock, DEFAULT_TICK_SECONDS);
+    }
+
+    /*
+     * The loop advances the given clock, so it must not be advanced elsewhere
+     * while the loop runs
+     */
+    public SimulationLoop(Simulation simulation, SimulationClock clock, double tickSeconds) {
+        this.simulation = simulation;
+        this.clock = clock;
+        this.tickNanos = Math.max(1, Math.round(tickSeconds * 1e9));
+        int bodyCount = simulation.getBodies().size();
+        for (int i = 0; i < BUFFERS; i++) {
+            this.snapshots[i] = new Snapshot(bodyCount);
+        }
+
+        // Both of the reader's buffers start as the initial state
+        simulation.advanceToNanos(this.clock.getTimeNanos());
+        this.snapshots[0].copyFrom(simulation.getBodies(), 0);
+        this.snapshots[1].copyFrom(simulation.getBodies(), 0);
+        this.previous = 0;
+        this.current = 1;
+        this.exchange = new AtomicInteger(2);
+        this.back = 3;
+    }
+
+    public Simulation getSimulation() {
+        return this.simulation;
+    }
+
+    /*
+     * Warp, pause and reverse of the simulated time
+     */
+    public SimulationClock getClock() {
+        return this.clock;
+    }
+
+    public double getTickSeconds() {
+        return this.tickNanos / 1e9;
+    }
+
+    /*
+     * Start ticking from simulation time 0, now
+     */
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.startNanos = System.nanoTime();
+        this.thread = new Thread(this::run, "Simulation");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /*
+     * Stop the simulation thread and wait for it to finish its tick
+     */
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.thread = null;
+        }
+    }
+
+    /*
+     * The simulation thread: run every tick that is due, publish each one, then
+     * sleep until the next is due. When ticks take longer than real time the
+     * loop runs at most MAX_CATCH_UP_TICKS in a row and then lets simulated
+     * time fall behind instead of spiralling.
+     */
+    private void run() {
+        long nextTick = this.startNanos + this.tickNanos;
+        while (this.running) {
+            long now = System.nanoTime();
+            int caughtUp = 0;
+            while (now - nextTick >= 0 && this.running) {
+                tick();
+                nextTick += this.tickNanos;
+                if (++caughtUp == MAX_CATCH_UP_TICKS) {
+                    long behind = (System.nanoTime() - nextTick) / this.tickNanos;
+                    if (behind > 0) {
+                        nextTick += behind * this.tickNanos;
+                        this.startNanos += behind * this.tickNanos;
+                    }
+                    break;
+                }
+                now = System.nanoTime();
+            }
+            LockSupport.parkNanos(nextTick - System.nanoTime());
+        }
+    }
+
+    private void tick() {
+        this.ticks++;
+        this.simulation.advanceToNanos(this.clock.advance(this.tickNanos));
+        this.snapshots[this.back].copyFrom(this.simulation.getBodies(), this.ticks * (this.tickNanos / 1e9));
+        this.back = this.exchange.getAndSet(this.back | FRESH) & INDEX_MASK;
+    }
+
+    /*
+     * Take the newest published snapshot, if there is one the reader has not
+     * seen. The reader's older buffer goes back into the exchange slot.
+     */
+    private void receive() {
+        if ((this.exchange.get() & FRESH) == 0) {
+            return;
+        }
+        int fresh = this.exchange.getAndSet(this.previous) & INDEX_MASK;
+        this.previous = this.current;
+        this.current = fresh;
+    }
+
+    /*
+     * Real time since the start that a frame drawn at the given System.nanoTime()
+     * shows, one tick behind the simulation thread. Snapshots are stamped with
+     * the same time, so interpolation works the same at any warp.
+     */
+    public double renderTime(long nanoTime) {
+        return (nanoTime - this.startNanos - this.tickNanos) / 1e9;
+    }
+
+    /*
+     * Model matrices for every body at the given System.nanoTime(), written
+     * column major to dest with BodyStore.MATRIX_FLOATS per body. Rendering is
+     * one tick behind the simulation, so the time normally falls between the
+     * two latest snapshots; outside of them the nearest one is used. With a
+     * SinCosTable set on the bodies the spins are interpolated in turns and
+     * looked up in it, so a frame makes no trigonometric calls. Must only be
+     * called from one thread.
+     */
+    public void interpolate(long nanoTime, float[] dest) {
+        receive();
+        Snapshot from = this.snapshots[this.previous];
+        Snapshot to = this.snapshots[this.current];
+        double time = renderTime(nanoTime);
+        float alpha = to.time > from.time ? (float) ((time - from.time) / (to.time - from.time)) : 1;
+        alpha = Math.max(0, Math.min(1, alpha));
+
+        BodyStore bodies = this.simulation.getBodies();
+        SinCosTable table = bodies.getSinCosTable();
+        for (int i = 0; i < from.count; i++) {
+            float x = from.positionX[i] + (to.positionX[i] - from.positionX[i]) * alpha;
+            float y = from.positionY[i] + (to.positionY[i] - from.positionY[i]) * alpha;
+            float z = from.positionZ[i] + (to.positionZ[i] - from.positionZ[i]) * alpha;
+
+            // Spin along the shorter way round, the angles wrap every period
+            if (table != null) {
+                double turn = (to.rotationAngle[i] - from.rotationAngle[i]) * INV_TWO_PI;
+                turn -= Math.rint(turn);
+                double phase = from.rotationAngle[i] * INV_TWO_PI + turn * alpha;
+                BodyStore.writeModelMatrix(dest, i * BodyStore.MATRIX_FLOATS, bodies.radius[i], table.cos(phase),
+                        table.sin(phase), x, y, z);
+                continue;
+            }
+            float turn = to.rotationAngle[i] - from.rotationAngle[i];
+            turn -= (float) (Math.PI * 2 * Math.rint(turn / (Math.PI * 2)));
+            float angle = from.rotationAngle[i] + turn * alpha;
+
+            BodyStore.writeModelMatrix(dest, i * BodyStore.MATRIX_FLOATS, bodies.radius[i], angle, x, y, z);
+        }
+    }
+
+    /*
+     * Positions and spins of every body at one tick, stamped with the tick's
+     * real time. Written only by the simulation thread and read only by the
+     * render thread, never both at once.
+     */
+    static class Snapshot {
+        final int count;
+        final float[] positionX;
+        final float[] positionY;
+        final float[] positionZ;
+        final float[] rotationAngle;
+        double time;
+
+        Snapshot(int count) {
+            this.count = count;
+            this.positionX = new float[count];
+            this.positionY = new float[count];
+            this.positionZ = new float[count];
+            this.rotationAngle = new float[count];
+        }
+
+        void copyFrom(BodyStore bodies, double time) {
+            System.arraycopy(bodies.positionX, 0, this.positionX, 0, this.count);
+            System.arraycopy(bodies.positionY, 0, this.positionY, 0, this.count);
+            System.arraycopy(bodies.positionZ, 0, this.positionZ, 0, this.count);
+            System.arraycopy(bodies.rotationAngle, 0, this.rotationAngle, 0, this.count);
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Shared unit circle table for cheap sine and cosine. Angles are given in
+ * turns (1 turn = 2 pi radians), which is what Ephemeris.phase already
+ * produces, and values between entries are linearly interpolated. The error
+ * is at most (2 pi / size)^2 / 8, about 3e-7 for the default size.
+ */
+public final class SinCosTable {
+    public static final int DEFAULT_SIZE = 4096;
+
+    private final int size;
+    private final int mask;
+    private final float[] sine; // size + 1 entries, the last repeats the first
+
+    public SinCosTable() {
+        this(DEFAULT_SIZE);
+    }
+
+    /*
+     * size must be a power of two
+     */
+    public SinCosTable(int size) {
+        if (size <= 0 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Table size must be a power of two: " + size);
+        }
+        this.size = size;
+        this.mask = size - 1;
+        this.sine = new float[size + 1];
+        for (int i = 0; i <= size; i++) {
+            this.sine[i] = (float) Math.sin(Math.PI * 2 * i / size);
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /*
+     * Largest difference from Math.sin / Math.cos for any angle
+     */
+    public double maxError() {
+        double step = Math.PI * 2 / this.size;
+        return step * step / 8 + Math.ulp(1f);
+    }
+
+    public float sin(double turns) {
+        double x = turns * this.size;
+        double floor = Math.floor(x);
+        int i = (int) ((long) floor & this.mask);
+        float t = (float) (x - floor);
+        return this.sine[i] + (this.sine[i + 1] - this.sine[i]) * t;
+    }
+
+    public float cos(double turns) {
+        return sin(turns + 0.25);
+    }
+}
@@ -0,0 +1,597 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The contents of a .sol file: camera position, sun light attributes and the
+ * stellar system itself. Reading one needs no GL context.
+ *
+ * The file is streamed through a FileChannel in fixed size chunks and split
+ * into lines and tab separated fields in place, with the numbers parsed
+ * straight from the bytes, so the only objects made are the bodies and one
+ * String per distinct texture or model name. A large body section is cut into
+ * byte ranges at line boundaries, parsed across a ForkJoinPool and then linked
+ * into the tree in file order. Problems are reported as SolFileExceptions
+ * giving the line and column.
+ */
+public class SolFile {
+    private static final int READ_BYTES = 1 << 16; // Bytes read from the channel at a time
+    private static final long TASK_BYTES = 8L << 20; // Body section bytes parsed per task
+    private static final int HEADER_LINES = 3;
+    private static final int MAX_FIELDS = 8; // Fields kept per line, one more than any line may have
+    private static final double[] POW10 = new double[23]; // Every power of ten exact in a double
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    public float[] cameraPosXYZ = new float[3];
+    public int[] sunRGB = new int[3];
+    public float[] sunADS = new float[3];
+    public float solarAttenuation;
+    public StellarSystem stellarSystem;
+
+    /**
+     * Read a .sol file, parsing a large body section across the common pool
+     *
+     * @param solFileName
+     * @return
+     * @throws FileNotFoundException if the file does not exist
+     * @throws SolFileException      if the file is not a valid .sol file
+     * @throws IOException           if the file cannot be read
+     */
+    public static SolFile read(String solFileName) throws IOException {
+        return read(solFileName, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Read a .sol file. The three header lines are read first; a body section
+     * of more than two tasks' worth of bytes is then split over the pool.
+     * Parsing stops at the first empty line, as anything after it is ignored.
+     *
+     * @param solFileName
+     * @param pool
+     * @return
+     * @throws FileNotFoundException if the file does not exist
+     * @throws SolFileException      if the file is not a valid .sol file
+     * @throws IOException           if the file cannot be read
+     */
+    public static SolFile read(String solFileName, ForkJoinPool pool) throws IOException {
+        File solFile = locateFile(solFileName);
+        SolFile sol = new SolFile();
+        try (FileChannel channel = FileChannel.open(solFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            Parser header = new Parser(solFileName, channel, 0, size);
+            header.readHeader(sol);
+
+            BodyChunk[] chunks;
+            long bodyStart = header.getPosition();
+            if (pool.getParallelism() < 2 || size - bodyStart < 2 * TASK_BYTES) {
+                chunks = new BodyChunk[] { header.readBodies() };
+            } else {
+                chunks = new BodyChunk[(int) ((size - bodyStart + TASK_BYTES - 1) / TASK_BYTES)];
+                try {
+                    pool.invoke(new ChunkTask(solFileName, channel, bodyStart, size, chunks, 0, chunks.length));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            link(sol, chunks, solFileName);
+        }
+        return sol;
+    }
+
+    /*
+     * Add the parsed bodies to the system in file order. Each body is indented
+     * one tab deeper than the body it orbits: the last body read at each depth
+     * is the parent of the next one below it. The first error in the file,
+     * whether found here or by a chunk's parser, is thrown.
+     */
+    private static void link(SolFile sol, BodyChunk[] chunks, String fileName) throws SolFileException {
+        int[] parents = new int[16];
+        int depths = 1; // Depth 1 orbits the sun
+        int line = HEADER_LINES;
+        for (BodyChunk chunk : chunks) {
+            for (int i = 0; i < chunk.count; i++) {
+                line++;
+                int depth = chunk.depths[i];
+                if (depth > depths) {
+                    throw new SolFileException(fileName, line, 1,
+                            "Sol file body at depth " + depth + " has nothing to orbit");
+                }
+                int body = sol.stellarSystem.add(chunk.bodies[i], parents[depth - 1]);
+
+                // This body is now the parent for the next depth, deeper ones are closed
+                if (depth == parents.length) {
+                    parents = Arrays.copyOf(parents, depth * 2);
+                }
+                parents[depth] = body;
+                depths = depth + 1;
+            }
+            if (chunk.error != null) {
+                throw new SolFileException(fileName, line + 1, chunk.error.getColumn(), chunk.error.getReason());
+            }
+            if (chunk.ended) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Attempt to locate .sol file
+     *
+     * @param fileName
+     * @return
+     * @throws FileNotFoundException
+     */
+    public static File locateFile(String fileName) throws FileNotFoundException {
+        File solFile = new File(fileName);
+        if (!solFile.exists() || solFile.isDirectory()) {
+            throw new FileNotFoundException(fileName);
+        }
+        return solFile;
+    }
+
+    /*
+     * The bodies parsed from one range of lines, not yet linked to their
+     * parents. Parsing stops at the first error, kept with its column, or at
+     * the first empty line.
+     */
+    private static class BodyChunk {
+        CelestialObject[] bodies = new CelestialObject[256];
+        int[] depths = new int[256];
+        int count;
+        boolean ended; // An empty line ends the body section
+        SolFileException error; // Found on the line after the last body
+
+        void add(CelestialObject body, int depth) {
+            if (this.count == this.bodies.length) {
+                this.bodies = Arrays.copyOf(this.bodies, this.count * 2);
+                this.depths = Arrays.copyOf(this.depths, this.count * 2);
+            }
+            this.bodies[this.count] = body;
+            this.depths[this.count] = depth;
+            this.count++;
+        }
+    }
+
+    /*
+     * Splits a range of chunks in half until one is left, then parses it
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String fileName;
+        private final FileChannel channel;
+        private final long bodyStart;
+        private final long size;
+        private final BodyChunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(String fileName, FileChannel channel, long bodyStart, long size, BodyChunk[] chunks, int from,
+                int to) {
+            this.fileName = fileName;
+            this.channel = channel;
+            this.bodyStart = bodyStart;
+            this.size = size;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new ChunkTask(this.fileName, this.channel, this.bodyStart, this.size, this.chunks,
+                        this.from, mid),
+                        new ChunkTask(this.fileName, this.channel, this.bodyStart, this.size, this.chunks, mid,
+                                this.to));
+                return;
+            }
+            // Lines starting in [start, limit) are this chunk's. Unless it is the
+            // first, the line running into start belongs to the chunk before.
+            long start = this.bodyStart + this.from * TASK_BYTES;
+            long limit = Math.min(this.size, start + TASK_BYTES);
+            try {
+                Parser parser = new Parser(this.fileName, this.channel, this.from == 0 ? start : start - 1, limit);
+                if (this.from > 0) {
+                    parser.skipLine();
+                }
+                this.chunks[this.from] = parser.readBodies();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+     * Reads the lines starting in one range of the file through its own buffer.
+     * The current line and its fields are offsets into that buffer; nothing is
+     * allocated per line or per number.
+     */
+    private static class Parser {
+        private final String fileName;
+        private final FileChannel channel;
+        private final long limit; // Lines starting here or later are left to the next parser
+        private long readPosition;
+        private long bufferPosition; // File offset of buffer[0]
+        private byte[] buffer = new byte[READ_BYTES];
+        private ByteBuffer target = ByteBuffer.wrap(this.buffer);
+        private int position;
+        private int filled;
+
+        // Current line, counted from 1, and its fields
+        private int line;
+        private int lineStart;
+        private int lineEnd; // Without the line terminator
+        private int fields;
+        private final int[] fieldStart = new int[MAX_FIELDS];
+        private final int[] fieldEnd = new int[MAX_FIELDS];
+
+        // Distinct names seen so far, open addressed on the hash of their bytes
+        private byte[][] nameBytes = new byte[64][];
+        private String[] names = new String[64];
+        private int[] nameHashes = new int[64];
+        private int nameCount;
+
+        Parser(String fileName, FileChannel channel, long from, long limit) {
+            this.fileName = fileName;
+            this.channel = channel;
+            this.readPosition = from;
+            this.bufferPosition = from;
+            this.limit = limit;
+        }
+
+        /*
+         * File offset of the first byte not yet read as part of a line
+         */
+        long getPosition() {
+            return this.bufferPosition + this.position;
+        }
+
+        /*
+         * Camera position, sun light attributes and the sun
+         */
+        void readHeader(SolFile sol) throws IOException {
+            nextHeaderLine("camera location coordinates");
+            split(this.lineStart, 3, 3, "Sol file contains the incorrect number of camera location coordinates. Needs 3");
+            for (int i = 0; i < 3; i++) {
+                sol.cameraPosXYZ[i] = parseFloat(i);
+            }
+
+            nextHeaderLine("sun light attributes");
+            split(this.lineStart, 7, 7, "Sol file contains the incorrect number of sun light attributes. Needs 7");
+            for (int i = 0; i < 3; i++) {
+                sol.sunRGB[i] = parseInt(i);
+                sol.sunADS[i] = parseFloat(3 + i);
+            }
+            sol.solarAttenuation = parseFloat(6);
+
+            nextHeaderLine("sun attributes");
+            split(this.lineStart, 3, 3, "Sol file contains the incorrect number of sun attribute. Needs 3");
+            sol.stellarSystem = new StellarSystem(new CelestialObject(name(0), parseFloat(1), parseFloat(2)));
+        }
+
+        private void nextHeaderLine(String expected) throws IOException {
+            if (!nextLine()) {
+                throw new SolFileException(this.fileName, this.line + 1, 1,
+                        "Sol file ends before the " + expected);
+            }
+        }
+
+        /*
+         * Every body line from here to the limit: its depth in leading tabs,
+         * then texture, radius, rotation period, distance, orbital period,
+         * specular shine and optionally a model
+         */
+        BodyChunk readBodies() throws IOException {
+            BodyChunk chunk = new BodyChunk();
+            try {
+                while (nextLine()) {
+                    if (this.lineStart == this.lineEnd) {
+                        chunk.ended = true;
+                        break;
+                    }
+                    int depth = 0;
+                    while (this.lineStart + depth < this.lineEnd && this.buffer[this.lineStart + depth] == '\t') {
+                        depth++;
+                    }
+                    if (depth == 0) {
+                        throw error(this.lineStart, "Sol file body at depth 0 has nothing to orbit");
+                    }
+                    split(this.lineStart + depth, 6, 7, "Sol file body needs 6 fields, or 7 with a model");
+                    CelestialObject body = new CelestialObject(name(0), parseFloat(1), parseFloat(2), parseFloat(3),
+                            parseFloat(4), parseFloat(5));
+                    if (this.fields == 7) {
+                        body.model = name(6);
+                    }
+                    chunk.add(body, depth);
+                }
+            } catch (SolFileException e) {
+                chunk.error = e;
+            }
+            return chunk;
+        }
+
+        /*
+         * Drop the rest of the line the parser starts in
+         */
+        void skipLine() throws IOException {
+            nextLine();
+            this.line = 0;
+        }
+
+        /*
+         * Move to the next line, reading more of the file as needed. Returns
+         * false at the end of the file or of this parser's range.
+         */
+        private boolean nextLine() throws IOException {
+            if (getPosition() >= this.limit) {
+                return false;
+            }
+            int scan = this.position;
+            while (true) {
+                while (scan < this.filled && this.buffer[scan] != '\n') {
+                    scan++;
+                }
+                if (scan < this.filled) {
+                    break;
+                }
+                int shift = this.position;
+                boolean more = fill();
+                scan -= shift;
+                if (!more) {
+                    if (this.position == this.filled) {
+                        return false;
+                    }
+                    break; // Last line, without a terminator
+                }
+            }
+            this.lineStart = this.position;
+            this.lineEnd = scan;
+            this.position = scan < this.filled ? scan + 1 : scan;
+            if (this.lineEnd > this.lineStart && this.buffer[this.lineEnd - 1] == '\r') {
+                this.lineEnd--;
+            }
+            this.line++;
+            return true;
+        }
+
+        /*
+         * Move the unread bytes to the front of the buffer, growing it if they
+         * fill it, and read more after them. Returns false at the end of the
+         * file.
+         */
+        private boolean fill() throws IOException {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.filled - this.position);
+            this.bufferPosition += this.position;
+            this.filled -= this.position;
+            this.position = 0;
+            if (this.filled == this.buffer.length) {
+                // A line longer than the buffer
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+                this.target = ByteBuffer.wrap(this.buffer);
+            }
+            this.target.limit(this.buffer.length).position(this.filled);
+            int read = this.channel.read(this.target, this.readPosition);
+            if (read < 0) {
+                return false;
+            }
+            this.readPosition += read;
+            this.filled += read;
+            return true;
+        }
+
+        /*
+         * Split the current line from the given offset at tabs. As with
+         * String.split, trailing empty fields do not count. Fails unless there
+         * are min to max fields.
+         */
+        private void split(int from, int min, int max, String message) throws SolFileException {
+            int count = 0;
+            int fields = 0;
+            int start = from;
+            for (int i = from;; i++) {
+                if (i == this.lineEnd || this.buffer[i] == '\t') {
+                    if (count < MAX_FIELDS) {
+                        this.fieldStart[count] = start;
+                        this.fieldEnd[count] = i;
+                    }
+                    count++;
+                    if (i > start) {
+                        fields = count;
+                    }
+                    if (i == this.lineEnd) {
+                        break;
+                    }
+                    start = i + 1;
+                }
+            }
+            this.fields = fields;
+            if (fields < min) {
+                throw error(this.lineEnd, message + ", found " + fields);
+            }
+            if (fields > max) {
+                throw error(this.fieldStart[max], message + ", found " + fields);
+            }
+        }
+
+        /*
+         * Parse a field as Float.parseFloat would. Plain decimals of up to 15
+         * significant digits and exponents within 22 are one exact double
+         * operation from their value, and so round to the float the JDK would
+         * give, except when that double lies halfway between two floats or
+         * below the normal floats. Those, and every other spelling, go through
+         * the JDK.
+         */
+        private float parseFloat(int field) throws SolFileException {
+            int i = this.fieldStart[field];
+            int end = this.fieldEnd[field];
+            boolean negative = false;
+            if (i < end && (this.buffer[i] == '-' || this.buffer[i] == '+')) {
+                negative = this.buffer[i++] == '-';
+            }
+            long mantissa = 0;
+            int digits = 0; // Significant digits
+            int seen = 0; // All digits
+            int exponent = 0;
+            for (; i < end && isDigit(this.buffer[i]); i++, seen++) {
+                if (mantissa != 0 || this.buffer[i] != '0') {
+                    mantissa = mantissa * 10 + (this.buffer[i] - '0');
+                    digits++;
+                }
+            }
+            if (i < end && this.buffer[i] == '.') {
+                for (i++; i < end && isDigit(this.buffer[i]); i++, seen++) {
+                    if (mantissa != 0 || this.buffer[i] != '0') {
+                        mantissa = mantissa * 10 + (this.buffer[i] - '0');
+                        digits++;
+                    }
+                    exponent--;
+                }
+            }
+            if (seen > 0 && i < end && (this.buffer[i] == 'e' || this.buffer[i] == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < end && (this.buffer[i] == '-' || this.buffer[i] == '+')) {
+                    negativeExponent = this.buffer[i++] == '-';
+                }
+                int value = 0;
+                int first = i;
+                for (; i < end && isDigit(this.buffer[i]); i++) {
+                    value = Math.min(value * 10 + (this.buffer[i] - '0'), 1000);
+                }
+                if (i == first) {
+                    return parseFloatSlow(field);
+                }
+                exponent += negativeExponent ? -value : value;
+            }
+            if (i != end || seen == 0 || digits > 15 || exponent < -22 || exponent > 22) {
+                return parseFloatSlow(field);
+            }
+            if (mantissa == 0) {
+                return negative ? -0f : 0f;
+            }
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L || value < Float.MIN_NORMAL) {
+                return parseFloatSlow(field);
+            }
+            float f = (float) value;
+            return negative ? -f : f;
+        }
+
+        private float parseFloatSlow(int field) throws SolFileException {
+            String text = text(field);
+            try {
+                return Float.parseFloat(text);
+            } catch (NumberFormatException e) {
+                throw error(this.fieldStart[field], "Expected a number, found \"" + text + "\"");
+            }
+        }
+
+        /*
+         * Parse a field as Integer.parseInt would
+         */
+        private int parseInt(int field) throws SolFileException {
+            int i = this.fieldStart[field];
+            int end = this.fieldEnd[field];
+            boolean negative = false;
+            if (i < end && (this.buffer[i] == '-' || this.buffer[i] == '+')) {
+                negative = this.buffer[i++] == '-';
+            }
+            int value = 0;
+            int first = i;
+            for (; i < end && isDigit(this.buffer[i]); i++) {
+                value = value * 10 + (this.buffer[i] - '0');
+            }
+            if (i == end && i > first && i - first <= 9) {
+                return negative ? -value : value;
+            }
+            String text = text(field);
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                throw error(this.fieldStart[field], "Expected a whole number, found \"" + text + "\"");
+            }
+        }
+
+        private static boolean isDigit(byte c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private String text(int field) {
+            return new String(this.buffer, this.fieldStart[field], this.fieldEnd[field] - this.fieldStart[field],
+                    StandardCharsets.UTF_8);
+        }
+
+        /*
+         * A field as a name, the same String every time the same bytes come up
+         */
+        private String name(int field) {
+            int start = this.fieldStart[field];
+            int end = this.fieldEnd[field];
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + this.buffer[i];
+            }
+            int mask = this.names.length - 1;
+            int slot = hash & mask;
+            while (this.nameBytes[slot] != null) {
+                if (this.nameHashes[slot] == hash
+                        && Arrays.equals(this.nameBytes[slot], 0, this.nameBytes[slot].length, this.buffer, start, end)) {
+                    return this.names[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            byte[] bytes = Arrays.copyOfRange(this.buffer, start, end);
+            String name = new String(bytes, StandardCharsets.UTF_8);
+            this.nameBytes[slot] = bytes;
+            this.names[slot] = name;
+            this.nameHashes[slot] = hash;
+            if (++this.nameCount * 2 > this.names.length) {
+                growNames();
+            }
+            return name;
+        }
+
+        private void growNames() {
+            byte[][] oldBytes = this.nameBytes;
+            String[] oldNames = this.names;
+            int[] oldHashes = this.nameHashes;
+            this.nameBytes = new byte[oldBytes.length * 2][];
+            this.names = new String[oldBytes.length * 2];
+            this.nameHashes = new int[oldBytes.length * 2];
+            int mask = this.names.length - 1;
+            for (int i = 0; i < oldBytes.length; i++) {
+                if (oldBytes[i] != null) {
+                    int slot = oldHashes[i] & mask;
+                    while (this.nameBytes[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.nameBytes[slot] = oldBytes[i];
+                    this.names[slot] = oldNames[i];
+                    this.nameHashes[slot] = oldHashes[i];
+                }
+            }
+        }
+
+        /*
+         * An error on the current line at the given buffer offset
+         */
+        private SolFileException error(int at, String reason) {
+            return new SolFileException(this.fileName, this.line, at - this.lineStart + 1, reason);
+        }
+    }
+}
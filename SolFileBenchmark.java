@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the streaming .sol reader against the original BufferedReader /
+ * String.split reader on a generated catalogue, ten million lines by default,
+ * sequentially and split across a pool. All three must build the same system.
+ * The pool has at least two workers so the split path always runs.
+ *
+ * Usage: java -Xmx3g SolFileBenchmark [lines]
+ */
+public class SolFileBenchmark {
+    private static final int DEFAULT_LINES = 10_000_000;
+    private static final int WARMUP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+    private static final String[] TEXTURES = { "earth.jpg", "moon.jpg", "mars.jpg", "jupiter.jpg" };
+    private static final int MODEL_EVERY = 97; // Bodies with planet.obj as their model
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LINES;
+        File catalogue = File.createTempFile("catalogue", ".sol");
+        catalogue.deleteOnExit();
+        writeCatalogue(catalogue, lines);
+        String fileName = catalogue.getPath();
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        System.out.println(lines + " lines (" + catalogue.length() / (1024 * 1024) + " MiB), "
+                + pool.getParallelism() + " pool workers");
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            readLegacy(fileName);
+            SolFile.read(fileName, single);
+            SolFile.read(fileName, pool);
+        }
+
+        long legacyNanos = Long.MAX_VALUE;
+        long streamingNanos = Long.MAX_VALUE;
+        long parallelNanos = Long.MAX_VALUE;
+        long legacy = 0;
+        long streaming = 0;
+        long parallel = 0;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            legacy = checksum(readLegacy(fileName));
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            streaming = checksum(SolFile.read(fileName, single));
+            streamingNanos = Math.min(streamingNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            parallel = checksum(SolFile.read(fileName, pool));
+            parallelNanos = Math.min(parallelNanos, System.nanoTime() - start);
+        }
+        single.shutdown();
+        pool.shutdown();
+
+        if (legacy != streaming || legacy != parallel) {
+            throw new IllegalStateException("Readers disagree on " + fileName);
+        }
+        System.out.printf("  legacy     %9.1f ms%n", legacyNanos / 1e6);
+        System.out.printf("  streaming  %9.1f ms  (%.1fx)%n", streamingNanos / 1e6,
+                (double) legacyNanos / streamingNanos);
+        System.out.printf("  parallel   %9.1f ms  (%.1fx)%n", parallelNanos / 1e6,
+                (double) legacyNanos / parallelNanos);
+    }
+
+    /*
+     * Hash of everything read from a file, the checksums (not the systems) are
+     * kept so only one system is in memory at a time
+     */
+    private static long checksum(SolFile sol) {
+        long hash = 17;
+        for (float f : sol.cameraPosXYZ) {
+            hash = hash * 31 + Float.floatToIntBits(f);
+        }
+        for (int i = 0; i < 3; i++) {
+            hash = hash * 31 + sol.sunRGB[i];
+            hash = hash * 31 + Float.floatToIntBits(sol.sunADS[i]);
+        }
+        hash = hash * 31 + Float.floatToIntBits(sol.solarAttenuation);
+        List<CelestialObject> bodies = sol.stellarSystem.getBodies();
+        for (int i = 0; i < bodies.size(); i++) {
+            CelestialObject body = bodies.get(i);
+            hash = hash * 31 + body.texture.hashCode();
+            hash = hash * 31 + (body.model == null ? 0 : body.model.hashCode());
+            hash = hash * 31 + Float.floatToIntBits(body.radius);
+            hash = hash * 31 + Float.floatToIntBits(body.rotationPeriod);
+            hash = hash * 31 + Float.floatToIntBits(body.distanceFromSun);
+            hash = hash * 31 + Float.floatToIntBits(body.orbitalPeriod);
+            hash = hash * 31 + Float.floatToIntBits(body.specularShine);
+            hash = hash * 31 + sol.stellarSystem.getParent(i);
+        }
+        return hash;
+    }
+
+    /*
+     * A sun, then planets each followed by a few moons, some with moons of
+     * their own. Numbers come in the spellings hand written files use.
+     */
+    private static void writeCatalogue(File file, int lines) throws IOException {
+        Random random = new Random(42);
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            out.write("0\t100\t-300\n1\t1\t1\t0.1\t0.9\t0.9\t0.0001\nsun.jpg\t5\t2.8\n");
+            int depth = 0;
+            for (int line = 3; line < lines; line++) {
+                depth = depth == 0 ? 1 : 1 + random.nextInt(Math.min(depth + 1, 3));
+                StringBuilder body = new StringBuilder(64);
+                for (int d = 0; d < depth; d++) {
+                    body.append('\t');
+                }
+                body.append(TEXTURES[random.nextInt(TEXTURES.length)]);
+                body.append('\t').append(random.nextInt(3000) / 1000f);
+                body.append('\t').append(random.nextInt(200) / 10f);
+                body.append('\t').append(random.nextInt(100) + 5);
+                body.append('\t').append(random.nextBoolean() ? "-" : "").append(random.nextInt(100000) / 100f);
+                body.append('\t').append(random.nextInt(4) == 0 ? "1e-4" : "0");
+                if (line % MODEL_EVERY == 0) {
+                    body.append("\tplanet.obj");
+                }
+                out.write(body.append('\n').toString());
+            }
+        }
+    }
+
+    /*
+     * The original SolFile reader, kept here as the baseline
+     */
+    private static SolFile readLegacy(String solFileName) throws IOException {
+        SolFile sol = new SolFile();
+        String line;
+        File solFile = SolFile.locateFile(solFileName);
+
+        try (BufferedReader br = new BufferedReader(new FileReader(solFile))) {
+            line = br.readLine();
+            String[] splitString = line.split("\t");
+            if (splitString.length != 3) {
+                throw new IOException("Sol file contains the incorrect number of camera location coordinates. Needs 3");
+            }
+            for (int i = 0; i < 3; i++) {
+                sol.cameraPosXYZ[i] = Float.parseFloat(splitString[i]);
+            }
+
+            line = br.readLine();
+            splitString = line.split("\t");
+            if (splitString.length != 7) {
+                throw new IOException("Sol file contains the incorrect number of sun light attributes. Needs 7");
+            }
+            for (int i = 0; i < 7; i++) {
+                if (i < 3) {
+                    sol.sunRGB[i] = Integer.parseInt(splitString[i]);
+                } else if (i < 6) {
+                    sol.sunADS[i - 3] = Float.parseFloat(splitString[i]);
+                } else {
+                    sol.solarAttenuation = Float.parseFloat(splitString[i]);
+                }
+            }
+
+            line = br.readLine();
+            splitString = line.split("\t");
+            if (splitString.length != 3) {
+                throw new IOException("Sol file contains the incorrect number of sun attribute. Needs 3");
+            }
+            sol.stellarSystem = new StellarSystem(
+                    new CelestialObject(splitString[0], Float.parseFloat(splitString[1]),
+                            Float.parseFloat(splitString[2])));
+
+            ArrayList<Integer> parents = new ArrayList<Integer>();
+            parents.add(0);
+            while ((line = br.readLine()) != null && line.length() != 0) {
+                int depth = 0;
+                while (depth < line.length() && line.charAt(depth) == '\t') {
+                    depth++;
+                }
+                if (depth == 0 || depth > parents.size()) {
+                    throw new IOException("Sol file body at depth " + depth + " has nothing to orbit: " + line);
+                }
+                splitString = line.substring(depth).split("\t");
+                if (splitString.length != 6 && splitString.length != 7) {
+                    throw new IOException("Sol file body input not correct: " + line);
+                }
+                CelestialObject object = new CelestialObject(splitString[0], Float.parseFloat(splitString[1]),
+                        Float.parseFloat(splitString[2]), Float.parseFloat(splitString[3]),
+                        Float.parseFloat(splitString[4]), Float.parseFloat(splitString[5]));
+                if (splitString.length == 7) {
+                    object.model = splitString[6];
+                }
+                int body = sol.stellarSystem.add(object, parents.get(depth - 1));
+                while (parents.size() > depth) {
+                    parents.remove(parents.size() - 1);
+                }
+                parents.add(body);
+            }
+        } catch (NullPointerException | NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Sol file is malformed: " + e, e);
+        }
+        return sol;
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.IOException;
+
+/**
+ * A problem found in a .sol file, with the line and column it was found at.
+ * Lines and columns count from 1; columns count bytes, a tab being one.
+ */
+public class SolFileException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String fileName;
+    private final int line;
+    private final int column;
+    private final String reason;
+
+    public SolFileException(String fileName, int line, int column, String reason) {
+        super(fileName + ":" + line + ":" + column + ": " + reason);
+        this.fileName = fileName;
+        this.line = line;
+        this.column = column;
+        this.reason = reason;
+    }
+
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    public int getLine() {
+        return this.line;
+    }
+
+    public int getColumn() {
+        return this.column;
+    }
+
+    /*
+     * The message without the location
+     */
+    public String getReason() {
+        return this.reason;
+    }
+}
@@ -1,19 +1,18 @@
 import java.nio.*;
 import javax.swing.*;
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.lang.Math;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import static com.jogamp.opengl.GL4.*;
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.util.*;
-import com.jogamp.opengl.util.texture.Texture;
-import com.jogamp.opengl.util.texture.TextureIO;
 import com.jogamp.common.nio.Buffers;
 import org.joml.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This program takes in a .sol file, interprets it, and creates and renders the
@@ -29,90 +28,205 @@ public class SolarSystem extends JFrame implements GLEventListener {
     private static final String WINDOW_TITLE = "Solar System";
     private static final String VERTEX_SHADER_FILE = "solarSystem-vertex.glsl";
     private static final String FRAGMENT_SHADER_FILE = "solarSystem-fragment.glsl";
+    private static final String ORBIT_VERTEX_SHADER_FILE = "solarSystem-orbit-vertex.glsl"; // Used with the gpu option
+    private static final String POINT_VERTEX_SHADER_FILE = "solarSystem-point-vertex.glsl"; // Impostors
+    private static final String POINT_FRAGMENT_SHADER_FILE = "solarSystem-point-fragment.glsl";
 
     // Shader
     private int renderingProgram; // Shader Id
     // private int m_matrixID;
     // private int v_matrixID;
-    private int mv_matrixID;
-    private int p_matrixID;
     private int n_matrixID;
+    private int timeID; // Simulated seconds, with the gpu option
+    private int pointProgram; // Draws the impostors
+
+    // Draws are queued each frame and submitted sorted, through a state cache
+    // that skips binds that would change nothing
+    private GLStateCache glState;
+    private final RenderQueue renderQueue = new RenderQueue();
 
     // Matrix Management
     private Matrix4f viewMatrix; // Stores view matrix
     private Matrix4f perspectiveMatrix = new Matrix4f(); // Stores perspective matrix
     private float aspectRatio;
+    private int viewportHeight = WINDOW_HEIGHT;
 
-    // Model Matrices
-    private Matrix4f modelViewMatrix = new Matrix4f(); // Stores model matrix
-
-    // Initialize scratch buffer in order to pass matrices to the gpu/shaders
-    private final FloatBuffer scratchBuffer = Buffers.newDirectFloatBuffer(16);
+    // Camera uniform block shared by every program, laid out std140 as the
+    // Camera block of the vertex shaders. Only uploaded when it changes.
+    private static final int CAMERA_BINDING = 1;
+    private static final int CAMERA_FLOATS = 16 + 16 + 1; // View, projection, viewport height
+    private final FloatBuffer cameraData = Buffers.newDirectFloatBuffer(CAMERA_FLOATS);
+    private int[] cameraUbo = new int[1];
+    private boolean cameraChanged = true;
 
     private int[] vao = new int[1];
-    private int[] vbo = new int[4]; // TODO Add or subtract buffers as needed
+    private int[] vbo = new int[3]; // Interleaved vertices, indices, draw commands
+
+    // Instance Management
+    // Each body is one instance: its model matrix followed by its texture layer,
+    // written each frame straight into one region of a persistently mapped ring.
+    // Region r holds instances r * bodyCount on, which draws reach through
+    // their base instance.
+    private static final int INSTANCE_FLOATS = 17;
+    private StreamRing instanceRing;
+    private int bodyCount;
+
+    // Culling: only bodies whose bounding sphere meets the view frustum are drawn
+    private static final long CULLING_REPORT_NANOS = 1_000_000_000L; // How often the title shows the counts
+    private final BodyBvh bodyBvh = new BodyBvh();
+    private final Matrix4f projectionViewMatrix = new Matrix4f();
+    private int[] visibleBodies;
+    private long cullingReportNanos;
+
+    // Level of detail: level 0 draws a body as a point sprite, level l > 0 as
+    // the icosphere of subdivision LOD_SUBDIVISIONS[l], chosen from the body's
+    // projected radius in pixels (LOD_PIXELS), or as its own model if it has
+    // one. The spheres and models all share one mesh arena.
+    private static final int[] LOD_SUBDIVISIONS = { -1, 0, 1, 2, 3, 4 };
+    private static final float[] LOD_PIXELS = { 0, 1.5f, 4, 10, 25, 60 };
+    private final LevelOfDetail levelOfDetail = new LevelOfDetail(LOD_PIXELS);
+    private final MeshArena meshArena = new MeshArena();
+    private final int[] lodMesh = new int[LOD_SUBDIVISIONS.length]; // Arena mesh of each level's sphere
+    private final int[] lodStart = new int[LOD_SUBDIVISIONS.length + 1];
+    private int[] lodBodies; // Visible bodies grouped by level
+    private long trianglesDrawn;
+
+    // Multi draw: the visible meshed bodies are grouped by mesh, mesh m taking
+    // drawBodies[meshStart[m]] to drawBodies[meshStart[m + 1]] after the
+    // impostors, and drawn by one DrawElementsIndirectCommand per mesh in use,
+    // all issued by a single glMultiDrawElementsIndirect
+    private int[] bodyMesh; // Arena mesh of each body with a model of its own, -1 for the spheres
+    private int[] drawBodies;
+    private int[] meshStart;
+    private int[] meshCursor;
+    private IntBuffer drawCommands;
+    private int meshesDrawn;
+
+    // GPU orbits: each body's fixed orbit and texture layer in a shader storage
+    // buffer, laid out as the Body struct of the orbit vertex shader
+    private static final int GPU_BODY_BYTES = 32;
+    private static final int GPU_LAYER_OFFSET = BodyStore.ORBITAL_ELEMENT_BYTES;
+    private boolean gpuOrbits;
+    private int[] ssbo = new int[1];
+    private ByteBuffer gpuBodies; // Kept to refresh the texture layers as they load
+
+    // Texture Management
+    private final TextureCache textureCache = new TextureCache(); // One shared layer per distinct image
+    private TextureLoader textures; // Decodes in the background, uploads a batch per frame
+    private static final int MAX_TEXTURE_SIZE = 2048; // Largest texture array layer
 
     // Light Management;
     private float[] lightPos = new float[] { 0, 0, 0 };
 
     // Time Management
-    private long startTime;
-    private float timeElapsed; // In Millis
-    private float timeOrbitAmount;
-    private double amountOfOrbitalRotation;
-    private double amountOfObjectRotation;
+    private final SimulationClock clock = new SimulationClock(); // Simulated time, see TimeControls
+    private volatile SimulationLoop simulationLoop; // Advances the simulation on its own thread
+    private long lastFrameNanos; // Real time of the previous frame, with the gpu option
+    private float[] modelMatrices; // Interpolated each frame from the simulation's snapshots
 
     // Camera Management
     private float cameraPosXYZ[];
 
     // Sol file Management
     private String solFileName;
-    private File solFile;
+    private Set<String> options; // Command line options, see main
+    private static final Set<String> OPTIONS = new HashSet<String>(Arrays.asList("gravity", "table", "gpu"));
 
     // Sphere atributes
     private int sunRGB[];
     private float sunADS[];
     private float solarAttenuation;
     private StellarSystem stellarSystem;
-    private ImportedModel planetModel;
-    private int numObjVertices;
-
-    // Temp Objects
-    private Matrix4f tempTranslation;
-    private Matrix4f tempRotation;
+    private Simulation simulation;
+    private int[] bodyTextureLayers; // Texture array layer per body, in drawing order, once loaded
 
     /**
      * Main method for program. Process arguments and make call to
-     * constructor.
+     * constructor. Usage: java SolarSystem solFile [option...] where the
+     * options are gravity (N-body orbits), table (table lookup trigonometry) and
+     * gpu (orbits evaluated in the vertex shader)
      * 
      * @param args
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
+        if (args.length < 1) {
             System.exit(0);
         }
-        new SolarSystem(args[0]); // Change function call here
+        for (int i = 1; i < args.length; i++) {
+            if (!OPTIONS.contains(args[i])) {
+                System.exit(0);
+            }
+        }
+        new SolarSystem(args[0], Arrays.copyOfRange(args, 1, args.length)); // Change function call here
     }
 
     /**
      * Constructor for program. Set initial window parameters
      * and begin animation
      */
-    public SolarSystem(String solFile) {
+    public SolarSystem(String solFile, String... options) {
         setTitle(WINDOW_TITLE);
         setSize(WINDOW_WIDTH, WINDOW_HEIGHT);
         glCanvas = new GLCanvas();
         glCanvas.addGLEventListener(this);
+        glCanvas.addKeyListener(new TimeControls());
         this.add(glCanvas);
         this.setVisible(true);
         setLocationRelativeTo(null);
         this.solFileName = solFile;
+        this.options = new HashSet<String>(Arrays.asList(options));
 
         Animator animator = new Animator(glCanvas);
         animator.start();
 
     }
 
+    /*
+     * Keyboard control of simulated time: space pauses, + and - double and halve
+     * the warp factor, r reverses and 1 returns to real time
+     */
+    private class TimeControls extends KeyAdapter {
+        @Override
+        public void keyTyped(KeyEvent e) {
+            switch (e.getKeyChar()) {
+            case ' ':
+                clock.setPaused(!clock.isPaused());
+                break;
+            case '+':
+            case '=':
+                clock.setWarp(clock.getWarp() * 2);
+                break;
+            case '-':
+                clock.setWarp(clock.getWarp() / 2);
+                break;
+            case 'r':
+                clock.reverse();
+                break;
+            case '1':
+                clock.setWarp(1);
+                break;
+            default:
+                return;
+            }
+            updateTitle();
+        }
+    }
+
+    /*
+     * Show the time warp and, when culling runs, the visible and culled counts
+     * of the last frame
+     */
+    private void updateTitle() {
+        String title = WINDOW_TITLE + " - time x" + clock.getWarp() + (clock.isPaused() ? " (paused)" : "");
+        if (this.visibleBodies != null) {
+            title += " - " + bodyBvh.getVisibleCount() + " visible, " + bodyBvh.getCulledCount() + " culled, "
+                    + levelOfDetail.getLevelCount(LevelOfDetail.IMPOSTOR) + " as points, " + trianglesDrawn
+                    + " triangles, " + meshesDrawn + " meshes in one draw, " + glState.getIssued() + " binds (" + glState.getSkipped() + " skipped)";
+        }
+        final String text = title;
+        SwingUtilities.invokeLater(() -> setTitle(text));
+    }
+
     /*
      * Initialize matrices and load models as well as all other necessary
      * pre-computation.
@@ -122,23 +236,23 @@ public class SolarSystem extends JFrame implements GLEventListener {
 
         // Set up window
         this.gl = (GL4) GLContext.getCurrentGL();
+        this.glState = new GLStateCache(this.gl);
+        this.gl.glClearColor(0f, 0f, 0f, 1f); // Black back ground.
 
-        renderingProgram = Utils.createShaderProgram(VERTEX_SHADER_FILE, FRAGMENT_SHADER_FILE); // Ready the program.
+        // Fixed orbits can be evaluated entirely on the GPU, gravity needs the CPU
+        this.gpuOrbits = this.options.contains("gpu") && !this.options.contains("gravity");
+        if (this.options.contains("gpu") && !this.gpuOrbits) {
+            System.out.println("The gpu option does not apply to gravity, orbits are computed on the CPU");
+        }
+        renderingProgram = Utils.createShaderProgram(this.gpuOrbits ? ORBIT_VERTEX_SHADER_FILE : VERTEX_SHADER_FILE,
+                FRAGMENT_SHADER_FILE); // Ready the program.
+        pointProgram = Utils.createShaderProgram(POINT_VERTEX_SHADER_FILE, POINT_FRAGMENT_SHADER_FILE);
 
         setDefaultCloseOperation(EXIT_ON_CLOSE); // Set shutdown condition on close
-        // Initialize sun attributes
-        this.cameraPosXYZ = new float[3];
-        this.sunRGB = new int[3];
-        this.sunADS = new float[3];
-        this.solarAttenuation = 0;
-
-        try {
-            readSolFile(this.solFileName);
-        } catch (Exception e) {
-            System.exit(0);
-        }
+        readSolFile(this.solFileName);
 
         initalizeModels();
+        initalizeTextures();
 
         // Enable back faced culling
         gl.glEnable(GL_CULL_FACE);
@@ -147,8 +261,14 @@ public class SolarSystem extends JFrame implements GLEventListener {
         this.viewMatrix = new Matrix4f().setLookAt(cameraPosXYZ[0], cameraPosXYZ[1], cameraPosXYZ[2], 0, 0, 0, 0, 1, 0);
         this.viewMatrix.scale(this.stellarSystem.sun.radius);
 
-        this.mv_matrixID = gl.glGetUniformLocation(renderingProgram, "mv_matrix");
-        this.p_matrixID = gl.glGetUniformLocation(renderingProgram, "p_matrix"); // Save model matrix id
+        // Camera block, filled in by uploadCamera
+        gl.glGenBuffers(cameraUbo.length, cameraUbo, 0);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, cameraUbo[0]);
+        gl.glBufferData(GL_UNIFORM_BUFFER, (long) CAMERA_FLOATS * 4, null, GL_DYNAMIC_DRAW);
+        gl.glBindBufferBase(GL_UNIFORM_BUFFER, CAMERA_BINDING, cameraUbo[0]);
+
+        // Impostors set their own size
+        this.gl.glEnable(GL_PROGRAM_POINT_SIZE);
 
         // Initialize Z buffers
         this.gl.glEnable(GL_DEPTH_TEST);
@@ -157,7 +277,39 @@ public class SolarSystem extends JFrame implements GLEventListener {
         // Initialize lighting
         // installLights();
 
-        this.startTime = System.currentTimeMillis();
+        if (this.gpuOrbits) {
+            initalizeOrbitBuffer();
+            this.timeID = gl.glGetUniformLocation(renderingProgram, "time");
+            this.lastFrameNanos = System.nanoTime();
+            return;
+        }
+        this.modelMatrices = new float[this.bodyCount * BodyStore.MATRIX_FLOATS];
+        this.visibleBodies = new int[this.bodyCount];
+        this.lodBodies = new int[this.bodyCount];
+        this.drawBodies = new int[this.bodyCount];
+        this.simulationLoop = new SimulationLoop(this.simulation, this.clock);
+        this.simulationLoop.start();
+    }
+
+    /*
+     * Upload every body's fixed orbit and texture layer once. From then on the
+     * vertex shader places each instance from the time uniform alone, so a
+     * frame costs the CPU the same however many bodies there are. Only the
+     * layers change, while the textures load.
+     */
+    private void initalizeOrbitBuffer() {
+        ByteBuffer bodies = Buffers.newDirectByteBuffer(this.bodyCount * GPU_BODY_BYTES);
+        this.simulation.getBodies().writeOrbitalElements(bodies, GPU_BODY_BYTES);
+        for (int body = 0; body < this.bodyCount; body++) {
+            bodies.putFloat(body * GPU_BODY_BYTES + GPU_LAYER_OFFSET, drawnLayer(body));
+        }
+        bodies.flip();
+        this.gpuBodies = bodies;
+
+        this.gl.glGenBuffers(ssbo.length, ssbo, 0);
+        this.gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, ssbo[0]);
+        this.gl.glBufferData(GL_SHADER_STORAGE_BUFFER, bodies.limit(), bodies, GL_STATIC_DRAW);
+        this.gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, ssbo[0]);
     }
 
     /*
@@ -166,94 +318,198 @@ public class SolarSystem extends JFrame implements GLEventListener {
     @Override
     public void display(GLAutoDrawable arg0) {
         // Clear screen and Z buffer
-        this.gl.glClear(GL_COLOR_BUFFER_BIT); // clear screen
-        this.gl.glClear(GL_DEPTH_BUFFER_BIT); // clear Z-buffer
-        this.gl.glUseProgram(renderingProgram); // Shader Id to use
-        this.gl.glClearColor(0f, 0f, 0f, 1f); // Black back ground.
-
-        // Time calculations
-        this.timeElapsed = (System.currentTimeMillis() - startTime) / 1000f;
-
-        // Load and draw sun
-
-        // Load the texture st values into the shader (same for all)
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
-        this.gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(1);
-
-        // Draw Sun
-        // Create model view matrix for the sun to ensure it is scaled to the correct
-        // size
-        this.stellarSystem.sun.updateSunModelMatrix();
-        this.viewMatrix.mul(this.stellarSystem.sun.modelMatrix, modelViewMatrix);
-        // Bind the texture coordinates to vbo 1
-
-        // Bind the texture
-        this.gl.glActiveTexture(GL_TEXTURE0);
-        this.gl.glBindTexture(GL_TEXTURE_2D, this.stellarSystem.sun.textureID);
-
-        // Prepare for the transfer of data
-        this.gl.glUniformMatrix4fv(mv_matrixID, 1, false, modelViewMatrix.get(scratchBuffer));
-        this.gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
-
-        // Bind the shape vertices
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(0);
-
-        // Draw the shape!
-        gl.glDrawArrays(GL_TRIANGLES, 0, planetModel.getNumVertices());
-
-        // Draw each planet and each planets moons
-        for (PlanetSystem planetSystem : this.stellarSystem.planets) {
-
-            planetSystem.planet.updateObjectModelMatrix(null);
-            this.viewMatrix.mul(planetSystem.planet.modelMatrix, this.modelViewMatrix);
-
-            // Bind the texture
-            this.gl.glActiveTexture(GL_TEXTURE0);
-            this.gl.glBindTexture(GL_TEXTURE_2D, planetSystem.planet.textureID);
-
-            // Get perspective matrix
-            this.gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
-            this.gl.glUniformMatrix4fv(mv_matrixID, 1, false, modelViewMatrix.get(scratchBuffer));
-
-            // Bind the shape vertices
-            this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-            this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-            this.gl.glEnableVertexAttribArray(0);
+        this.glState.beginFrame();
+        this.gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
+        uploadTextures();
+        uploadCamera();
+        if (this.gpuOrbits) {
+            displayGpuOrbits();
+            return;
+        }
 
-            // Draw the shape!
-            gl.glDrawArrays(GL_TRIANGLES, 0, planetModel.getNumVertices());
+        // Body transforms between the simulation's two latest ticks
+        this.simulationLoop.interpolate(System.nanoTime(), this.modelMatrices);
+
+        // Keep only the bodies in view
+        this.bodyBvh.update(this.modelMatrices, this.simulation.getBodies().radius, this.bodyCount,
+                ForkJoinPool.commonPool());
+        this.projectionViewMatrix.set(perspectiveMatrix).mul(viewMatrix);
+        int visibleCount = this.bodyBvh.cull(this.projectionViewMatrix, this.visibleBodies);
+        long now = System.nanoTime();
+        if (now - this.cullingReportNanos >= CULLING_REPORT_NANOS) {
+            this.cullingReportNanos = now;
+            updateTitle();
+        }
 
-            // Draw each moon and adjust for planetary movement
-            for (CelestialObject moon : planetSystem.moons) {
+        // Group the visible bodies by how much of the screen they cover
+        this.levelOfDetail.select(this.modelMatrices, this.simulation.getBodies().radius, this.visibleBodies,
+                visibleCount, this.viewMatrix, this.perspectiveMatrix.m11() * this.viewportHeight / 2,
+                this.lodBodies, this.lodStart);
+
+        int points = this.lodStart[LevelOfDetail.IMPOSTOR + 1] - this.lodStart[LevelOfDetail.IMPOSTOR];
+        groupByMesh(points);
+
+        // Write every visible body's model matrix and texture layer straight
+        // into this frame's region of the ring, the impostors first and then
+        // one run of instances per mesh
+        FloatBuffer instances = this.instanceRing.begin(this.gl).asFloatBuffer();
+        for (int i = 0; i < visibleCount; i++) {
+            int body = this.drawBodies[i];
+            instances.put(this.modelMatrices, body * BodyStore.MATRIX_FLOATS, BodyStore.MATRIX_FLOATS);
+            instances.put(drawnLayer(body));
+        }
+        int baseInstance = this.instanceRing.getRegion() * this.bodyCount;
+
+        // One command per mesh in use, each drawing its run of instances
+        this.drawCommands.clear();
+        long triangles = 0;
+        for (int mesh = 0; mesh < this.meshArena.size(); mesh++) {
+            int count = this.meshStart[mesh + 1] - this.meshStart[mesh];
+            if (count > 0) {
+                this.meshArena.putCommand(this.drawCommands, mesh, count, baseInstance + this.meshStart[mesh]);
+                triangles += (long) count * (this.meshArena.getIndexCount(mesh) / 3);
+            }
+        }
+        this.drawCommands.flip();
+        this.trianglesDrawn = triangles;
+        this.meshesDrawn = this.drawCommands.limit() / MeshArena.COMMAND_INTS;
+
+        bindPlaceholder();
+
+        // The commands are a few bytes a frame; orphaning the buffer keeps the
+        // ones still being read by earlier frames intact
+        if (this.meshesDrawn > 0) {
+            this.glState.bindBuffer(GL_DRAW_INDIRECT_BUFFER, vbo[2]);
+            this.gl.glBufferData(GL_DRAW_INDIRECT_BUFFER, (long) this.drawCommands.limit() * 4, this.drawCommands,
+                    GL_STREAM_DRAW);
+            this.renderQueue.multiDrawElementsIndirect(renderingProgram, vao[0], GL_TEXTURE_2D_ARRAY,
+                    this.textures.getTextureArray(), GL_TRIANGLES, vbo[2], this.meshesDrawn);
+        }
 
-                moon.updateObjectModelMatrix(planetSystem.planet.translate);
+        // Bodies too small for a mesh are drawn as point sprites
+        if (points > 0) {
+            this.renderQueue.drawArrays(pointProgram, vao[0], GL_TEXTURE_2D_ARRAY, this.textures.getTextureArray(),
+                    GL_POINTS, 0, 1, points, baseInstance);
+        }
+        this.renderQueue.submit(this.glState);
 
-                this.viewMatrix.mul(moon.modelMatrix, this.modelViewMatrix);
+        // The region is free again once the GPU has run these draws
+        this.instanceRing.end(this.gl);
+    }
 
-                // Bind the texture
-                this.gl.glActiveTexture(GL_TEXTURE0);
-                this.gl.glBindTexture(GL_TEXTURE_2D, moon.textureID);
+    /*
+     * Order the visible bodies into drawBodies: the given number of impostors
+     * as LevelOfDetail grouped them, then the rest by the arena mesh each is
+     * drawn with, its own model or its level's sphere
+     */
+    private void groupByMesh(int points) {
+        int meshes = this.meshArena.size();
+        System.arraycopy(this.lodBodies, this.lodStart[LevelOfDetail.IMPOSTOR], this.drawBodies, 0, points);
+        Arrays.fill(this.meshCursor, 0);
+        for (int level = 1; level < LOD_SUBDIVISIONS.length; level++) {
+            for (int i = this.lodStart[level]; i < this.lodStart[level + 1]; i++) {
+                int body = this.lodBodies[i];
+                this.meshCursor[this.bodyMesh[body] >= 0 ? this.bodyMesh[body] : this.lodMesh[level]]++;
+            }
+        }
+        int start = points;
+        for (int mesh = 0; mesh < meshes; mesh++) {
+            this.meshStart[mesh] = start;
+            start += this.meshCursor[mesh];
+            this.meshCursor[mesh] = this.meshStart[mesh];
+        }
+        this.meshStart[meshes] = start;
+        for (int level = 1; level < LOD_SUBDIVISIONS.length; level++) {
+            for (int i = this.lodStart[level]; i < this.lodStart[level + 1]; i++) {
+                int body = this.lodBodies[i];
+                this.drawBodies[this.meshCursor[this.bodyMesh[body] >= 0 ? this.bodyMesh[body]
+                        : this.lodMesh[level]]++] = body;
+            }
+        }
+    }
 
-                // Prepare for the transfer of data
-                this.gl.glUniformMatrix4fv(mv_matrixID, 1, false,
-                        modelViewMatrix.get(scratchBuffer));
-                this.gl.glUniformMatrix4fv(p_matrixID, 1, false,
-                        perspectiveMatrix.get(scratchBuffer));
+    /*
+     * Draw with the orbits evaluated in the vertex shader: the only per frame
+     * work here is moving the clock and setting the time uniform.
+     */
+    private void displayGpuOrbits() {
+        long now = System.nanoTime();
+        this.clock.advance(now - this.lastFrameNanos);
+        this.lastFrameNanos = now;
+        this.glState.useProgram(renderingProgram);
+        this.gl.glUniform1d(timeID, this.clock.getTime());
+
+        bindPlaceholder();
+
+        // Positions are only known on the GPU, so every body gets the finest
+        // sphere. The orbit shader finds its body by gl_InstanceID, which does
+        // not count base instances, so models cannot be split into draws here.
+        int mesh = this.lodMesh[LOD_SUBDIVISIONS.length - 1];
+        this.renderQueue.drawElements(renderingProgram, vao[0], GL_TEXTURE_2D_ARRAY, this.textures.getTextureArray(),
+                GL_TRIANGLES, this.meshArena.getIndexCount(mesh), this.meshArena.getFirstIndex(mesh), this.bodyCount,
+                this.meshArena.getBaseVertex(mesh), 0);
+        this.renderQueue.submit(this.glState);
+    }
 
-                // Bind the shape vertices
-                this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-                this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-                this.gl.glEnableVertexAttribArray(0);
+    /*
+     * Upload the camera block if the view, projection or viewport changed
+     * since the last frame
+     */
+    private void uploadCamera() {
+        if (!this.cameraChanged) {
+            return;
+        }
+        this.cameraChanged = false;
+        this.viewMatrix.get(0, this.cameraData);
+        this.perspectiveMatrix.get(16, this.cameraData);
+        this.cameraData.put(32, this.viewportHeight);
+        this.glState.bindBuffer(GL_UNIFORM_BUFFER, cameraUbo[0]);
+        this.gl.glBufferSubData(GL_UNIFORM_BUFFER, 0, (long) CAMERA_FLOATS * 4, this.cameraData);
+    }
 
-                // Draw the shape!
-                gl.glDrawArrays(GL_TRIANGLES, 0, planetModel.getNumVertices());
+    /*
+     * Upload the next batch of decoded textures. With the gpu option the body
+     * buffer's layers are rewritten whenever a batch arrives.
+     */
+    private void uploadTextures() {
+        int uploaded = 0;
+        try {
+            uploaded = this.textures.upload(this.gl);
+        } catch (IllegalStateException e) {
+            System.out.println(
+                    "Sorry your textures did not load correctly. Please make sure they are spelled and the texture files are in the correct specified location or that they exist");
+            System.exit(0);
+        }
+        if (uploaded > 0) {
+            this.glState.invalidate(); // The loader binds through the GL directly
+        }
+        if (uploaded > 0 && this.gpuOrbits) {
+            for (int body = 0; body < this.bodyCount; body++) {
+                this.gpuBodies.putFloat(body * GPU_BODY_BYTES + GPU_LAYER_OFFSET, drawnLayer(body));
             }
+            this.glState.bindBuffer(GL_SHADER_STORAGE_BUFFER, ssbo[0]);
+            this.gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, this.gpuBodies.limit(), this.gpuBodies);
         }
     }
 
+    /*
+     * Texture array layer to draw a body with: its own once loaded, the
+     * placeholder until then
+     */
+    private int drawnLayer(int body) {
+        int layer = this.bodyTextureLayers[body];
+        return this.textures.isReady(layer) ? layer : TextureLoader.PLACEHOLDER;
+    }
+
+    /*
+     * Bind the placeholder to unit 1. The texture array holding every body's
+     * texture goes on unit 0 with each queued draw.
+     */
+    private void bindPlaceholder() {
+        this.glState.bindTexture(1, GL_TEXTURE_2D_ARRAY, this.textures.getPlaceholder());
+    }
+
     /*
      * Upon resize event change the perspective matrix to relect the new aspect
      * ratio of the screen.
@@ -261,8 +517,10 @@ public class SolarSystem extends JFrame implements GLEventListener {
     @Override
     public void reshape(GLAutoDrawable arg0, int arg1, int arg2, int arg3, int arg4) {
         aspectRatio = (float) glCanvas.getWidth() / (float) glCanvas.getHeight(); // Get new aspect ratio
+        viewportHeight = Math.max(1, arg4);
         // Set new perspective
         perspectiveMatrix.identity().perspective((float) Math.toRadians(60.0f), aspectRatio, 0.1f, 1000.0f);
+        cameraChanged = true;
     }
 
     /*
@@ -273,352 +531,146 @@ public class SolarSystem extends JFrame implements GLEventListener {
      */
     @Override
     public void dispose(GLAutoDrawable arg0) {
-        // TODO Auto-generated method stub
+        if (this.simulationLoop != null) {
+            this.simulationLoop.stop();
+        }
+        if (this.instanceRing != null) {
+            this.instanceRing.delete(this.gl);
+        }
+
+        // The texture array goes with the last body using it
+        if (this.textures != null) {
+            for (int layer : this.bodyTextureLayers) {
+                this.textureCache.release(layer);
+            }
+            if (this.textureCache.isUnused()) {
+                this.textures.delete(this.gl);
+            }
+        }
     }
 
     /**
-     * This method makes use of a buffered reader in order to parse the .sol file in
-     * order to convert it into the planetary class system
+     * Read the .sol file into the simulation and the camera and light settings.
+     * Any problem with the file ends the program.
      * 
      * @param solFileName
      */
     public void readSolFile(String solFileName) {
-        String line;
         try {
-            this.solFile = locateFile(solFileName);
-
-            // Create buffer reader to read file input
-            FileReader fr = new FileReader(solFile);
-            BufferedReader br = new BufferedReader(fr);
-
-            // Get first line of file
-            line = br.readLine();
-            String[] splitString = line.split("\t");
-
-            // Set Camera location
-            if (splitString.length != 3) {
-                br.close();
-                throw new Exception("Sol file contains the incorrect number of camera location coordinates. Needs 3");
-            }
-
-            // Set camera position
-            for (int i = 0; i < 3; i++) {
-                this.cameraPosXYZ[i] = Float.parseFloat(splitString[i]);
-            }
-
-            // Get second line of file
-            line = br.readLine();
-            splitString = line.split("\t");
-            if (splitString.length != 7) {
-                br.close();
-                throw new Exception("Sol file contains the incorrect number of sun light attributes. Needs 7");
-            }
-
-            // Set the light attributes
-            for (int i = 0; i < 7; i++) {
-                if (i < 3) {
-                    this.sunRGB[i] = Integer.parseInt(splitString[i]);
-                } else if (i < 6) {
-                    this.sunADS[i - 3] = Float.parseFloat(splitString[i]);
-                } else {
-                    this.solarAttenuation = Float.parseFloat(splitString[i]);
-                }
+            SolFile sol = SolFile.read(solFileName);
+            this.cameraPosXYZ = sol.cameraPosXYZ;
+            this.sunRGB = sol.sunRGB;
+            this.sunADS = sol.sunADS;
+            this.solarAttenuation = sol.solarAttenuation;
+            this.stellarSystem = sol.stellarSystem;
+            this.simulation = new Simulation(this.stellarSystem, ForkJoinPool.commonPool(),
+                    this.options.contains("gravity") ? Simulation.Mode.GRAVITY : Simulation.Mode.KEPLER);
+            if (this.options.contains("table")) {
+                this.simulation.getBodies().setSinCosTable(new SinCosTable());
             }
-
-            // Get third line of the file
-            line = br.readLine();
-            splitString = line.split("\t");
-            if (splitString.length != 3) {
-                br.close();
-                throw new Exception("Sol file contains the incorrect number of sun attribute. Needs 3");
-            }
-
-            // Create the sun object in the stellar system
-            this.stellarSystem = new StellarSystem(
-                    new CelestialObject(splitString[0], Float.parseFloat(splitString[1]),
-                            Float.parseFloat(splitString[2])));
-            int currentPlanet = -1; // Initial Planet Count
-
-            while ((line = br.readLine()) != null && line.length() != 0) {
-                // Split up input
-                splitString = line.split("\t");
-                // Check if the celestial body is a planet or moon
-                if (splitString.length == 7) {
-                    currentPlanet++;
-                    stellarSystem.addPlanetSystem(new PlanetSystem(new CelestialObject(
-                            splitString[1],
-                            Float.parseFloat(splitString[2]),
-                            Float.parseFloat(splitString[3]),
-                            Float.parseFloat(splitString[4]),
-                            Float.parseFloat(splitString[5]),
-                            Float.parseFloat(splitString[6]))));
-                } else if (splitString.length == 8) { // Add moons if planet has moons
-                    stellarSystem.planets.get(currentPlanet).addMoon(new CelestialObject(
-                            splitString[2],
-                            Float.parseFloat(splitString[3]),
-                            Float.parseFloat(splitString[4]),
-                            Float.parseFloat(splitString[5]),
-                            Float.parseFloat(splitString[6]),
-                            Float.parseFloat(splitString[7])));
-                } else {
-                    br.close();
-                    throw new Exception("Sol file planet/moon input not correct");
-                }
-            }
-            br.close();
         } catch (FileNotFoundException e) {
             System.out.println("Sorry the file " + e + " could not be found");
             System.exit(0);
+        } catch (SolFileException e) {
+            System.out.println(e.getMessage()); // file:line:column: problem
+            System.exit(0);
         } catch (Exception e) {
             System.out.println(e);
             System.exit(0);
         }
     }
 
-    /**
-     * Attempt to locate .sol file
-     * 
-     * @param fileName
-     * @return
-     * @throws FileNotFoundException
-     */
-    public File locateFile(String fileName) throws FileNotFoundException {
-        File solFile = new File(fileName);
-        if (!solFile.exists() || solFile.isDirectory()) {
-            throw new FileNotFoundException(fileName);
-        }
-        return solFile;
-    }
-
-    /*
-     * A class designed to package up and structure all the elements of a solar
-     * system (interpreted from a .sol file) in one easily traversable way. Consists
-     * of the sun and a list of all planet objects
-     */
-    public class StellarSystem {
-        CelestialObject sun;
-        ArrayList<PlanetSystem> planets;
-
-        StellarSystem(CelestialObject sun) {
-            this.sun = sun;
-            this.planets = new ArrayList<PlanetSystem>();
-        }
-
-        public void addPlanetSystem(PlanetSystem planetSystem) {
-            this.planets.add(planetSystem);
-        }
-    }
-
     /*
-     * A class designed to store planetary systems including the main planet and the
-     * moons that orbit it.
+     * Start loading every distinct texture used by the system into the layers
+     * of one texture array so all bodies can be drawn without rebinding. Bodies
+     * whose images have the same path or the same contents share a layer. Only
+     * the image sizes are read here; the images are decoded (or read from the
+     * compressed cache) in the background and uploaded by uploadTextures.
      */
-    public class PlanetSystem {
-        CelestialObject planet;
-        ArrayList<CelestialObject> moons;
-
-        PlanetSystem(CelestialObject planet) {
-            this.planet = planet;
-            this.moons = new ArrayList<CelestialObject>();
-        }
-
-        public void addMoon(CelestialObject moon) {
-            this.moons.add(moon);
-        }
-    }
-
-    /*
-     * A class designed generalize and bundle all attributes of all celestial
-     * objects present in the model and produced from the .sol file
-     */
-    public class CelestialObject {
-        public String texture; // Texture of the object
-        public float radius; // The radius of the object
-        public float rotationPeriod; // Rotation in seconds
-        public float distanceFromSun; // Distance from the center of the sun to the center of the celestial object
-        public float orbitalPeriod; // Orbit time in seconds
-        public float specularShine; // The specular shine of the object (0 being no specular component)
-        public int textureID; // The id of the planet as
-        public Matrix4f scale; // The scale of the object
-        public Matrix4f translate;
-        public Matrix4f rotate;
-        public Matrix4f modelMatrix;
-
-        // Constructor for the systems sun
-        CelestialObject(String texture, float radius, float rotationPeriod) {
-            this.texture = texture;
-            this.radius = radius;
-            this.rotationPeriod = rotationPeriod;
-            this.textureID = loadTexture(this.texture); // Load the texture end
-
-            this.scale = new Matrix4f().scale(radius);
-            this.rotate = new Matrix4f();
-            this.modelMatrix = new Matrix4f().scale(this.radius);
-
-            gl.glBindTexture(GL_TEXTURE_2D, this.textureID);
-            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-            
-        }
-
-        // Constructor for planets and moons
-        CelestialObject(String texture, float radius, float rotationPeriod,
-                float distanceFromSun, float orbitalPeriod, float specularShine) {
-            this.texture = texture;
-            this.radius = radius;
-            this.rotationPeriod = rotationPeriod;
-            this.distanceFromSun = distanceFromSun;
-            this.orbitalPeriod = -orbitalPeriod; // Negative to go counter counterclockwise when positive
-            this.specularShine = specularShine;
-
-            this.scale = new Matrix4f().scale(radius); // Scale the size of the celestial object
-            this.translate = new Matrix4f().translate(this.distanceFromSun, 0, 0);
-            this.rotate = new Matrix4f();
-
-            // Create initial model view matrix
-            this.modelMatrix = new Matrix4f().mul(this.translate).mul(this.scale);
-
-            this.textureID = loadTexture(this.texture); // Load the texture end
-            gl.glBindTexture(GL_TEXTURE_2D, this.textureID);
-            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-        }
-
-        /*
-         * A method designed to update the model matrix based on time. Given that the
-         * period of rotation and orbit period are given these can be parametrized based
-         * on time and updated as needed to ensure planetary orbits and rotations are
-         * based on time rather than how quick frames can render which can lead to
-         * inaccuracy based on runtime and other computational factors
-         */
-        public void updateObjectModelMatrix(Matrix4f planetTranslation) {
-            this.translate.set(getPlanetPosition(this.translate, this.orbitalPeriod, this.distanceFromSun));
-            if (planetTranslation != null) {
-                this.translate.mul(planetTranslation);
-            }
-            this.rotate.set(getObjectRotation(this.rotate, this.rotationPeriod));
-            this.modelMatrix = new Matrix4f().mul(this.translate).mul(rotate).mul(this.scale);
-        }
-
-        /*
-         * A method designed to update the suns rotation. Based on parametrization in
-         * time to reduce hardware inaccuracy
-         */
-        public void updateSunModelMatrix() {
-            this.rotate.set(getObjectRotation(this.rotate, this.rotationPeriod));
-            this.modelMatrix = new Matrix4f().mul(rotate).mul(this.scale);
-        }
-    }
-
-    /*
-     * A method to generated the necessary parameterized rotation of a celestial
-     * object based on rotation speed.
-     */
-    public Matrix4f getObjectRotation(Matrix4f rotation, float rotationPeriod) {
-        rotation.identity();
-        // Percentage of the rotation complected
-        this.amountOfOrbitalRotation = (this.timeElapsed % rotationPeriod) / rotationPeriod;
-        // Convert to radians
-        this.amountOfObjectRotation = (Math.PI * 2) * this.amountOfOrbitalRotation;
-        // Return the correctly applied rotation
-        return rotation.rotateY((float) this.amountOfObjectRotation);
-    }
-
-    /*
-     * A method to generated the necessary parameterized translation of a celestial
-     * object based on its orbital speed.
-     */
-    public Matrix4f getPlanetPosition(Matrix4f translate, float orbitalPeriod, float distanceFromSun) {
-        translate.identity();
-        // Percentage of orbit complected
-        this.timeOrbitAmount = (this.timeElapsed % orbitalPeriod) / orbitalPeriod;
-        // Convert rotation radians
-        this.amountOfOrbitalRotation = (Math.PI * 2) * this.timeOrbitAmount;
-        // Get the translation the object should be at
-        translate.translate(
-                (float) (Math.cos(this.amountOfOrbitalRotation) * distanceFromSun),
-                0,
-                (float) (Math.sin(this.amountOfOrbitalRotation) * distanceFromSun));
-        return translate;
-    }
-
-    /*
-     * A function to load textures into the program safely
-     */
-    public int loadTexture(String textureFileName) {
+    private void initalizeTextures() {
         GL4 gl = (GL4) GLContext.getCurrentGL();
-        int finalTextureRef;
-        Texture tex = null;
+
+        List<CelestialObject> bodies = this.stellarSystem.getBodies();
+        this.bodyTextureLayers = new int[bodies.size()];
         try {
-            tex = TextureIO.newTexture(new File(textureFileName), false);
-        } catch (Exception e) {
+            for (int i = 0; i < bodies.size(); i++) {
+                this.bodyTextureLayers[i] = this.textureCache.acquire(bodies.get(i).texture);
+            }
+            this.textures = new TextureLoader(this.textureCache, MAX_TEXTURE_SIZE);
+        } catch (IOException e) {
             System.out.println(
                     "Sorry your textures did not load correctly. Please make sure they are spelled and the texture files are in the correct specified location or that they exist");
             System.exit(0);
-            // super.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
-            // TODO fix this!!
-        }
-        finalTextureRef = tex.getTextureObject();
-
-        // building a mipmap and use anisotropic filtering
-        gl.glBindTexture(GL_TEXTURE_2D, finalTextureRef);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-        gl.glGenerateMipmap(GL_TEXTURE_2D);
-        if (gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic")) {
-            float anisoset[] = new float[1];
-            gl.glGetFloatv(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, anisoset, 0);
-            gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, anisoset[0]);
         }
-        return finalTextureRef;
+        this.textures.initialize(gl);
     }
 
     /*
-     * Method to import planetary model (isosphere)
+     * Generate the planetary models, one icosphere per level of detail, load
+     * the models of the bodies that have one, and pack them all into one mesh
+     * arena. The finest sphere has the 5120 triangles of planet.obj; its
+     * texture coordinates are not the plain equirectangular ones of the
+     * generated spheres, so using it would shift the textures whenever a body
+     * changed level. Models are scaled to unit size, as the spheres are, and
+     * each file is loaded once however many bodies use it.
      */
     private void initalizeModels() {
-        // Temporatry Red Square:
-
         GL4 gl = (GL4) GLContext.getCurrentGL();
-        this.planetModel = new ImportedModel("planet.obj");
-
-        this.numObjVertices = planetModel.getNumVertices();
-        Vector3f[] vertices = planetModel.getVertices();
-        Vector2f[] texCoords = planetModel.getTexCoords();
-        Vector3f[] normals = planetModel.getNormals();
-
-        float[] pvalues = new float[numObjVertices * 3]; // vertex positions
-        float[] tvalues = new float[numObjVertices * 2]; // texture coordinates
-        float[] nvalues = new float[numObjVertices * 3]; // normal vectors
-
-        for (int i = 0; i < numObjVertices; i++) {
-            pvalues[i * 3] = (float) (vertices[i]).x();
-            pvalues[i * 3 + 1] = (float) (vertices[i]).y();
-            pvalues[i * 3 + 2] = (float) (vertices[i]).z();
-            tvalues[i * 2] = (float) (texCoords[i]).x();
-            tvalues[i * 2 + 1] = (float) (texCoords[i]).y();
-            nvalues[i * 3] = (float) (normals[i]).x();
-            nvalues[i * 3 + 1] = (float) (normals[i]).y();
-            nvalues[i * 3 + 2] = (float) (normals[i]).z();
+        for (int level = 1; level < LOD_SUBDIVISIONS.length; level++) {
+            this.lodMesh[level] = this.meshArena.add(SphereMesh.icosphere(LOD_SUBDIVISIONS[level]));
         }
+        List<CelestialObject> bodies = this.stellarSystem.getBodies();
+        HashMap<String, Integer> models = new HashMap<String, Integer>();
+        this.bodyMesh = new int[bodies.size()];
+        for (int body = 0; body < bodies.size(); body++) {
+            String model = bodies.get(body).model;
+            Integer mesh = model == null ? Integer.valueOf(-1) : models.get(model);
+            if (mesh == null) {
+                try {
+                    mesh = this.meshArena.addFitted(MeshCache.load(model, false));
+                } catch (IOException e) {
+                    System.out.println("Sorry the model " + model + " could not be loaded: " + e);
+                    System.exit(0);
+                }
+                models.put(model, mesh);
+            }
+            this.bodyMesh[body] = mesh;
+        }
+        this.meshStart = new int[this.meshArena.size() + 1];
+        this.meshCursor = new int[this.meshArena.size()];
+        this.drawCommands = Buffers.newDirectIntBuffer(this.meshArena.size() * MeshArena.COMMAND_INTS);
 
         // Set up Vao
         gl.glGenVertexArrays(vao.length, vao, 0);
         gl.glBindVertexArray(vao[0]);
         gl.glGenBuffers(vbo.length, vbo, 0);
 
-        // VBO for vertex locations
+        // Every mesh's indices, relative to its base vertex (the index buffer is kept in the vao)
+        this.meshArena.upload(gl, vbo[0], vbo[1]);
+
+        // VBO for interleaved position, texture coordinates (s,t) and normal
         gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        FloatBuffer vertBuf = Buffers.newDirectFloatBuffer(pvalues);
-        gl.glBufferData(GL_ARRAY_BUFFER, vertBuf.limit() * 4, vertBuf, GL_STATIC_DRAW);
-
-        // VBO for texture coordinates (s,t)
-        gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
-        FloatBuffer texBuf = Buffers.newDirectFloatBuffer(tvalues);
-        gl.glBufferData(GL_ARRAY_BUFFER, texBuf.limit() * 4, texBuf, GL_STATIC_DRAW);
-
-        // VBO for normal vectors
-        gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[2]);
-        FloatBuffer norBuf = Buffers.newDirectFloatBuffer(nvalues);
-        gl.glBufferData(GL_ARRAY_BUFFER, norBuf.limit() * 4, norBuf, GL_STATIC_DRAW);
+        gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, MeshCache.STRIDE, MeshCache.POSITION_OFFSET);
+        gl.glEnableVertexAttribArray(0);
+        gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, MeshCache.STRIDE, MeshCache.TEXCOORD_OFFSET);
+        gl.glEnableVertexAttribArray(1);
+        gl.glVertexAttribPointer(2, 3, GL_FLOAT, false, MeshCache.STRIDE, MeshCache.NORMAL_OFFSET);
+        gl.glEnableVertexAttribArray(2);
+
+        // Instance ring, one model matrix (locations 3-6) and texture layer (location 7) per body.
+        // With the gpu option the orbit shader places the bodies and needs neither.
+        this.bodyCount = this.stellarSystem.getBodyCount();
+        if (this.gpuOrbits) {
+            return;
+        }
+        this.instanceRing = new StreamRing(gl, GL_ARRAY_BUFFER, this.bodyCount * INSTANCE_FLOATS * 4);
+        for (int column = 0; column < 4; column++) {
+            gl.glVertexAttribPointer(3 + column, 4, GL_FLOAT, false, INSTANCE_FLOATS * 4, column * 16);
+            gl.glEnableVertexAttribArray(3 + column);
+            gl.glVertexAttribDivisor(3 + column, 1);
+        }
+        gl.glVertexAttribPointer(7, 1, GL_FLOAT, false, INSTANCE_FLOATS * 4, 64);
+        gl.glEnableVertexAttribArray(7);
+        gl.glVertexAttribDivisor(7, 1);
     }
 }
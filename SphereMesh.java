@@ -0,0 +1,332 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Built in unit spheres at any subdivision level, in MeshCache's interleaved
+ * layout so they are uploaded the same way as an imported mesh. Vertices and
+ * indices are written straight into direct buffers, and each sphere is only
+ * generated once: later calls for the same level get views of the same
+ * buffers.
+ *
+ * Two tessellations are offered. An icosphere of level 0 is the icosahedron
+ * (20 triangles) and each level splits every triangle in four, so level 4 has
+ * the 5120 triangles of planet.obj; its triangles are nearly all the same size.
+ * A UV sphere of level l has 4 * 2^l slices and 2 * 2^l stacks, level 0 being
+ * the octahedron; it is cheaper to build but crowds triangles at the poles.
+ *
+ * Both have the poles on the y axis and the same equirectangular texture
+ * coordinates, s running once around the equator and t from the north pole (0)
+ * to the south pole (1), so a body looks the same whichever sphere or level it
+ * is drawn with. Triangles that cross the s = 0 seam get copies of their
+ * vertices on the far side of it, and every triangle touching a pole gets its
+ * own pole vertex at the s of its other corners, so no triangle stretches
+ * across the texture.
+ */
+public final class SphereMesh {
+    public static final int MAX_LEVEL = 8; // 1.3 million triangles as an icosphere
+
+    private static final MeshCache.Mesh[] ICOSPHERES = new MeshCache.Mesh[MAX_LEVEL + 1];
+    private static final MeshCache.Mesh[] UV_SPHERES = new MeshCache.Mesh[MAX_LEVEL + 1];
+
+    // private constructor prevents instantiation (static only)
+    private SphereMesh() {
+    }
+
+    /*
+     * Triangles in an icosphere of the given level
+     */
+    public static int icosphereTriangles(int level) {
+        return 20 << (2 * level);
+    }
+
+    /*
+     * Triangles in a UV sphere of the given level
+     */
+    public static int uvSphereTriangles(int level) {
+        int slices = 4 << level;
+        int stacks = 2 << level;
+        return 2 * slices * (stacks - 1);
+    }
+
+    public static synchronized MeshCache.Mesh icosphere(int level) {
+        checkLevel(level);
+        if (ICOSPHERES[level] == null) {
+            ICOSPHERES[level] = generateIcosphere(level);
+        }
+        return view(ICOSPHERES[level]);
+    }
+
+    public static synchronized MeshCache.Mesh uvSphere(int level) {
+        checkLevel(level);
+        if (UV_SPHERES[level] == null) {
+            UV_SPHERES[level] = generateUvSphere(level);
+        }
+        return view(UV_SPHERES[level]);
+    }
+
+    private static void checkLevel(int level) {
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Sphere level " + level + " is not in 0 to " + MAX_LEVEL);
+        }
+    }
+
+    /*
+     * A mesh over the memoised buffers with its own positions, so callers can
+     * read it without disturbing anyone else's copy
+     */
+    private static MeshCache.Mesh view(MeshCache.Mesh mesh) {
+        return new MeshCache.Mesh(mesh.vertexData.duplicate().order(ByteOrder.nativeOrder()),
+                mesh.indexData.duplicate().order(ByteOrder.nativeOrder()), mesh.vertexCount, mesh.indexCount);
+    }
+
+    private static MeshCache.Mesh generateIcosphere(int level) {
+        int pointCount = 10 * (1 << (2 * level)) + 2;
+        double[] x = new double[pointCount];
+        double[] y = new double[pointCount];
+        double[] z = new double[pointCount];
+
+        // Icosahedron: the poles and two rings of five at latitude +-atan(1/2)
+        y[0] = 1;
+        double ringY = 1 / Math.sqrt(5);
+        double ringR = 2 / Math.sqrt(5);
+        for (int i = 0; i < 5; i++) {
+            double upper = i * 2 * Math.PI / 5;
+            double lower = (i + 0.5) * 2 * Math.PI / 5;
+            x[1 + i] = ringR * Math.cos(upper);
+            y[1 + i] = ringY;
+            z[1 + i] = ringR * Math.sin(upper);
+            x[6 + i] = ringR * Math.cos(lower);
+            y[6 + i] = -ringY;
+            z[6 + i] = ringR * Math.sin(lower);
+        }
+        y[11] = -1;
+        int count = 12;
+
+        int[] faces = new int[20 * 3];
+        int f = 0;
+        for (int i = 0; i < 5; i++) {
+            int upper = 1 + i;
+            int nextUpper = 1 + (i + 1) % 5;
+            int lower = 6 + i;
+            int nextLower = 6 + (i + 1) % 5;
+            f = face(faces, f, x, y, z, 0, upper, nextUpper);
+            f = face(faces, f, x, y, z, upper, lower, nextUpper);
+            f = face(faces, f, x, y, z, nextUpper, lower, nextLower);
+            f = face(faces, f, x, y, z, lower, 11, nextLower);
+        }
+
+        // Split every triangle in four, sharing the new midpoints between
+        // neighbours through an open addressed table keyed by edge
+        for (int l = 0; l < level; l++) {
+            int edges = faces.length / 2;
+            int bits = 32 - Integer.numberOfLeadingZeros(edges * 2 - 1);
+            long[] keys = new long[1 << bits];
+            int[] midpoints = new int[1 << bits];
+            int[] split = new int[faces.length * 4];
+            int s = 0;
+            for (int t = 0; t < faces.length; t += 3) {
+                int a = faces[t];
+                int b = faces[t + 1];
+                int c = faces[t + 2];
+                int ab = midpoint(keys, midpoints, bits, x, y, z, count, a, b);
+                count += ab == count ? 1 : 0;
+                int bc = midpoint(keys, midpoints, bits, x, y, z, count, b, c);
+                count += bc == count ? 1 : 0;
+                int ca = midpoint(keys, midpoints, bits, x, y, z, count, c, a);
+                count += ca == count ? 1 : 0;
+                s = put(split, s, a, ab, ca);
+                s = put(split, s, ab, b, bc);
+                s = put(split, s, ca, bc, c);
+                s = put(split, s, ab, bc, ca);
+            }
+            faces = split;
+        }
+
+        return interleave(x, y, z, count, faces);
+    }
+
+    /*
+     * Add a triangle wound counterclockwise as seen from outside the sphere
+     */
+    private static int face(int[] faces, int f, double[] x, double[] y, double[] z, int a, int b, int c) {
+        double ux = x[b] - x[a], uy = y[b] - y[a], uz = z[b] - z[a];
+        double vx = x[c] - x[a], vy = y[c] - y[a], vz = z[c] - z[a];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        boolean outward = nx * (x[a] + x[b] + x[c]) + ny * (y[a] + y[b] + y[c]) + nz * (z[a] + z[b] + z[c]) > 0;
+        return outward ? put(faces, f, a, b, c) : put(faces, f, a, c, b);
+    }
+
+    private static int put(int[] faces, int f, int a, int b, int c) {
+        faces[f] = a;
+        faces[f + 1] = b;
+        faces[f + 2] = c;
+        return f + 3;
+    }
+
+    /*
+     * The point halfway round the sphere between a and b, added at index count
+     * if the edge has not been split yet
+     */
+    private static int midpoint(long[] keys, int[] midpoints, int bits, double[] x, double[] y, double[] z,
+            int count, int a, int b) {
+        long key = a < b ? (long) a << 32 | b : (long) b << 32 | a; // Never 0, a and b differ
+        int mask = keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return midpoints[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        double mx = x[a] + x[b];
+        double my = y[a] + y[b];
+        double mz = z[a] + z[b];
+        double length = Math.sqrt(mx * mx + my * my + mz * mz);
+        x[count] = mx / length;
+        y[count] = my / length;
+        z[count] = mz / length;
+        keys[slot] = key;
+        midpoints[slot] = count;
+        return count;
+    }
+
+    /*
+     * Give every corner its texture coordinates, copying vertices where a
+     * triangle needs different ones, and write the interleaved vertices and
+     * the indices
+     */
+    private static MeshCache.Mesh interleave(double[] x, double[] y, double[] z, int count, int[] faces) {
+        double[] s = new double[count];
+        double[] t = new double[count];
+        boolean[] pole = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            s[i] = 0.5 - Math.atan2(z[i], x[i]) / (2 * Math.PI);
+            t[i] = 0.5 - Math.asin(Math.max(-1, Math.min(1, y[i]))) / Math.PI;
+            pole[i] = x[i] == 0 && z[i] == 0;
+        }
+
+        // Indices go straight out; the copied vertices are kept as their source
+        // and s until the final vertex count is known
+        ByteBuffer indexData = ByteBuffer.allocateDirect(faces.length * 4).order(ByteOrder.nativeOrder());
+        IntBuffer indices = indexData.asIntBuffer();
+        int[] copySource = new int[64];
+        double[] copyS = new double[64];
+        int copies = 0;
+        int[] wrapped = new int[count]; // Seam copy of each vertex, shared between triangles
+        Arrays.fill(wrapped, -1);
+        double[] corner = new double[3];
+        for (int f = 0; f < faces.length; f += 3) {
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < 3; k++) {
+                int v = faces[f + k];
+                if (!pole[v]) {
+                    low = Math.min(low, s[v]);
+                    high = Math.max(high, s[v]);
+                }
+            }
+            boolean crossesSeam = high - low > 0.5;
+
+            // The s of each corner, moved past 1 for the low side of a seam crossing
+            double sum = 0;
+            int regular = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = faces[f + k];
+                corner[k] = s[v] + (crossesSeam && s[v] < 0.5 ? 1 : 0);
+                if (!pole[v]) {
+                    sum += corner[k];
+                    regular++;
+                }
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = faces[f + k];
+                if (copies + 1 > copySource.length) {
+                    copySource = Arrays.copyOf(copySource, copySource.length * 2);
+                    copyS = Arrays.copyOf(copyS, copyS.length * 2);
+                }
+                if (pole[v]) {
+                    indices.put(count + copies);
+                    copySource[copies] = v;
+                    copyS[copies++] = sum / regular;
+                } else if (corner[k] != s[v]) {
+                    if (wrapped[v] < 0) {
+                        wrapped[v] = count + copies;
+                        copySource[copies] = v;
+                        copyS[copies++] = corner[k];
+                    }
+                    indices.put(wrapped[v]);
+                } else {
+                    indices.put(v);
+                }
+            }
+        }
+
+        int vertexCount = count + copies;
+        ByteBuffer vertexData = ByteBuffer.allocateDirect(vertexCount * MeshCache.STRIDE)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < vertexCount; i++) {
+            int v = i < count ? i : copySource[i - count];
+            putVertex(vertexData, x[v], y[v], z[v], i < count ? s[v] : copyS[i - count], t[v]);
+        }
+        vertexData.flip();
+        return new MeshCache.Mesh(vertexData, indexData, vertexCount, faces.length);
+    }
+
+    /*
+     * A grid of slices by stacks with a duplicated seam column, and one pole
+     * vertex per slice at the middle of the slice
+     */
+    private static MeshCache.Mesh generateUvSphere(int level) {
+        int slices = 4 << level;
+        int stacks = 2 << level;
+        int columns = slices + 1;
+        int vertexCount = columns * (stacks + 1);
+        ByteBuffer vertexData = ByteBuffer.allocateDirect(vertexCount * MeshCache.STRIDE)
+                .order(ByteOrder.nativeOrder());
+        for (int j = 0; j <= stacks; j++) {
+            double theta = Math.PI * j / stacks;
+            boolean pole = j == 0 || j == stacks;
+            double ring = pole ? 0 : Math.sin(theta);
+            double y = pole ? (j == 0 ? 1 : -1) : Math.cos(theta);
+            for (int i = 0; i <= slices; i++) {
+                double s = (i + (pole ? 0.5 : 0)) / slices;
+                double phi = 2 * Math.PI * i / slices;
+                putVertex(vertexData, -Math.cos(phi) * ring, y, Math.sin(phi) * ring, s, (double) j / stacks);
+            }
+        }
+        vertexData.flip();
+
+        // Two triangles per quad, one where a side of the quad is a pole
+        int indexCount = 3 * uvSphereTriangles(level);
+        ByteBuffer indexData = ByteBuffer.allocateDirect(indexCount * 4).order(ByteOrder.nativeOrder());
+        IntBuffer indices = indexData.asIntBuffer();
+        for (int j = 0; j < stacks; j++) {
+            for (int i = 0; i < slices; i++) {
+                int a = j * columns + i;
+                int b = a + 1;
+                int c = a + columns;
+                int d = c + 1;
+                if (j != 0) {
+                    indices.put(a).put(c).put(b);
+                }
+                if (j != stacks - 1) {
+                    indices.put(j == 0 ? a : b).put(c).put(d);
+                }
+            }
+        }
+        return new MeshCache.Mesh(vertexData, indexData, vertexCount, indexCount);
+    }
+
+    private static void putVertex(ByteBuffer vertexData, double x, double y, double z, double s, double t) {
+        float px = (float) x;
+        float py = (float) y;
+        float pz = (float) z;
+        vertexData.putFloat(px).putFloat(py).putFloat(pz); // Position
+        vertexData.putFloat((float) s).putFloat((float) t); // Texture s, t
+        vertexData.putFloat(px).putFloat(py).putFloat(pz); // Normal, the same on a unit sphere
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * A class designed to package up and structure all the elements of a solar
+ * system (interpreted from a .sol file) in one easily traversable way. Bodies
+ * form a tree of any depth rooted at the sun: planets orbit the sun, moons
+ * orbit planets, and so on down to moons of moons or swarms of stations. A
+ * binary star is two stars orbiting a root with no radius. Each body is stored
+ * with the index of the body it orbits, and always after it.
+ */
+public class StellarSystem {
+    public static final int NO_PARENT = -1;
+
+    CelestialObject sun; // The root, body 0
+    private final ArrayList<CelestialObject> bodies;
+    private int[] parents;
+
+    StellarSystem(CelestialObject sun) {
+        this.sun = sun;
+        this.bodies = new ArrayList<CelestialObject>();
+        this.bodies.add(sun);
+        this.parents = new int[] { NO_PARENT };
+    }
+
+    /*
+     * Add a body orbiting the body at index parent (0 for the sun) and return
+     * the new body's index
+     */
+    public int add(CelestialObject body, int parent) {
+        if (parent < 0 || parent >= this.bodies.size()) {
+            throw new IllegalArgumentException("No body " + parent + " to orbit");
+        }
+        int index = this.bodies.size();
+        if (index == this.parents.length) {
+            this.parents = Arrays.copyOf(this.parents, index * 2);
+        }
+        this.bodies.add(body);
+        this.parents[index] = parent;
+        return index;
+    }
+
+    /*
+     * Index of the body orbited by the body at index body, NO_PARENT for the sun
+     */
+    public int getParent(int body) {
+        return this.parents[body];
+    }
+
+    /*
+     * Number of bodies in the system, the sun included
+     */
+    public int getBodyCount() {
+        return this.bodies.size();
+    }
+
+    /*
+     * All bodies in drawing order, every parent before its children
+     */
+    public List<CelestialObject> getBodies() {
+        return Collections.unmodifiableList(this.bodies);
+    }
+}
@@ -0,0 +1,121 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.GL4;
+
+/**
+ * A buffer the CPU rewrites every frame for the GPU to read, split into
+ * REGIONS regions used in turn. The whole buffer is mapped once, persistently
+ * and coherently, so each frame's data is written straight into GL memory
+ * with no glBufferSubData copy and no map or unmap calls.
+ *
+ * A fence placed after each frame's last draw marks when the GPU is done with
+ * that frame's region, and begin waits on it before handing the region out
+ * again. With three regions that only blocks when the GPU is two whole frames
+ * behind, which the waits counter records.
+ */
+public class StreamRing {
+    public static final int REGIONS = 3;
+    private static final long WAIT_NANOS = 100_000_000L; // Per wait call, repeated until the fence signals
+
+    private final int target;
+    private final int regionBytes;
+    private final int bufferID;
+    private final ByteBuffer[] regions = new ByteBuffer[REGIONS];
+    private final long[] fences = new long[REGIONS];
+    private int region = REGIONS - 1;
+    private long waits;
+
+    /*
+     * Create and map the buffer, leaving it bound to target
+     */
+    public StreamRing(GL4 gl, int target, int regionBytes) {
+        this.target = target;
+        this.regionBytes = Math.max(4, regionBytes);
+        int[] ids = new int[1];
+        gl.glGenBuffers(1, ids, 0);
+        this.bufferID = ids[0];
+
+        long size = (long) this.regionBytes * REGIONS;
+        int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+        gl.glBindBuffer(target, this.bufferID);
+        gl.glBufferStorage(target, size, null, flags);
+        ByteBuffer mapped = gl.glMapBufferRange(target, 0, size, flags);
+        for (int r = 0; r < REGIONS; r++) {
+            mapped.limit((r + 1) * this.regionBytes).position(r * this.regionBytes);
+            this.regions[r] = mapped.slice().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public int getBuffer() {
+        return this.bufferID;
+    }
+
+    public int getRegionBytes() {
+        return this.regionBytes;
+    }
+
+    /*
+     * Index of the region handed out by the last begin
+     */
+    public int getRegion() {
+        return this.region;
+    }
+
+    /*
+     * Byte offset in the buffer of the region handed out by the last begin
+     */
+    public long getOffset() {
+        return (long) this.region * this.regionBytes;
+    }
+
+    /*
+     * Frames that found their region still in use by the GPU
+     */
+    public long getWaits() {
+        return this.waits;
+    }
+
+    /*
+     * Move on to the next region, once the GPU has finished with it, and
+     * return it cleared for writing
+     */
+    public ByteBuffer begin(GL4 gl) {
+        this.region = (this.region + 1) % REGIONS;
+        long fence = this.fences[this.region];
+        if (fence != 0) {
+            int status = gl.glClientWaitSync(fence, 0, 0);
+            if (status == GL_TIMEOUT_EXPIRED) {
+                this.waits++;
+                while (status == GL_TIMEOUT_EXPIRED) {
+                    status = gl.glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_NANOS);
+                }
+            }
+            gl.glDeleteSync(fence);
+            this.fences[this.region] = 0;
+        }
+        ByteBuffer buffer = this.regions[this.region];
+        buffer.clear();
+        return buffer;
+    }
+
+    /*
+     * Mark the end of this frame's use of its region. Call after the last
+     * command that reads it.
+     */
+    public void end(GL4 gl) {
+        this.fences[this.region] = gl.glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    public void delete(GL4 gl) {
+        for (int r = 0; r < REGIONS; r++) {
+            if (this.fences[r] != 0) {
+                gl.glDeleteSync(this.fences[r]);
+                this.fences[r] = 0;
+            }
+        }
+        gl.glBindBuffer(this.target, this.bufferID);
+        gl.glUnmapBuffer(this.target);
+        gl.glDeleteBuffers(1, new int[] { this.bufferID }, 0);
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Shared texture layers for the bodies of a system. A file is identified
+ * first by its canonical path and then by the SHA-256 of its contents, so
+ * every body using the same image, under whatever name, gets the same layer.
+ * Layers are reference counted: acquire adds a reference and release drops
+ * one, and the texture array can be deleted once nothing refers to any layer.
+ *
+ * The cache also keeps the block compressed mip chains built from each image
+ * on disk, under DIRECTORY, named by content hash and size, so later runs skip
+ * both the image decode and the mip generation. Files are KTX 1.1 containers
+ * holding BC1 data:
+ *
+ * <pre>
+ * identifier  12 bytes  AB "KTX 11" BB "\r\n" 1A "\n"
+ * header      13 ints   endianness, GL type, type size, format, internal
+ *                       format, base internal format, width, height, depth,
+ *                       array elements, faces, mip levels, key/value bytes
+ * per level   int image size, then the image's blocks
+ * </pre>
+ */
+public class TextureCache {
+    public static final String DIRECTORY = "texture-cache";
+    public static final int INTERNAL_FORMAT = 0x83F0; // GL_COMPRESSED_RGB_S3TC_DXT1_EXT
+    private static final byte[] KTX_IDENTIFIER = { (byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB, '\r', '\n',
+            0x1A, '\n' };
+    private static final int KTX_ENDIANNESS = 0x04030201;
+    private static final int KTX_HEADER_SIZE = 64;
+    private static final int GL_RGB = 0x1907;
+
+    private final HashMap<String, Integer> layersByPath = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> layersByHash = new HashMap<String, Integer>();
+    private final ArrayList<String> files = new ArrayList<String>();
+    private final ArrayList<String> hashes = new ArrayList<String>();
+    private int[] references = new int[8];
+    private int referenced; // Layers with at least one reference
+
+    /*
+     * The layer holding the given image file, with one more reference. New
+     * contents get the next free layer.
+     */
+    public int acquire(String file) throws IOException {
+        String path = new File(file).getCanonicalPath();
+        Integer layer = this.layersByPath.get(path);
+        if (layer == null) {
+            String hash = hash(Paths.get(path));
+            layer = this.layersByHash.get(hash);
+            if (layer == null) {
+                layer = this.files.size();
+                this.files.add(file);
+                this.hashes.add(hash);
+                this.layersByHash.put(hash, layer);
+                if (layer == this.references.length) {
+                    this.references = Arrays.copyOf(this.references, layer * 2);
+                }
+            }
+            this.layersByPath.put(path, layer);
+        }
+        if (this.references[layer]++ == 0) {
+            this.referenced++;
+        }
+        return layer;
+    }
+
+    /*
+     * Drop one reference to a layer and return how many are left
+     */
+    public int release(int layer) {
+        if (this.references[layer] == 0) {
+            throw new IllegalStateException("Layer " + layer + " is not referenced");
+        }
+        if (--this.references[layer] == 0) {
+            this.referenced--;
+        }
+        return this.references[layer];
+    }
+
+    public int getReferences(int layer) {
+        return this.references[layer];
+    }
+
+    /*
+     * True once every reference has been released
+     */
+    public boolean isUnused() {
+        return this.referenced == 0;
+    }
+
+    /*
+     * One file per layer, the first name each contents were acquired under
+     */
+    public List<String> getFiles() {
+        return this.files;
+    }
+
+    /*
+     * Content hash of each layer
+     */
+    public List<String> getHashes() {
+        return this.hashes;
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform has SHA-256
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = Files.newInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit(b >> 4 & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Where the compressed mip chain of the given contents at the given size is
+     * kept
+     */
+    public static Path cacheFile(String hash, int width, int height) {
+        return Paths.get(DIRECTORY, hash + "-" + width + "x" + height + "-bc1.ktx");
+    }
+
+    /*
+     * Read a cached mip chain of the given size into dest, every level's blocks
+     * back to back. Returns false if there is no cache file or it does not
+     * hold exactly that chain.
+     */
+    public static boolean read(Path cache, int width, int height, int levels, byte[] dest) {
+        if (!Files.isRegularFile(cache)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            if (channel.size() != KTX_HEADER_SIZE + 4L * levels + dest.length) {
+                return false;
+            }
+            ByteBuffer file = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (file.hasRemaining()) {
+                if (channel.read(file) < 0) {
+                    return false;
+                }
+            }
+            file.flip();
+
+            byte[] identifier = new byte[KTX_IDENTIFIER.length];
+            file.get(identifier);
+            if (!Arrays.equals(identifier, KTX_IDENTIFIER) || file.getInt() != KTX_ENDIANNESS
+                    || file.getInt(28) != INTERNAL_FORMAT || file.getInt(36) != width || file.getInt(40) != height
+                    || file.getInt(56) != levels || file.getInt(60) != 0) {
+                return false;
+            }
+            file.position(KTX_HEADER_SIZE);
+            int offset = 0;
+            for (int level = 0; level < levels; level++) {
+                int size = Bc1Encoder.compressedSize(Math.max(1, width >> level), Math.max(1, height >> level));
+                if (file.getInt() != size) {
+                    return false;
+                }
+                file.get(dest, offset, size);
+                offset += size;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Write a mip chain as laid out by read, through a temporary file so a
+     * crash never leaves a half written cache. Failures are ignored; the chain
+     * is simply built again next time.
+     */
+    public static void write(Path cache, int width, int height, int levels, byte[] blocks) {
+        ByteBuffer file = ByteBuffer.allocate(KTX_HEADER_SIZE + 4 * levels + blocks.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        file.put(KTX_IDENTIFIER).putInt(KTX_ENDIANNESS);
+        file.putInt(0).putInt(1).putInt(0).putInt(INTERNAL_FORMAT).putInt(GL_RGB); // Compressed, no type or format
+        file.putInt(width).putInt(height).putInt(0).putInt(0).putInt(1).putInt(levels).putInt(0);
+        int offset = 0;
+        for (int level = 0; level < levels; level++) {
+            int size = Bc1Encoder.compressedSize(Math.max(1, width >> level), Math.max(1, height >> level));
+            file.putInt(size).put(blocks, offset, size); // Sizes are multiples of 8, so no padding
+            offset += size;
+        }
+        file.flip();
+
+        Path temp = null;
+        try {
+            Path parent = cache.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            temp = Files.createTempFile(parent, cache.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (file.hasRemaining()) {
+                    channel.write(file);
+                }
+            }
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Read only location, the chain is rebuilt next run. A temporary file
+            // that could not take the cache's place is not left behind.
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+}
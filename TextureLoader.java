@@ -0,0 +1,389 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.GL4;
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Loads the layers of a TextureCache, one image file each, into one texture
+ * array without holding up the GL thread. Only the image headers are read up front, to size
+ * the array. Decoding, scaling to the layer size and building the mip chain
+ * happen on a pool of worker threads, and the GL thread uploads finished
+ * layers a few at a time through a pixel buffer object, at most
+ * UPLOAD_BYTES_PER_FRAME per call to upload.
+ *
+ * Where the GL has S3TC the array is stored as BC1, an eighth of the memory
+ * of RGBA8, and each layer's compressed mip chain is kept on disk by
+ * TextureCache under the image's content hash. A later run finding it there
+ * uploads it as it is, with no image decode or mip generation at all.
+ *
+ * Until its layer is ready a body should be drawn with PLACEHOLDER as its
+ * layer; the shaders then sample the 1x1 placeholder texture instead.
+ */
+public class TextureLoader {
+    public static final int PLACEHOLDER = -1; // Layer to draw with until the real one is ready
+    public static final long UPLOAD_BYTES_PER_FRAME = 16L << 20;
+    private static final byte PLACEHOLDER_GREY = (byte) 0x80;
+
+    private final List<String> files;
+    private final List<String> hashes;
+    private final int width;
+    private final int height;
+    private final int levels;
+    private boolean compressed; // BC1 layers, from and to the disk cache
+    private int layerBytes; // All mip levels of one layer
+    private final boolean[] ready;
+    private int readyCount;
+
+    // Filled by the workers, drained by the GL thread
+    private final ConcurrentLinkedQueue<Decoded> decoded = new ConcurrentLinkedQueue<Decoded>();
+    private final ExecutorService workers;
+
+    private int textureArrayID;
+    private int placeholderID;
+    private int pixelBufferID;
+
+    /*
+     * Read the size of every layer's file. Layers share a size, the largest of
+     * the images up to maxSize, so smaller images are scaled up to it. Throws
+     * if any header cannot be read.
+     */
+    public TextureLoader(TextureCache cache, int maxSize) throws IOException {
+        this.files = new ArrayList<String>(cache.getFiles());
+        this.hashes = new ArrayList<String>(cache.getHashes());
+        int threads = Math.max(1, Math.min(this.files.size(), Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Texture decoder " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Headers only, in parallel
+        List<Future<int[]>> sizes = new ArrayList<Future<int[]>>();
+        for (String file : this.files) {
+            sizes.add(this.workers.submit(() -> readSize(file)));
+        }
+        int width = 1;
+        int height = 1;
+        for (int layer = 0; layer < sizes.size(); layer++) {
+            int[] size;
+            try {
+                size = sizes.get(layer).get();
+            } catch (Exception e) {
+                this.workers.shutdownNow();
+                throw new IOException("Could not read " + this.files.get(layer), e);
+            }
+            width = Math.max(width, Math.min(size[0], maxSize));
+            height = Math.max(height, Math.min(size[1], maxSize));
+        }
+        this.width = width;
+        this.height = height;
+        this.levels = 1 + (int) (Math.log(Math.max(width, height)) / Math.log(2));
+        this.ready = new boolean[this.files.size()];
+    }
+
+    private static int[] readSize(String file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(file))) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No image reader for " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public int getLayers() {
+        return this.files.size();
+    }
+
+    public boolean isReady(int layer) {
+        return this.ready[layer];
+    }
+
+    public boolean isDone() {
+        return this.readyCount == this.ready.length;
+    }
+
+    public int getTextureArray() {
+        return this.textureArrayID;
+    }
+
+    public int getPlaceholder() {
+        return this.placeholderID;
+    }
+
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    private int levelWidth(int level) {
+        return Math.max(1, this.width >> level);
+    }
+
+    private int levelHeight(int level) {
+        return Math.max(1, this.height >> level);
+    }
+
+    /*
+     * Create the texture array, the placeholder and the pixel buffer, and
+     * start decoding every layer. Must be called on the GL thread before
+     * upload.
+     */
+    public void initialize(GL4 gl) {
+        this.compressed = gl.isExtensionAvailable("GL_EXT_texture_compression_s3tc");
+        int bytes = 0;
+        for (int level = 0; level < this.levels; level++) {
+            bytes += levelBytes(level);
+        }
+        this.layerBytes = bytes;
+
+        int[] ids = new int[2];
+        gl.glGenTextures(2, ids, 0);
+        this.textureArrayID = ids[0];
+        this.placeholderID = ids[1];
+
+        gl.glBindTexture(GL_TEXTURE_2D_ARRAY, this.textureArrayID);
+        gl.glTexStorage3D(GL_TEXTURE_2D_ARRAY, this.levels,
+                this.compressed ? TextureCache.INTERNAL_FORMAT : GL_RGBA8, this.width, this.height,
+                Math.max(1, this.files.size()));
+
+        // building a mipmap and use anisotropic filtering
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        if (gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic")) {
+            float anisoset[] = new float[1];
+            gl.glGetFloatv(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, anisoset, 0);
+            gl.glTexParameterf(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_ANISOTROPY_EXT, anisoset[0]);
+        }
+
+        // A single grey texel, sampled by bodies whose layer is not ready
+        ByteBuffer grey = Buffers.newDirectByteBuffer(new byte[] { PLACEHOLDER_GREY, PLACEHOLDER_GREY,
+                PLACEHOLDER_GREY, (byte) 0xFF });
+        gl.glBindTexture(GL_TEXTURE_2D_ARRAY, this.placeholderID);
+        gl.glTexStorage3D(GL_TEXTURE_2D_ARRAY, 1, GL_RGBA8, 1, 1, 1);
+        gl.glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, 1, 1, 1, GL_RGBA, GL_UNSIGNED_BYTE, grey);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+
+        int[] buffers = new int[1];
+        gl.glGenBuffers(1, buffers, 0);
+        this.pixelBufferID = buffers[0];
+
+        for (int layer = 0; layer < this.files.size(); layer++) {
+            int index = layer;
+            this.workers.execute(() -> this.decoded.add(decode(index)));
+        }
+        this.workers.shutdown(); // Threads end once the queued decodes are done
+    }
+
+    /*
+     * Bytes of one mip level of one layer
+     */
+    private int levelBytes(int level) {
+        int w = levelWidth(level);
+        int h = levelHeight(level);
+        return this.compressed ? Bc1Encoder.compressedSize(w, h) : w * h * 4;
+    }
+
+    /*
+     * Stop decoding and delete the textures, once no body uses them
+     */
+    public void delete(GL4 gl) {
+        this.workers.shutdownNow();
+        gl.glDeleteTextures(2, new int[] { this.textureArrayID, this.placeholderID }, 0);
+        if (!isDone()) {
+            gl.glDeleteBuffers(1, new int[] { this.pixelBufferID }, 0);
+        }
+    }
+
+    /*
+     * Upload layers that have finished decoding, stopping once
+     * UPLOAD_BYTES_PER_FRAME have been sent (but always at least one layer).
+     * Returns the number of layers that became ready. Leaves the texture array
+     * bound to GL_TEXTURE_2D_ARRAY on the active unit.
+     */
+    public int upload(GL4 gl) {
+        if (isDone() || this.decoded.isEmpty()) {
+            return 0;
+        }
+
+        // Take a batch that fits the budget
+        List<Decoded> batch = new ArrayList<Decoded>();
+        long bytes = 0;
+        while (bytes == 0 || bytes + this.layerBytes <= UPLOAD_BYTES_PER_FRAME) {
+            Decoded layer = this.decoded.poll();
+            if (layer == null) {
+                break;
+            }
+            if (layer.error != null) {
+                throw new IllegalStateException("Could not load " + this.files.get(layer.layer), layer.error);
+            }
+            batch.add(layer);
+            bytes += this.layerBytes;
+        }
+
+        // Copy the batch into a fresh pixel buffer; orphaning the old storage
+        // means the driver never waits for last frame's transfer
+        gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, this.pixelBufferID);
+        gl.glBufferData(GL_PIXEL_UNPACK_BUFFER, bytes, null, GL_STREAM_DRAW);
+        ByteBuffer mapped = gl.glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytes,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+        for (Decoded layer : batch) {
+            mapped.put(layer.pixels);
+        }
+        gl.glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+
+        // Every mip level of every layer, sourced from the pixel buffer
+        gl.glBindTexture(GL_TEXTURE_2D_ARRAY, this.textureArrayID);
+        gl.glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        long offset = 0;
+        for (Decoded layer : batch) {
+            for (int level = 0; level < this.levels; level++) {
+                int w = levelWidth(level);
+                int h = levelHeight(level);
+                int size = levelBytes(level);
+                if (this.compressed) {
+                    gl.glCompressedTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer.layer, w, h, 1,
+                            TextureCache.INTERNAL_FORMAT, size, offset);
+                } else {
+                    gl.glTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer.layer, w, h, 1, GL_RGBA,
+                            GL_UNSIGNED_BYTE, offset);
+                }
+                offset += size;
+            }
+            this.ready[layer.layer] = true;
+            this.readyCount++;
+        }
+        gl.glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+
+        if (isDone()) {
+            gl.glDeleteBuffers(1, new int[] { this.pixelBufferID }, 0);
+        }
+        return batch.size();
+    }
+
+    /*
+     * Worker side: the layer's mip chain in the array's format. Compressed
+     * chains come from the disk cache when it has them and are written to it
+     * when it does not.
+     */
+    private Decoded decode(int layer) {
+        try {
+            if (!this.compressed) {
+                return new Decoded(layer, decodeRgba(layer), null);
+            }
+            Path cache = TextureCache.cacheFile(this.hashes.get(layer), this.width, this.height);
+            byte[] blocks = new byte[this.layerBytes];
+            if (!TextureCache.read(cache, this.width, this.height, this.levels, blocks)) {
+                byte[] rgba = decodeRgba(layer);
+                int source = 0;
+                int offset = 0;
+                for (int level = 0; level < this.levels; level++) {
+                    int w = levelWidth(level);
+                    int h = levelHeight(level);
+                    offset = Bc1Encoder.encode(rgba, source, w, h, blocks, offset);
+                    source += w * h * 4;
+                }
+                TextureCache.write(cache, this.width, this.height, this.levels, blocks);
+            }
+            return new Decoded(layer, blocks, null);
+        } catch (Exception | OutOfMemoryError e) {
+            return new Decoded(layer, null, e);
+        }
+    }
+
+    /*
+     * Decode one file, scale it to the layer size and append its mip chain,
+     * each level a 2x2 box filter of the one before
+     */
+    private byte[] decodeRgba(int layer) throws IOException {
+        BufferedImage image = ImageIO.read(new File(this.files.get(layer)));
+        if (image == null) {
+            throw new IOException("No image reader for " + this.files.get(layer));
+        }
+        BufferedImage scaled = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, this.width, this.height, null);
+        g.dispose();
+
+        int bytes = 0;
+        for (int level = 0; level < this.levels; level++) {
+            bytes += levelWidth(level) * levelHeight(level) * 4;
+        }
+        byte[] pixels = new byte[bytes];
+        int[] argb = scaled.getRGB(0, 0, this.width, this.height, null, 0, this.width);
+        int p = 0;
+        for (int pixel : argb) {
+            pixels[p++] = (byte) (pixel >> 16);
+            pixels[p++] = (byte) (pixel >> 8);
+            pixels[p++] = (byte) pixel;
+            pixels[p++] = (byte) (pixel >> 24);
+        }
+        int previous = 0;
+        for (int level = 1; level < this.levels; level++) {
+            int sourceWidth = levelWidth(level - 1);
+            int sourceHeight = levelHeight(level - 1);
+            int w = levelWidth(level);
+            int h = levelHeight(level);
+            int start = p;
+            for (int y = 0; y < h; y++) {
+                int y0 = Math.min(2 * y, sourceHeight - 1);
+                int y1 = Math.min(2 * y + 1, sourceHeight - 1);
+                for (int x = 0; x < w; x++) {
+                    int x0 = Math.min(2 * x, sourceWidth - 1);
+                    int x1 = Math.min(2 * x + 1, sourceWidth - 1);
+                    for (int c = 0; c < 4; c++) {
+                        int sum = (pixels[previous + (y0 * sourceWidth + x0) * 4 + c] & 0xFF)
+                                + (pixels[previous + (y0 * sourceWidth + x1) * 4 + c] & 0xFF)
+                                + (pixels[previous + (y1 * sourceWidth + x0) * 4 + c] & 0xFF)
+                                + (pixels[previous + (y1 * sourceWidth + x1) * 4 + c] & 0xFF);
+                        pixels[p++] = (byte) ((sum + 2) >> 2);
+                    }
+                }
+            }
+            previous = start;
+        }
+        return pixels;
+    }
+
+    /*
+     * A decoded layer waiting for upload, or the reason it failed
+     */
+    private static class Decoded {
+        final int layer;
+        final byte[] pixels;
+        final Throwable error;
+
+        Decoded(int layer, byte[] pixels, Throwable error) {
+            this.layer = layer;
+            this.pixels = pixels;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Checks that orbits stay exact over long simulated times. A stellar system is
+ * advanced through Simulation.advanceToNanos to each of a set of times, up to
+ * 1e9 seconds, and every body's world position is compared against a
+ * reference whose orbital phases are reduced in BigDecimal arithmetic. Fails
+ * if any body is further off than TOLERANCE_ULPS float ulps of the length of
+ * its chain of orbits, which is what storing the positions as floats costs.
+ * Also checks that a SimulationClock warped as far as the keys allow stops at
+ * the end of its range rather than wrapping around.
+ *
+ * Usage: java TimeBaseCheck [solFile]
+ */
+public class TimeBaseCheck {
+    private static final double[] TIMES = { 1.1, 2.6e5, 1e9 }; // Seconds
+    private static final int TOLERANCE_ULPS = 4;
+    private static final BigDecimal NANOS_PER_SECOND = BigDecimal.valueOf(1_000_000_000L);
+
+    public static void main(String[] args) throws IOException {
+        StellarSystem stellarSystem = SolFile.read(args.length > 0 ? args[0] : "solar.sol").stellarSystem;
+        Simulation simulation = new Simulation(stellarSystem);
+        BodyStore bodies = simulation.getBodies();
+
+        boolean failed = false;
+        for (double seconds : TIMES) {
+            long timeNanos = Math.round(seconds * 1e9);
+            simulation.advanceToNanos(timeNanos);
+
+            double worst = 0;
+            double worstTolerance = 0;
+            double worstRatio = -1;
+            for (int i = 0; i < bodies.size(); i++) {
+                double x = 0;
+                double z = 0;
+                double chain = 0;
+                for (int b = i; b != BodyStore.NO_PARENT; b = bodies.parent[b]) {
+                    double angle = 2 * Math.PI * referencePhase(timeNanos, bodies.orbitalPeriod[b]);
+                    x += Math.cos(angle) * bodies.orbitalRadius[b];
+                    z += Math.sin(angle) * bodies.orbitalRadius[b];
+                    chain += bodies.orbitalRadius[b];
+                }
+                double error = Math.max(Math.abs(bodies.positionX[i] - x),
+                        Math.max(Math.abs(bodies.positionY[i]), Math.abs(bodies.positionZ[i] - z)));
+                double tolerance = TOLERANCE_ULPS * Math.ulp((float) Math.max(chain, 1));
+                if (error > tolerance) {
+                    System.out.printf("  body %d at %.3g s is %.3g off (tolerance %.3g)%n", i, seconds, error,
+                            tolerance);
+                    failed = true;
+                }
+                if (error / tolerance > worstRatio) {
+                    worstRatio = error / tolerance;
+                    worst = error;
+                    worstTolerance = tolerance;
+                }
+            }
+            System.out.printf("t = %-8.3g s  largest error %.3g (tolerance %.3g)%n", seconds, worst, worstTolerance);
+        }
+        if (failed) {
+            throw new IllegalStateException("Positions drift over long simulated times");
+        }
+        System.out.println("All " + bodies.size() + " bodies within tolerance");
+        checkClockLimits();
+    }
+
+    /*
+     * Double the warp as often as the + key could, forwards and then in
+     * reverse, and run the clock at 60 frames a second for a few real hours.
+     * Time must never step backwards (or forwards, reversed) and must end at
+     * the limit.
+     */
+    private static void checkClockLimits() {
+        SimulationClock clock = new SimulationClock();
+        for (int i = 0; i < 2000; i++) {
+            clock.setWarp(clock.getWarp() * 2);
+        }
+        if (clock.getWarp() != SimulationClock.MAX_WARP) {
+            throw new IllegalStateException("Warp not clamped: " + clock.getWarp());
+        }
+        for (int direction = 1; direction >= -1; direction -= 2) {
+            long limit = direction > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+            long last = clock.getTimeNanos();
+            for (int frame = 0; frame < 1_000_000; frame++) {
+                long time = clock.advance(16_666_667L);
+                if (Long.compare(time, last) == -direction) {
+                    throw new IllegalStateException("Clock wrapped from " + last + " to " + time);
+                }
+                last = time;
+            }
+            if (last != limit) {
+                throw new IllegalStateException("Clock did not stop at its limit: " + last);
+            }
+            clock.reverse();
+        }
+        System.out.println("Clock stops at its limits at warp " + SimulationClock.MAX_WARP);
+    }
+
+    /*
+     * Fraction of the period completed at the given time, the remainder taken
+     * exactly. A period of infinity, as the store keeps for bodies that do not
+     * orbit, means no motion.
+     */
+    private static double referencePhase(long timeNanos, float period) {
+        if (period == 0 || Float.isInfinite(period)) {
+            return 0;
+        }
+        BigDecimal periodNanos = new BigDecimal(period).multiply(NANOS_PER_SECOND);
+        BigDecimal remainder = BigDecimal.valueOf(timeNanos).remainder(periodNanos);
+        return remainder.divide(periodNanos, MathContext.DECIMAL128).doubleValue();
+    }
+}
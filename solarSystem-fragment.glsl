@@ -1,10 +1,16 @@
 #version 430
-layout (binding=0) uniform sampler2D sampler0;
+layout (binding=0) uniform sampler2DArray sampler0;
+layout (binding=1) uniform sampler2DArray placeholder;	// 1x1, for layers still loading
 
 in vec2 fragmentST;
+flat in float fragmentLayer;
 out vec4 color; // Output final color
 
 void main(void)
 {
-    color = texture(sampler0, fragmentST); // Texture output
-}
\ No newline at end of file
+    if (fragmentLayer < 0.0) {
+        color = texture(placeholder, vec3(fragmentST, 0.0)); // Texture not loaded yet
+    } else {
+        color = texture(sampler0, vec3(fragmentST, fragmentLayer)); // Texture output
+    }
+}
@@ -0,0 +1,62 @@
+#version 430	// version 4.30
+
+layout (location=0) in vec3 position;  // input is a triple
+layout (location=1) in vec2 vertexST;
+
+// Fixed orbit of every body, uploaded once (see BodyStore.writeOrbitalElements)
+struct Body {
+    float radius;
+    float rotationPeriod;	// seconds, 0 for bodies that do not spin
+    float orbitalRadius;
+    float orbitalPeriod;	// seconds, 0 for bodies that do not orbit
+    int parent;	// index of the body orbited, -1 for the root
+    float textureLayer;
+    float pad0;
+    float pad1;
+};
+layout (std430, binding=0) readonly buffer Bodies {
+    Body bodies[];
+};
+
+layout (std140, binding=1) uniform Camera {	// shared by every program, see SolarSystem.uploadCamera
+    mat4 v_matrix;	// access to V matrix
+    mat4 p_matrix;	// access to P matrix
+    float viewportHeight;	// in pixels
+};
+uniform double time;	// simulated seconds, double so the phase stays exact over long runs
+
+out vec2 fragmentST;
+flat out float fragmentLayer;
+
+const float TWO_PI = 6.2831853;
+
+// Angle swept after time by something with the given period, reduced in double precision
+float angle(float period) {
+    if (period == 0.0) {
+        return 0.0;
+    }
+    double p = double(period);
+    return TWO_PI * float(mod(time, p) / p);
+}
+
+void main(void) {	// output a quadruple
+    Body body = bodies[gl_InstanceID];
+
+    // World position: this body's orbit around each of its ancestors in turn
+    vec3 world = vec3(0.0);
+    for (int b = gl_InstanceID; b >= 0; b = bodies[b].parent) {
+        float orbit = angle(bodies[b].orbitalPeriod);
+        world += bodies[b].orbitalRadius * vec3(cos(orbit), 0.0, sin(orbit));
+    }
+
+    // translate * rotateY * scale, as BodyStore.writeModelMatrix
+    float spin = angle(body.rotationPeriod);
+    float c = cos(spin);
+    float s = sin(spin);
+    vec3 p = position * body.radius;
+    vec3 model = vec3(c * p.x + s * p.z, p.y, c * p.z - s * p.x) + world;
+
+    gl_Position = p_matrix * v_matrix * vec4(model, 1.0);
+    fragmentST = vertexST;
+    fragmentLayer = body.textureLayer;
+}
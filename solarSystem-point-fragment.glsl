@@ -0,0 +1,24 @@
+#version 430
+layout (binding=0) uniform sampler2DArray sampler0;
+layout (binding=1) uniform sampler2DArray placeholder;	// 1x1, for layers still loading
+
+flat in float fragmentLayer;
+out vec4 color; // Output final color
+
+void main(void)
+{
+    // Round the square sprite off into a disc
+    vec2 offset = gl_PointCoord * 2.0 - 1.0;
+    if (dot(offset, offset) > 1.0) {
+        discard;
+    }
+
+    if (fragmentLayer < 0.0) {
+        color = texelFetch(placeholder, ivec3(0), 0); // Texture not loaded yet
+        return;
+    }
+
+    // The smallest mip level is the texture's average color
+    int top = textureQueryLevels(sampler0) - 1;
+    color = textureLod(sampler0, vec3(0.5, 0.5, fragmentLayer), float(top));
+}
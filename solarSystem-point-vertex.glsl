@@ -0,0 +1,21 @@
+#version 430	// version 4.30
+
+layout (location=3) in mat4 m_matrix;	// per instance model matrix (locations 3-6)
+layout (location=7) in float textureLayer;	// per instance texture array layer
+
+layout (std140, binding=1) uniform Camera {	// shared by every program, see SolarSystem.uploadCamera
+    mat4 v_matrix;	// access to V matrix
+    mat4 p_matrix;	// access to P matrix
+    float viewportHeight;	// in pixels
+};
+
+flat out float fragmentLayer;
+
+void main(void) {	// one point sprite per body, as wide as the body on screen
+    mat4 mv_matrix = v_matrix * m_matrix;
+    vec4 center = mv_matrix * vec4(0.0, 0.0, 0.0, 1.0);
+    float radius = length(mv_matrix[0].xyz);
+    gl_Position = p_matrix * center;
+    gl_PointSize = max(1.0, 2.0 * radius * p_matrix[1][1] * viewportHeight * 0.5 / max(-center.z, 1e-6));
+    fragmentLayer = textureLayer;
+}
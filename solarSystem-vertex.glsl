@@ -2,13 +2,20 @@
 
 layout (location=0) in vec3 position;  // input is a triple
 layout (location=1) in vec2 vertexST;
+layout (location=3) in mat4 m_matrix;	// per instance model matrix (locations 3-6)
+layout (location=7) in float textureLayer;	// per instance texture array layer
 
-uniform mat4 mv_matrix;	// access to MV matrix
-uniform mat4 p_matrix;	// access to P matrix
+layout (std140, binding=1) uniform Camera {	// shared by every program, see SolarSystem.uploadCamera
+    mat4 v_matrix;	// access to V matrix
+    mat4 p_matrix;	// access to P matrix
+    float viewportHeight;	// in pixels
+};
 
 out vec2 fragmentST;
+flat out float fragmentLayer;
 
 void main(void) {	// output a quadruple
-    gl_Position = p_matrix * mv_matrix * vec4(position, 1.0);
+    gl_Position = p_matrix * v_matrix * m_matrix * vec4(position, 1.0);
     fragmentST = vertexST;
-}
\ No newline at end of file
+    fragmentLayer = textureLayer;
+}